@@ -0,0 +1,40 @@
+package com.fortunemagnet.app;
+
+import android.util.Log;
+
+import com.fortunemagnet.upload.Logger;
+
+/**
+ * Sends the upload engine's log lines to logcat under the bridge's tag. Debug lines
+ * only in debug builds, or after adb shell setprop log.tag.NativeUploaderBridge DEBUG.
+ */
+final class AndroidLogger implements Logger {
+    private static final String TAG = "NativeUploaderBridge";
+
+    static final AndroidLogger INSTANCE = new AndroidLogger();
+
+    /** Whether debug lines and every recorded event go to logcat. */
+    static boolean isVerbose() {
+        return BuildConfig.DEBUG || Log.isLoggable(TAG, Log.DEBUG);
+    }
+
+    private AndroidLogger() {
+    }
+
+    @Override
+    public void d(String message) {
+        if (isVerbose()) {
+            Log.d(TAG, message);
+        }
+    }
+
+    @Override
+    public void w(String message, Throwable error) {
+        Log.w(TAG, message, error);
+    }
+
+    @Override
+    public void e(String message, Throwable error) {
+        Log.e(TAG, message, error);
+    }
+}
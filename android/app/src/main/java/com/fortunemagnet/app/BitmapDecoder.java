@@ -0,0 +1,193 @@
+package com.fortunemagnet.app;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ImageDecoder;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.Build;
+import android.util.Log;
+import android.util.Size;
+
+import androidx.annotation.RequiresApi;
+import androidx.exifinterface.media.ExifInterface;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a photo straight to the size it is needed at, upright. On API 28+
+ * ImageDecoder scales while decoding, applies the EXIF orientation itself and
+ * reads HEIC. Below that BitmapFactory decodes into a pooled bitmap (inBitmap),
+ * sampling by a power of two and scaling the rest of the way through the
+ * density fields, so no bitmap larger than the result reaches the Java heap;
+ * the orientation is then drawn in one matrix pass into another pooled bitmap.
+ *
+ * Every bitmap handed out belongs to the caller until it goes back through
+ * {@link #release}.
+ */
+final class BitmapDecoder {
+    private static final String TAG = "NativeUploaderBridge";
+
+    private final ContentResolver resolver;
+    private final BitmapPool pool;
+    private final Paint filter = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    BitmapDecoder(ContentResolver resolver, BitmapPool pool) {
+        this.resolver = resolver;
+        this.pool = pool;
+    }
+
+    /**
+     * @param rawWidth width as stored, before the EXIF orientation; 0 if unknown
+     * @return the photo with its long edge at most maxDimension, or null if this
+     *     device cannot decode it
+     */
+    Bitmap decode(UploadSource source, int rawWidth, int rawHeight, int orientation, int maxDimension) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            return decodeWithImageDecoder(source, maxDimension);
+        }
+        if (rawWidth <= 0 || rawHeight <= 0) {
+            return null;
+        }
+        Bitmap decoded = decodeWithBitmapFactory(source, rawWidth, rawHeight, maxDimension);
+        if (decoded == null) {
+            return null;
+        }
+        Bitmap output = transform(decoded, orientation, maxDimension);
+        if (output != decoded) {
+            release(decoded);
+        }
+        return output;
+    }
+
+    /** The bitmap itself if it already fits, else a filtered copy whose long edge is maxDimension. */
+    Bitmap scaleDown(Bitmap bitmap, int maxDimension) {
+        return transform(bitmap, ExifInterface.ORIENTATION_NORMAL, maxDimension);
+    }
+
+    /** Returns a bitmap for reuse by the next decode. */
+    void release(Bitmap bitmap) {
+        pool.put(bitmap);
+    }
+
+    @RequiresApi(Build.VERSION_CODES.P)
+    private Bitmap decodeWithImageDecoder(UploadSource source, int maxDimension) throws IOException {
+        ImageDecoder.Source imageSource = ImageDecoder.createSource(resolver, source.uri);
+        try {
+            return ImageDecoder.decodeBitmap(imageSource, (decoder, info, unused) -> {
+                Size size = info.getSize();
+                int longEdge = Math.max(size.getWidth(), size.getHeight());
+                if (longEdge > maxDimension) {
+                    float scale = (float) maxDimension / longEdge;
+                    decoder.setTargetSize(Math.max(1, Math.round(size.getWidth() * scale)),
+                        Math.max(1, Math.round(size.getHeight() * scale)));
+                }
+                // Encoding and getPixels need the pixels in memory; mutable so the pool can take it back
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+                decoder.setMutableRequired(true);
+            });
+        } catch (ImageDecoder.DecodeException e) {
+            Log.w(TAG, "ImageDecoder cannot decode " + source.mimeType, e);
+            return null;
+        }
+    }
+
+    private Bitmap decodeWithBitmapFactory(UploadSource source, int rawWidth, int rawHeight, int maxDimension)
+            throws IOException {
+        BitmapFactory.Options decode = new BitmapFactory.Options();
+        decode.inSampleSize = ImageProcessor.calculateInSampleSize(Math.max(rawWidth, rawHeight), maxDimension);
+        decode.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        decode.inMutable = true;
+        // Sampled dimensions round up at most
+        int width = ceilDiv(rawWidth, decode.inSampleSize);
+        int height = ceilDiv(rawHeight, decode.inSampleSize);
+        int longEdge = Math.max(width, height);
+        if (longEdge > maxDimension) {
+            // The decoder scales by inTargetDensity / inDensity on its way out
+            decode.inScaled = true;
+            decode.inDensity = longEdge;
+            decode.inTargetDensity = maxDimension;
+            width = ceilDiv(width * maxDimension, longEdge);
+            height = ceilDiv(height * maxDimension, longEdge);
+        }
+        decode.inBitmap = pool.take(width + 1, height + 1);
+        Bitmap decoded;
+        try (InputStream inputStream = source.open(resolver)) {
+            decoded = BitmapFactory.decodeStream(inputStream, null, decode);
+        } catch (IllegalArgumentException e) {
+            if (decode.inBitmap == null) {
+                throw e;
+            }
+            // The pooled bitmap did not suit this image after all: decode into a new one
+            Log.w(TAG, "Could not decode into pooled bitmap, allocating", e);
+            decode.inBitmap.recycle();
+            decode.inBitmap = null;
+            try (InputStream inputStream = source.open(resolver)) {
+                decoded = BitmapFactory.decodeStream(inputStream, null, decode);
+            }
+        }
+        if (decoded == null) {
+            release(decode.inBitmap);
+            return null;
+        }
+        // inTargetDensity would otherwise scale it again when drawn onto a canvas
+        decoded.setDensity(Bitmap.DENSITY_NONE);
+        return decoded;
+    }
+
+    /** Applies the final exact resize and the EXIF orientation in a single pass. */
+    private Bitmap transform(Bitmap bitmap, int orientation, int maxDimension) {
+        Matrix matrix = new Matrix();
+        int longEdge = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (longEdge > maxDimension) {
+            float scale = (float) maxDimension / longEdge;
+            matrix.postScale(scale, scale);
+        }
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(-90);
+                break;
+            default:
+                break;
+        }
+        if (longEdge <= maxDimension && (orientation == ExifInterface.ORIENTATION_NORMAL
+                || orientation == ExifInterface.ORIENTATION_UNDEFINED)) {
+            return bitmap;
+        }
+        // Move the transformed image back to the origin and draw it into a pooled bitmap of its size
+        RectF bounds = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        Bitmap output = pool.get(Math.max(1, Math.round(bounds.width())), Math.max(1, Math.round(bounds.height())));
+        new Canvas(output).drawBitmap(bitmap, matrix, filter);
+        return output;
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
@@ -0,0 +1,138 @@
+package com.fortunemagnet.app;
+
+import android.graphics.Bitmap;
+
+import com.fortunemagnet.upload.EventLog;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mutable ARGB_8888 bitmaps kept for reuse by the next decode or resize, so a
+ * batch of photos does not allocate (and collect) a multi-megabyte bitmap per
+ * step. Bitmaps are bucketed by allocation size; a request takes the smallest
+ * one that fits, as long as it is not much larger than needed. Shared by the
+ * upload workers; bounded in bytes, oldest returned bitmaps go first.
+ */
+final class BitmapPool {
+    private static final int BYTES_PER_PIXEL = 4; // ARGB_8888
+    // A bitmap more than this many times the request stays for a request of its size
+    private static final int MAX_OVERSIZE = 4;
+
+    private final long maxBytes;
+    private final EventLog events;
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>(); // guarded by this
+    private final ArrayDeque<Bitmap> returned = new ArrayDeque<>(); // oldest first, guarded by this
+    private long pooledBytes; // guarded by this
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    BitmapPool(long maxBytes, EventLog events) {
+        this.maxBytes = maxBytes;
+        this.events = events;
+    }
+
+    /** An eighth of the heap, at most 64 MB: room for a few full-size photos on a small heap. */
+    static long defaultMaxBytes() {
+        return Math.min(Runtime.getRuntime().maxMemory() / 8, 64L * 1024 * 1024);
+    }
+
+    /**
+     * A pooled bitmap with room for width x height pixels, for BitmapFactory's
+     * inBitmap, which resizes it itself.
+     *
+     * @return null if none fits; the caller then lets the decoder allocate
+     */
+    Bitmap take(int width, int height) {
+        long needed = (long) width * height * BYTES_PER_PIXEL;
+        Bitmap bitmap = null;
+        if (needed <= Integer.MAX_VALUE) {
+            synchronized (this) {
+                Map.Entry<Integer, ArrayDeque<Bitmap>> bucket = buckets.ceilingEntry((int) needed);
+                if (bucket != null && bucket.getKey() <= needed * MAX_OVERSIZE) {
+                    bitmap = bucket.getValue().pollLast();
+                    if (bucket.getValue().isEmpty()) {
+                        buckets.remove(bucket.getKey());
+                    }
+                    returned.remove(bitmap);
+                    pooledBytes -= bucket.getKey();
+                }
+            }
+        }
+        (bitmap != null ? hits : misses).incrementAndGet();
+        return bitmap;
+    }
+
+    /** A width x height bitmap, reused when possible. Its pixels are cleared. */
+    Bitmap get(int width, int height) {
+        Bitmap bitmap = take(width, height);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    /** Hands a bitmap back for reuse; bitmaps that cannot be reused are recycled. */
+    void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int size = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888 || size > maxBytes / 2) {
+            bitmap.recycle();
+            return;
+        }
+        synchronized (this) {
+            ArrayDeque<Bitmap> bucket = buckets.get(size);
+            if (bucket == null) {
+                bucket = new ArrayDeque<>();
+                buckets.put(size, bucket);
+            }
+            bucket.addLast(bitmap);
+            returned.addLast(bitmap);
+            pooledBytes += size;
+            trimTo(maxBytes);
+        }
+    }
+
+    /** Drops every pooled bitmap, e.g. when the system is low on memory. */
+    synchronized void clear() {
+        if (pooledBytes > 0) {
+            events.record(PipelineEvent.BITMAP_POOL_CLEAR, null, pooledBytes, hits.get());
+        }
+        trimTo(0);
+    }
+
+    synchronized long pooledBytes() {
+        return pooledBytes;
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    private void trimTo(long limit) {
+        Iterator<Bitmap> it = returned.iterator();
+        while (pooledBytes > limit && it.hasNext()) {
+            Bitmap oldest = it.next();
+            it.remove();
+            int size = oldest.getAllocationByteCount();
+            ArrayDeque<Bitmap> bucket = buckets.get(size);
+            bucket.remove(oldest);
+            if (bucket.isEmpty()) {
+                buckets.remove(size);
+            }
+            pooledBytes -= size;
+            oldest.recycle();
+        }
+    }
+}
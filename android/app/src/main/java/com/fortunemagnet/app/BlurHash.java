@@ -0,0 +1,125 @@
+package com.fortunemagnet.app;
+
+/**
+ * BlurHash encoder (https://blurha.sh): a few DCT components of the image in
+ * 20-30 characters, which the page decodes into a blurred placeholder while the
+ * photo loads. Works on ARGB pixels of an already small bitmap; the cost grows
+ * with pixels times components, so callers downscale to a few dozen pixels first.
+ */
+final class BlurHash {
+    private static final String DIGITS =
+        "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#$%*+,-.:;=?@[]^_{|}~";
+
+    private BlurHash() {
+    }
+
+    /**
+     * @param pixels ARGB pixels, row by row (Bitmap.getPixels layout)
+     * @param componentsX horizontal components, 1 to 9
+     * @param componentsY vertical components, 1 to 9
+     */
+    static String encode(int[] pixels, int width, int height, int componentsX, int componentsY) {
+        if (componentsX < 1 || componentsX > 9 || componentsY < 1 || componentsY > 9) {
+            throw new IllegalArgumentException("BlurHash components must be between 1 and 9");
+        }
+        if (width <= 0 || height <= 0 || pixels.length < width * height) {
+            throw new IllegalArgumentException("No pixels for " + width + "x" + height);
+        }
+        int count = width * height;
+        float[] red = new float[count];
+        float[] green = new float[count];
+        float[] blue = new float[count];
+        for (int p = 0; p < count; p++) {
+            int color = pixels[p];
+            red[p] = srgbToLinear((color >> 16) & 0xFF);
+            green[p] = srgbToLinear((color >> 8) & 0xFF);
+            blue[p] = srgbToLinear(color & 0xFF);
+        }
+
+        float[][] factors = new float[componentsX * componentsY][];
+        for (int j = 0; j < componentsY; j++) {
+            float[] cosY = cosines(j, height);
+            for (int i = 0; i < componentsX; i++) {
+                float[] cosX = cosines(i, width);
+                float r = 0;
+                float g = 0;
+                float b = 0;
+                for (int y = 0; y < height; y++) {
+                    int row = y * width;
+                    for (int x = 0; x < width; x++) {
+                        float basis = cosX[x] * cosY[y];
+                        r += basis * red[row + x];
+                        g += basis * green[row + x];
+                        b += basis * blue[row + x];
+                    }
+                }
+                float scale = (i == 0 && j == 0 ? 1f : 2f) / count;
+                factors[j * componentsX + i] = new float[] { r * scale, g * scale, b * scale };
+            }
+        }
+
+        StringBuilder hash = new StringBuilder(4 + 2 * factors.length);
+        encode83(hash, (componentsX - 1) + (componentsY - 1) * 9, 1);
+        float maximumValue;
+        if (factors.length > 1) {
+            float actualMaximum = 0;
+            for (int k = 1; k < factors.length; k++) {
+                for (float value : factors[k]) {
+                    actualMaximum = Math.max(actualMaximum, Math.abs(value));
+                }
+            }
+            int quantisedMaximum = (int) Math.max(0, Math.min(82, Math.floor(actualMaximum * 166 - 0.5)));
+            maximumValue = (quantisedMaximum + 1) / 166f;
+            encode83(hash, quantisedMaximum, 1);
+        } else {
+            maximumValue = 1;
+            encode83(hash, 0, 1);
+        }
+        float[] dc = factors[0];
+        encode83(hash, (linearToSrgb(dc[0]) << 16) + (linearToSrgb(dc[1]) << 8) + linearToSrgb(dc[2]), 4);
+        for (int k = 1; k < factors.length; k++) {
+            float[] ac = factors[k];
+            encode83(hash, quantiseAc(ac[0], maximumValue) * 19 * 19
+                + quantiseAc(ac[1], maximumValue) * 19
+                + quantiseAc(ac[2], maximumValue), 2);
+        }
+        return hash.toString();
+    }
+
+    private static float[] cosines(int component, int size) {
+        float[] cosines = new float[size];
+        for (int n = 0; n < size; n++) {
+            cosines[n] = (float) Math.cos(Math.PI * component * n / size);
+        }
+        return cosines;
+    }
+
+    private static int quantiseAc(float value, float maximumValue) {
+        double normalized = value / maximumValue;
+        double signedRoot = Math.copySign(Math.sqrt(Math.abs(normalized)), normalized);
+        return (int) Math.max(0, Math.min(18, Math.floor(signedRoot * 9 + 9.5)));
+    }
+
+    static float srgbToLinear(int value) {
+        float v = value / 255f;
+        return v <= 0.04045f ? v / 12.92f : (float) Math.pow((v + 0.055f) / 1.055f, 2.4);
+    }
+
+    static int linearToSrgb(float value) {
+        float v = Math.max(0, Math.min(1, value));
+        return v <= 0.0031308f
+            ? (int) (v * 12.92f * 255 + 0.5f)
+            : (int) ((1.055f * Math.pow(v, 1 / 2.4) - 0.055f) * 255 + 0.5f);
+    }
+
+    private static void encode83(StringBuilder out, int value, int length) {
+        int divisor = 1;
+        for (int i = 1; i < length; i++) {
+            divisor *= 83;
+        }
+        for (int i = 0; i < length; i++) {
+            out.append(DIGITS.charAt((value / divisor) % 83));
+            divisor /= 83;
+        }
+    }
+}
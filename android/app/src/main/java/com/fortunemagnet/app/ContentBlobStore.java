@@ -0,0 +1,28 @@
+package com.fortunemagnet.app;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import com.fortunemagnet.upload.BlobStore;
+import com.fortunemagnet.upload.UploadBlob;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Opens upload blobs whose ref is a content:// or file:// Uri. */
+final class ContentBlobStore implements BlobStore {
+    private final ContentResolver resolver;
+
+    ContentBlobStore(ContentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    @Override
+    public InputStream open(UploadBlob blob) throws IOException {
+        InputStream inputStream = resolver.openInputStream(Uri.parse(blob.ref));
+        if (inputStream == null) {
+            throw new IOException("Failed to open input stream for image");
+        }
+        return inputStream;
+    }
+}
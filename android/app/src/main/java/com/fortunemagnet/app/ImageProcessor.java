@@ -0,0 +1,439 @@
+package com.fortunemagnet.app;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.exifinterface.media.ExifInterface;
+
+import com.fortunemagnet.upload.EventLog;
+import com.fortunemagnet.upload.IoBuffers;
+import com.fortunemagnet.upload.NetworkPolicy;
+
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.io.SequenceInputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Downscales and re-encodes a picked image before upload.
+ * BitmapDecoder decodes it upright at the target size into pooled bitmaps, and
+ * the encoded result is written to a cache file so the upload can stream it.
+ * The thumbnail and BlurHash for feeds are made from the same decoded bitmap.
+ * Only a few photos are decoded at once, however many workers process them.
+ */
+final class ImageProcessor {
+    private static final String TAG = "NativeUploaderBridge";
+    private static final String CACHE_DIR_NAME = "native-uploads";
+
+    static final int DEFAULT_MAX_DIMENSION = 2048;
+    static final int DEFAULT_QUALITY = 85;
+    static final int DEFAULT_THUMBNAIL_DIMENSION = 320;
+    static final int DEFAULT_THUMBNAIL_QUALITY = 70;
+    // On a slow uplink: about a third of the bytes of the defaults
+    static final int SLOW_NETWORK_MAX_DIMENSION = 1280;
+    static final int SLOW_NETWORK_QUALITY = 75;
+    // The BlurHash is computed on a copy this small; more pixels do not change the hash visibly
+    private static final int BLURHASH_SAMPLE_DIMENSION = 32;
+    // EXIF sits in the first 64 KB of a JPEG; the probe keeps this much to read it without reopening
+    private static final int PROBE_HEAD_BYTES = 128 * 1024;
+    // Heap per concurrent decode: a full-size photo, its rotated copy and the encoder's buffers
+    private static final long HEAP_PER_DECODE = 64L * 1024 * 1024;
+    private static final int MAX_CONCURRENT_DECODES = 3;
+
+    /**
+     * Processing settings, read from the JS options object:
+     * { processImage: true, maxDimension: 2048, quality: 85, format: "jpeg" | "webp",
+     *   thumbnail: { maxDimension: 320, quality: 70 } | false }
+     */
+    static final class Settings {
+        final boolean enabled;
+        final int maxDimension;
+        final int quality;
+        final String format;
+        final int thumbnailDimension; // 0: no thumbnail and no BlurHash
+        final int thumbnailQuality;
+
+        Settings(boolean enabled, int maxDimension, int quality, String format) {
+            this(enabled, maxDimension, quality, format, 0, DEFAULT_THUMBNAIL_QUALITY);
+        }
+
+        Settings(boolean enabled, int maxDimension, int quality, String format, int thumbnailDimension,
+                 int thumbnailQuality) {
+            this.enabled = enabled;
+            this.maxDimension = maxDimension;
+            this.quality = quality;
+            this.format = format;
+            this.thumbnailDimension = thumbnailDimension;
+            this.thumbnailQuality = thumbnailQuality;
+        }
+
+        static Settings fromOptions(JSONObject options) {
+            return fromOptions(options, true);
+        }
+
+        /**
+         * @param processByDefault whether to process when options.processImage is absent;
+         *     true for uploads, which also get a thumbnail unless options.thumbnail is false
+         */
+        static Settings fromOptions(JSONObject options, boolean processByDefault) {
+            int defaultThumbnail = processByDefault ? DEFAULT_THUMBNAIL_DIMENSION : 0;
+            if (options == null) {
+                return new Settings(processByDefault, DEFAULT_MAX_DIMENSION, DEFAULT_QUALITY, "jpeg",
+                    defaultThumbnail, DEFAULT_THUMBNAIL_QUALITY);
+            }
+            boolean enabled = options.optBoolean("processImage", processByDefault);
+            int maxDimension = options.optInt("maxDimension", DEFAULT_MAX_DIMENSION);
+            int quality = Math.max(1, Math.min(100, options.optInt("quality", DEFAULT_QUALITY)));
+            String format = "webp".equalsIgnoreCase(options.optString("format", "jpeg")) ? "webp" : "jpeg";
+            int thumbnailDimension = defaultThumbnail;
+            int thumbnailQuality = DEFAULT_THUMBNAIL_QUALITY;
+            JSONObject thumbnail = options.optJSONObject("thumbnail");
+            if (thumbnail != null) {
+                thumbnailDimension = Math.max(0, thumbnail.optInt("maxDimension", DEFAULT_THUMBNAIL_DIMENSION));
+                thumbnailQuality = Math.max(1, Math.min(100, thumbnail.optInt("quality", DEFAULT_THUMBNAIL_QUALITY)));
+            } else if (!options.optBoolean("thumbnail", true)) {
+                thumbnailDimension = 0;
+            }
+            return new Settings(enabled && maxDimension > 0, maxDimension, quality, format,
+                thumbnailDimension, thumbnailQuality);
+        }
+
+        /**
+         * Caps resolution and quality on a slow network, where options do not set them,
+         * so a photo takes seconds rather than minutes to upload there.
+         */
+        Settings adaptedTo(NetworkPolicy.Tier tier, JSONObject options) {
+            if (!enabled || tier != NetworkPolicy.Tier.SLOW) {
+                return this;
+            }
+            int cappedDimension = options.has("maxDimension")
+                ? maxDimension : Math.min(maxDimension, SLOW_NETWORK_MAX_DIMENSION);
+            int cappedQuality = options.has("quality") ? quality : Math.min(quality, SLOW_NETWORK_QUALITY);
+            return new Settings(true, cappedDimension, cappedQuality, format, thumbnailDimension, thumbnailQuality);
+        }
+
+        String mimeType() {
+            return "webp".equals(format) ? "image/webp" : "image/jpeg";
+        }
+
+        /** Identifies the output these settings produce, for the dedup cache key. */
+        String signature() {
+            String image = enabled ? format + "@" + maxDimension + "q" + quality : "original";
+            return thumbnailDimension > 0 ? image + "+thumb@" + thumbnailDimension + "q" + thumbnailQuality : image;
+        }
+
+        @SuppressWarnings("deprecation")
+        Bitmap.CompressFormat compressFormat() {
+            if (!"webp".equals(format)) {
+                return Bitmap.CompressFormat.JPEG;
+            }
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                ? Bitmap.CompressFormat.WEBP_LOSSY
+                : Bitmap.CompressFormat.WEBP;
+        }
+    }
+
+    /** What a single read of the original tells about it: raw bounds, orientation and content hash. */
+    static final class Probe {
+        final int rawWidth;
+        final int rawHeight;
+        final int orientation;
+        final String sha256; // hex digest of the original bytes, null unless asked for
+
+        Probe(int rawWidth, int rawHeight, int orientation, String sha256) {
+            this.rawWidth = rawWidth;
+            this.rawHeight = rawHeight;
+            this.orientation = orientation;
+            this.sha256 = sha256;
+        }
+    }
+
+    /** Small rendition for feed tiles, uploaded next to the image, and its BlurHash. */
+    static final class Thumbnail {
+        final UploadSource source; // null when only the BlurHash was kept
+        final String blurHash;
+
+        Thumbnail(UploadSource source, String blurHash) {
+            this.source = source;
+            this.blurHash = blurHash;
+        }
+    }
+
+    /** Image ready to upload, with the dimensions of what will actually be sent. */
+    static final class Result {
+        final UploadSource source;
+        final int width;
+        final int height;
+        final File tempFile; // null when the original is uploaded unchanged
+        final Thumbnail thumbnail; // null when none was asked for or the image could not be decoded
+
+        Result(UploadSource source, int width, int height, File tempFile) {
+            this(source, width, height, tempFile, null);
+        }
+
+        Result(UploadSource source, int width, int height, File tempFile, Thumbnail thumbnail) {
+            this.source = source;
+            this.width = width;
+            this.height = height;
+            this.tempFile = tempFile;
+            this.thumbnail = thumbnail;
+        }
+
+        /** Deletes the processed image but keeps the thumbnail. */
+        void deleteImageFile() {
+            if (tempFile != null && tempFile.exists() && !tempFile.delete()) {
+                Log.w(TAG, "Could not delete processed image " + tempFile.getName());
+            }
+        }
+
+        /** The thumbnail file, if there is one to upload. */
+        File thumbnailFile() {
+            return thumbnail != null && thumbnail.source != null ? new File(thumbnail.source.uri.getPath()) : null;
+        }
+
+        void deleteTempFile() {
+            deleteImageFile();
+            File thumbnailFile = thumbnailFile();
+            if (thumbnailFile != null && thumbnailFile.exists() && !thumbnailFile.delete()) {
+                Log.w(TAG, "Could not delete thumbnail " + thumbnailFile.getName());
+            }
+        }
+    }
+
+    private final ContentResolver resolver;
+    private final File cacheDir;
+    private final BitmapPool bitmapPool;
+    private final BitmapDecoder decoder;
+    private final Semaphore decodePermits;
+
+    ImageProcessor(ContentResolver resolver, File cacheDir, EventLog events) {
+        this.resolver = resolver;
+        this.cacheDir = new File(cacheDir, CACHE_DIR_NAME);
+        this.bitmapPool = new BitmapPool(BitmapPool.defaultMaxBytes(), events);
+        this.decoder = new BitmapDecoder(resolver, bitmapPool);
+        long heap = Runtime.getRuntime().maxMemory();
+        this.decodePermits = new Semaphore((int) Math.max(1, Math.min(MAX_CONCURRENT_DECODES, heap / HEAP_PER_DECODE)));
+    }
+
+    /** Lets go of pooled bitmaps when the system runs low on memory. */
+    void trimMemory() {
+        bitmapPool.clear();
+    }
+
+    /**
+     * Reads the head of the original for the bounds decode and EXIF. Hashing needs
+     * every byte, so only then is the rest of the stream read, through the digest.
+     *
+     * @param hash whether to compute Probe.sha256, e.g. for a dedup lookup
+     */
+    Probe probe(UploadSource original, boolean hash) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        MessageDigest digest = hash ? sha256() : null;
+        byte[] head;
+        try (InputStream source = original.open(resolver);
+             InputStream inputStream = digest != null ? new DigestInputStream(source, digest) : source) {
+            head = readHead(inputStream);
+            // Headers past the kept head (rare) are read on from the stream
+            BitmapFactory.decodeStream(new SequenceInputStream(new ByteArrayInputStream(head), inputStream), null, bounds);
+            if (digest != null) {
+                byte[] buffer = IoBuffers.get();
+                while (inputStream.read(buffer) != -1) {
+                    // Drain into the digest
+                }
+            }
+        }
+        return new Probe(bounds.outWidth, bounds.outHeight, readOrientation(head),
+            digest != null ? toHex(digest.digest()) : null);
+    }
+
+    private static byte[] readHead(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream(IoBuffers.SIZE);
+        byte[] buffer = IoBuffers.get();
+        int bytesRead;
+        while (head.size() < PROBE_HEAD_BYTES
+            && (bytesRead = inputStream.read(buffer, 0, Math.min(buffer.length, PROBE_HEAD_BYTES - head.size()))) != -1) {
+            head.write(buffer, 0, bytesRead);
+        }
+        return head.toByteArray();
+    }
+
+    Result process(UploadSource original, Settings settings, Probe probe) throws IOException {
+        int orientation = probe.orientation;
+        boolean swapsAxes = swapsAxes(orientation);
+        int sourceWidth = swapsAxes ? probe.rawHeight : probe.rawWidth;
+        int sourceHeight = swapsAxes ? probe.rawWidth : probe.rawHeight;
+
+        if (!settings.enabled) {
+            return new Result(original, sourceWidth, sourceHeight, null, thumbnailOfOriginal(original, settings, probe));
+        }
+
+        acquireDecodePermit();
+        try {
+            Bitmap output = decoder.decode(original, probe.rawWidth, probe.rawHeight, orientation, settings.maxDimension);
+            if (output == null) {
+                // Format not decodable on this device (e.g. HEIC before API 28): upload as-is
+                Log.w(TAG, "Cannot decode image, uploading original " + original.mimeType);
+                return new Result(original, sourceWidth, sourceHeight, null);
+            }
+            int width = output.getWidth();
+            int height = output.getHeight();
+            File file;
+            Thumbnail thumbnail;
+            try {
+                file = writeToCache(output, settings.compressFormat(), settings.quality, settings.format);
+                thumbnail = thumbnail(output, settings);
+            } finally {
+                decoder.release(output);
+            }
+            return new Result(UploadSource.fromFile(file, settings.mimeType()), width, height, file, thumbnail);
+        } finally {
+            decodePermits.release();
+        }
+    }
+
+    /** The original is uploaded unchanged: decode just enough of it for the thumbnail. */
+    private Thumbnail thumbnailOfOriginal(UploadSource original, Settings settings, Probe probe) throws IOException {
+        if (settings.thumbnailDimension <= 0) {
+            return null;
+        }
+        acquireDecodePermit();
+        try {
+            Bitmap oriented = decoder.decode(original, probe.rawWidth, probe.rawHeight, probe.orientation,
+                settings.thumbnailDimension);
+            if (oriented == null) {
+                return null;
+            }
+            Thumbnail thumbnail = thumbnail(oriented, settings);
+            decoder.release(oriented);
+            return thumbnail;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not decode image for its thumbnail", e);
+            return null;
+        } finally {
+            decodePermits.release();
+        }
+    }
+
+    private void acquireDecodePermit() throws IOException {
+        try {
+            decodePermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to decode");
+        }
+    }
+
+    /**
+     * Scales the decoded image down to the thumbnail and hashes that. A failure only
+     * costs the thumbnail, never the upload.
+     *
+     * @return null when no thumbnail was asked for or it could not be made
+     */
+    private Thumbnail thumbnail(Bitmap image, Settings settings) {
+        if (settings.thumbnailDimension <= 0) {
+            return null;
+        }
+        Bitmap small = decoder.scaleDown(image, settings.thumbnailDimension);
+        try {
+            String blurHash = blurHash(small);
+            File file = writeToCache(small, settings.compressFormat(), settings.thumbnailQuality, settings.format);
+            return new Thumbnail(UploadSource.fromFile(file, settings.mimeType()), blurHash);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not create thumbnail", e);
+            return null;
+        } finally {
+            if (small != image) {
+                decoder.release(small);
+            }
+        }
+    }
+
+    /** 4x3 components (3x4 for portrait) of a copy at most BLURHASH_SAMPLE_DIMENSION wide. */
+    private String blurHash(Bitmap image) {
+        Bitmap sample = decoder.scaleDown(image, BLURHASH_SAMPLE_DIMENSION);
+        int width = sample.getWidth();
+        int height = sample.getHeight();
+        int[] pixels = new int[width * height];
+        sample.getPixels(pixels, 0, width, 0, 0, width, height);
+        if (sample != image) {
+            decoder.release(sample);
+        }
+        boolean portrait = height > width;
+        return BlurHash.encode(pixels, width, height, portrait ? 3 : 4, portrait ? 4 : 3);
+    }
+
+    /** Largest power-of-two sample size that keeps the long edge at or above the target. */
+    static int calculateInSampleSize(int longEdge, int maxDimension) {
+        int inSampleSize = 1;
+        while (longEdge / (inSampleSize * 2) >= maxDimension) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private static int readOrientation(byte[] head) {
+        try (InputStream inputStream = new ByteArrayInputStream(head)) {
+            ExifInterface exif = new ExifInterface(inputStream);
+            return exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not read EXIF orientation", e);
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static boolean swapsAxes(int orientation) {
+        return orientation == ExifInterface.ORIENTATION_ROTATE_90
+            || orientation == ExifInterface.ORIENTATION_ROTATE_270
+            || orientation == ExifInterface.ORIENTATION_TRANSPOSE
+            || orientation == ExifInterface.ORIENTATION_TRANSVERSE;
+    }
+
+    private File writeToCache(Bitmap bitmap, Bitmap.CompressFormat format, int quality, String extension) throws IOException {
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            throw new IOException("Could not create cache directory for processed images");
+        }
+        File file = new File(cacheDir, UUID.randomUUID().toString() + "." + extension);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), IoBuffers.SIZE)) {
+            if (!bitmap.compress(format, quality, out)) {
+                throw new IOException("Failed to encode processed image");
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+}
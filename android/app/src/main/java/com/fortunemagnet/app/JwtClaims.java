@@ -0,0 +1,49 @@
+package com.fortunemagnet.app;
+
+import android.util.Base64;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads claims from the payload of a Supabase access token. The signature is
+ * not checked: the backend does that, the app only needs to know whose token it
+ * is and when it runs out.
+ */
+final class JwtClaims {
+    private JwtClaims() {
+    }
+
+    /** @return the payload, or null if the token is not a readable JWT */
+    static JSONObject payload(String jwt) {
+        if (jwt == null) {
+            return null;
+        }
+        String[] parts = jwt.split("\\.");
+        if (parts.length < 2) {
+            return null;
+        }
+        try {
+            byte[] json = Base64.decode(parts[1], Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP);
+            return new JSONObject(new String(json, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException | JSONException e) {
+            return null;
+        }
+    }
+
+    /** @return the user id (sub claim), or null */
+    static String subject(String jwt) {
+        JSONObject payload = payload(jwt);
+        String sub = payload != null ? payload.optString("sub", "") : "";
+        return sub.isEmpty() ? null : sub;
+    }
+
+    /** @return when the token expires (exp claim) in epoch millis, or 0 if unknown */
+    static long expiresAtMillis(String jwt) {
+        JSONObject payload = payload(jwt);
+        long exp = payload != null ? payload.optLong("exp", 0) : 0;
+        return exp > 0 ? exp * 1000 : 0;
+    }
+}
@@ -1,81 +1,228 @@
 package com.fortunemagnet.app;
 
+import android.content.ClipData;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.Nullable;
+import androidx.webkit.WebViewAssetLoader;
+import androidx.webkit.WebViewCompat;
+import androidx.webkit.WebViewFeature;
 
 import com.getcapacitor.BridgeActivity;
+import com.getcapacitor.BridgeWebViewClient;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class MainActivity extends BridgeActivity {
     private static final String BOOTSTRAP_JS = "" +
             "(function(){" +
             "  try {" +
+            "    /* Injected at document start and again once the page finished loading */" +
+            "    if (window.__nativeUploaderBootstrapped) return;" +
+            "    window.__nativeUploaderBootstrapped = true;" +
             "    window.NativeUploaderAvailable = true;" +
             "    if (!window.NativeUploader) window.NativeUploader = {};" +
             "    if (!window.__nativeUploadResolvers) window.__nativeUploadResolvers = {};" +
             "    if (!window.__nativeUploadReqId) window.__nativeUploadReqId = 0;" +
+            "    if (!window.__nativeUploadResults) window.__nativeUploadResults = {};" +
             "    " +
-            "    // Helper to set access token from web app's Supabase session" +
-            "    function updateAccessToken(){" +
+            "    /* Access token from the web app's Supabase session: pushed when it changes, never polled */" +
+            "    var authSession = null;" +
+            "    var authSubscribed = false;" +
+            "    var lastPushedToken = null;" +
+            "    function currentAccessToken(){" +
+            "      if (authSession && authSession.access_token) return authSession.access_token;" +
+            "      if (window.__SUPABASE_ACCESS_TOKEN__) return window.__SUPABASE_ACCESS_TOKEN__;" +
             "      try {" +
-            "        if (window.AndroidNativeUploader && window.AndroidNativeUploader.setAccessToken) {" +
-            "          var token = null;" +
-            "          if (window.__SUPABASE_ACCESS_TOKEN__) token = window.__SUPABASE_ACCESS_TOKEN__;" +
-            "          else if (window.supabase && window.supabase.auth) {" +
-            "            var session = window.supabase.auth.session();" +
-            "            if (session && session.access_token) token = session.access_token;" +
-            "          }" +
-            "          if (token) window.AndroidNativeUploader.setAccessToken(token);" +
+            "        if (window.supabase && window.supabase.auth && typeof window.supabase.auth.session === 'function') {" +
+            "          var session = window.supabase.auth.session();" +
+            "          if (session && session.access_token) return session.access_token;" +
+            "        }" +
+            "      } catch(e){}" +
+            "      return null;" +
+            "    }" +
+            "    function pushAccessToken(token){" +
+            "      try {" +
+            "        if (token && token !== lastPushedToken && window.AndroidNativeUploader && window.AndroidNativeUploader.setAccessToken) {" +
+            "          lastPushedToken = token;" +
+            "          window.AndroidNativeUploader.setAccessToken(token);" +
+            "        }" +
+            "      } catch(e){}" +
+            "    }" +
+            "    function subscribeToAuth(){" +
+            "      if (authSubscribed) return;" +
+            "      try {" +
+            "        if (window.supabase && window.supabase.auth && typeof window.supabase.auth.onAuthStateChange === 'function') {" +
+            "          authSubscribed = true;" +
+            "          window.supabase.auth.onAuthStateChange(function(event, session){" +
+            "            authSession = session || null;" +
+            "            pushAccessToken(session && session.access_token);" +
+            "          });" +
             "        }" +
             "      } catch(e){}" +
             "    }" +
+            "    function updateAccessToken(){" +
+            "      subscribeToAuth();" +
+            "      pushAccessToken(currentAccessToken());" +
+            "    }" +
+            "    /* Called by native when the token it holds is about to expire */" +
+            "    window.__nativeUploaderRefreshToken = function(){" +
+            "      subscribeToAuth();" +
+            "      var token = currentAccessToken();" +
+            "      if (token && token !== lastPushedToken) { pushAccessToken(token); return; }" +
+            "      try {" +
+            "        if (window.supabase && window.supabase.auth && typeof window.supabase.auth.refreshSession === 'function') {" +
+            "          Promise.resolve(window.supabase.auth.refreshSession()).then(function(res){" +
+            "            var session = res && res.data ? res.data.session : null;" +
+            "            if (session) { authSession = session; pushAccessToken(session.access_token); }" +
+            "          }, function(){});" +
+            "        }" +
+            "      } catch(e){}" +
+            "    };" +
+            "    /* For apps whose Supabase client is not window.supabase */" +
+            "    window.NativeUploader.setAccessToken = pushAccessToken;" +
             "    " +
-            "    // Update token periodically and on auth changes" +
-            "    setInterval(updateAccessToken, 5000);" +
             "    updateAccessToken();" +
+            "    if (!authSubscribed) {" +
+            "      window.addEventListener('DOMContentLoaded', updateAccessToken);" +
+            "      window.addEventListener('load', updateAccessToken);" +
+            "    }" +
             "    " +
             "    window.NativeUploader.pickAndUploadFortunePhoto = function(options){" +
-            "      return new Promise(function(resolve){" +
+            "      /* Unique across reloads: queued uploads may resolve in a later page */" +
+            "      var id = Date.now().toString(36) + '-' + (++window.__nativeUploadReqId);" +
+            "      var promise = new Promise(function(resolve){" +
             "        try {" +
             "          updateAccessToken();" +
-            "          var id = (++window.__nativeUploadReqId).toString();" +
-            "          window.__nativeUploadResolvers[id] = resolve;" +
             "          var payload = { id: id, options: (options||{}) };" +
             "          " +
-            "          // Include access token in options if available" +
+            "          /* Include access token in options if available */" +
             "          if (!payload.options.accessToken) {" +
-            "            var token = null;" +
-            "            if (window.__SUPABASE_ACCESS_TOKEN__) token = window.__SUPABASE_ACCESS_TOKEN__;" +
-            "            else if (window.supabase && window.supabase.auth) {" +
-            "              var session = window.supabase.auth.session();" +
-            "              if (session && session.access_token) token = session.access_token;" +
-            "            }" +
+            "            var token = currentAccessToken();" +
             "            if (token) payload.options.accessToken = token;" +
             "          }" +
             "          " +
-            "          if (window.AndroidNativeUploader && window.AndroidNativeUploader.pickAndUploadFortunePhoto) {" +
-            "            window.AndroidNativeUploader.pickAndUploadFortunePhoto(JSON.stringify(payload));" +
-            "          } else {" +
+            "          if (!window.AndroidNativeUploader || !window.AndroidNativeUploader.pickAndUploadFortunePhoto) {" +
             "            resolve({ cancelled: true });" +
+            "            return;" +
+            "          }" +
+            "          /* false: the id belongs to an upload still running, whose resolver stays as it is */" +
+            "          if (window.AndroidNativeUploader.pickAndUploadFortunePhoto(JSON.stringify(payload)) === false) {" +
+            "            resolve({ success: false, error: 'Duplicate request id' });" +
+            "            return;" +
             "          }" +
+            "          /* Results and progress arrive in later tasks, never during the call above */" +
+            "          /* options.onProgress receives this upload's native-uploader:progress details */" +
+            "          var onProgress = options && typeof options.onProgress === 'function' ? options.onProgress : null;" +
+            "          var progressListener = null;" +
+            "          if (onProgress) {" +
+            "            progressListener = function(ev){ if (ev.detail && ev.detail.id === id) { try { onProgress(ev.detail); } catch(_){} } };" +
+            "            window.addEventListener('native-uploader:progress', progressListener);" +
+            "          }" +
+            "          window.__nativeUploadResolvers[id] = function(result){" +
+            "            if (progressListener) window.removeEventListener('native-uploader:progress', progressListener);" +
+            "            resolve(result);" +
+            "          };" +
             "        } catch (e) {" +
             "          resolve({ cancelled: true });" +
             "        }" +
             "      });" +
+            "      /* Lets callers cancel: NativeUploader.cancel(promise.id) */" +
+            "      promise.id = id;" +
+            "      return promise;" +
+            "    };" +
+            "    window.NativeUploader.getMetrics = function(){" +
+            "      try {" +
+            "        if (window.AndroidNativeUploader && window.AndroidNativeUploader.getMetrics) {" +
+            "          return JSON.parse(window.AndroidNativeUploader.getMetrics());" +
+            "        }" +
+            "      } catch (e) {}" +
+            "      return null;" +
+            "    };" +
+            "    /* Periodic native-uploader:metrics events; 0 stops them */" +
+            "    window.NativeUploader.setMetricsExportInterval = function(intervalMs){" +
+            "      try {" +
+            "        if (window.AndroidNativeUploader && window.AndroidNativeUploader.setMetricsExportInterval) {" +
+            "          window.AndroidNativeUploader.setMetricsExportInterval(Math.max(0, Math.floor(Number(intervalMs) || 0)));" +
+            "        }" +
+            "      } catch (e) {}" +
             "    };" +
+            "    window.NativeUploader.cancel = function(id){" +
+            "      try {" +
+            "        if (window.AndroidNativeUploader && window.AndroidNativeUploader.cancelUpload) {" +
+            "          window.AndroidNativeUploader.cancelUpload(String(id));" +
+            "        }" +
+            "      } catch (e) {}" +
+            "    };" +
+            "    /* Returns true once the result was handed to a promise or, for uploads started" +
+            "       before a reload, to native-uploader:result listeners and __nativeUploadResults */" +
             "    window.__resolveNativeUpload = function(id, result){" +
-            "      try { var fn = window.__nativeUploadResolvers[id]; if (fn) { fn(result||{cancelled:true}); } delete window.__nativeUploadResolvers[id]; } catch(_){}" +
+            "      try {" +
+            "        var fn = window.__nativeUploadResolvers[id];" +
+            "        delete window.__nativeUploadResolvers[id];" +
+            "        if (fn) { fn(result||{cancelled:true}); return true; }" +
+            "        window.__nativeUploadResults[id] = result;" +
+            "        window.dispatchEvent(new CustomEvent('native-uploader:result', { detail: { id: id, result: result } }));" +
+            "        return true;" +
+            "      } catch(_){ return false; }" +
             "    };" +
+            "    /* NativePhotoPicker: same result as on iOS (bytes, mimeType, width, height) plus the url" +
+            "       the photo is served from; pickPhoto({ returnBytes: false }) skips reading the bytes */" +
+            "    window.NativePhotoPicker = window.NativePhotoPicker || {};" +
+            "    window.NativePhotoPicker.pickPhoto = function(options){" +
+            "      var id = Date.now().toString(36) + '-' + (++window.__nativeUploadReqId);" +
+            "      return new Promise(function(resolve, reject){" +
+            "        var opts = options || {};" +
+            "        try {" +
+            "          if (!window.AndroidNativeUploader || !window.AndroidNativeUploader.pickPhoto) {" +
+            "            resolve({ cancelled: true });" +
+            "            return;" +
+            "          }" +
+            "          if (window.AndroidNativeUploader.pickPhoto(JSON.stringify({ id: id, options: opts })) === false) {" +
+            "            resolve({ success: false, error: 'Duplicate request id' });" +
+            "            return;" +
+            "          }" +
+            "        } catch (e) {" +
+            "          resolve({ cancelled: true });" +
+            "          return;" +
+            "        }" +
+            "        window.__nativeUploadResolvers[id] = function(result){" +
+            "          if (!result || opts.returnBytes === false) { resolve(result || { cancelled: true }); return; }" +
+            "          var photos = result.photos || (result.url ? [result] : []);" +
+            "          Promise.all(photos.map(function(p){" +
+            "            return fetch(p.url).then(function(r){ return r.arrayBuffer(); }).then(function(buf){ p.bytes = new Uint8Array(buf); });" +
+            "          })).then(function(){ resolve(result); }, reject);" +
+            "        };" +
+            "      });" +
+            "    };" +
+            "    window.NativePhotoPickerAvailable = true;" +
             "    try { window.dispatchEvent(new CustomEvent('native-uploader:availability', { detail: { available: true } })); } catch(e){}" +
+            "    " +
+            "    /* Native hands over results that finished meanwhile once the page can receive them; top frame only */" +
+            "    function nativeReady(){" +
+            "      try {" +
+            "        if (window.top === window && window.AndroidNativeUploader && window.AndroidNativeUploader.onBootstrapReady) {" +
+            "          window.AndroidNativeUploader.onBootstrapReady();" +
+            "        }" +
+            "      } catch(e){}" +
+            "    }" +
+            "    if (document.readyState === 'loading') document.addEventListener('DOMContentLoaded', nativeReady);" +
+            "    else nativeReady();" +
             "  } catch (e) {}" +
             "})();";
 
     private boolean uploaderInjected = false;
+    private boolean fullyDrawnReported; // main thread only
     private NativeUploaderBridge uploaderBridge;
     private ActivityResultLauncher<Intent> photoPickerLauncher;
 
@@ -92,9 +239,9 @@ public class MainActivity extends BridgeActivity {
                 }
                 
                 if (result.getResultCode() == RESULT_OK && result.getData() != null) {
-                    Uri imageUri = result.getData().getData();
-                    if (imageUri != null) {
-                        uploaderBridge.handlePhotoPickerResult(imageUri);
+                    List<Uri> imageUris = getPickedUris(result.getData());
+                    if (!imageUris.isEmpty()) {
+                        uploaderBridge.handlePhotoPickerResult(imageUris);
                     } else {
                         uploaderBridge.handlePhotoPickerCancelled();
                     }
@@ -113,15 +260,94 @@ public class MainActivity extends BridgeActivity {
         final WebView webView = getBridge() != null ? getBridge().getWebView() : null;
         if (webView == null) return; // Bridge not ready yet
 
-        // Create and expose Android interface used by the JS bootstrap above
+        // Serve NativePhotoPicker files from disk under https://appassets.androidplatform.net/native-picker/,
+        // and fortune photos from storage through the native photo cache. Both run on the WebView's
+        // request threads, which is where the pipeline gets created if the page loads before it calls in.
+        final WebViewAssetLoader pickedImageLoader = new WebViewAssetLoader.Builder()
+            .setDomain(PickedImageStore.DOMAIN)
+            .addPathHandler(PickedImageStore.PATH_PREFIX,
+                path -> UploadPipeline.get(MainActivity.this).pickedImages().handle(path))
+            .build();
+        final Set<String> origins = bootstrapOrigins();
+        getBridge().setWebViewClient(new BridgeWebViewClient(getBridge()) {
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+                WebResourceResponse picked = pickedImageLoader.shouldInterceptRequest(request.getUrl());
+                if (picked != null) {
+                    return picked;
+                }
+                WebResourceResponse photo = UploadPipeline.get(MainActivity.this).interceptPhotoRequest(request);
+                return photo != null ? photo : super.shouldInterceptRequest(view, request);
+            }
+
+            @Override
+            public void onPageFinished(WebView view, String url) {
+                super.onPageFinished(view, url);
+                // A no-op where the document-start script already ran
+                if (origins.contains(origin(url))) {
+                    view.evaluateJavascript(BOOTSTRAP_JS, null);
+                }
+            }
+        });
+
+        // Create and expose Android interface used by the JS bootstrap above; it attaches the
+        // upload pipeline on the first call from the page, not here on the main thread
         uploaderBridge = new NativeUploaderBridge(this, webView);
         webView.addJavascriptInterface(uploaderBridge, "AndroidNativeUploader");
 
-        // Inject bootstrap after WebView is alive
-        webView.post(() -> webView.evaluateJavascript(BOOTSTRAP_JS, null));
+        // Install the bootstrap before the page's own scripts where the WebView supports it.
+        // BridgeActivity already started loading the first page in onCreate, which the script may
+        // miss: onPageFinished above injects it into every page that came up without it.
+        // Either way it calls onBootstrapReady.
+        if (WebViewFeature.isFeatureSupported(WebViewFeature.DOCUMENT_START_SCRIPT) && !origins.isEmpty()) {
+            WebViewCompat.addDocumentStartJavaScript(webView, BOOTSTRAP_JS, origins);
+        }
+        // In case the first page finished before this client was set
+        webView.post(() -> {
+            if (origins.contains(origin(webView.getUrl()))) {
+                webView.evaluateJavascript(BOOTSTRAP_JS, null);
+            }
+        });
 
         uploaderInjected = true;
     }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            UploadPipeline.get(this).trimMemory();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        // Uploads keep running in the pipeline; results wait in the outbox for the next WebView
+        if (uploaderBridge != null) {
+            uploaderBridge.detach();
+        }
+        super.onDestroy();
+    }
+    
+    /**
+     * Collects picked images: multi-select results arrive as ClipData, single picks as data.
+     */
+    private static List<Uri> getPickedUris(Intent data) {
+        List<Uri> uris = new ArrayList<>();
+        ClipData clipData = data.getClipData();
+        if (clipData != null) {
+            for (int i = 0; i < clipData.getItemCount(); i++) {
+                Uri uri = clipData.getItemAt(i).getUri();
+                if (uri != null) {
+                    uris.add(uri);
+                }
+            }
+        }
+        if (uris.isEmpty() && data.getData() != null) {
+            uris.add(data.getData());
+        }
+        return uris;
+    }
     
     /**
      * Starts the photo picker activity using the registered launcher.
@@ -131,6 +357,49 @@ public class MainActivity extends BridgeActivity {
         photoPickerLauncher.launch(intent);
     }
     
+    /**
+     * Origins the bootstrap is injected into: the app's bundled content and its
+     * configured server, scheme://host[:port] as the document-start rules expect.
+     */
+    private Set<String> bootstrapOrigins() {
+        Set<String> origins = new HashSet<>();
+        addOrigin(origins, getBridge().getLocalUrl());
+        addOrigin(origins, getServerUrl());
+        return origins;
+    }
+    
+    private static void addOrigin(Set<String> origins, String url) {
+        String origin = origin(url);
+        if (origin != null) {
+            origins.add(origin);
+        }
+    }
+    
+    /** @return scheme://host[:port] of the url, or null if it has none */
+    private static String origin(String url) {
+        if (url == null) {
+            return null;
+        }
+        Uri uri = Uri.parse(url);
+        if (uri.getScheme() == null || uri.getHost() == null) {
+            return null;
+        }
+        return uri.getScheme() + "://" + uri.getHost() + (uri.getPort() != -1 ? ":" + uri.getPort() : "");
+    }
+    
+    /**
+     * The page can receive uploads: marks the activity fully drawn for startup timing,
+     * once per launch; reloads and navigations call this again. Called from NativeUploaderBridge.
+     */
+    void onUploaderReady() {
+        runOnUiThread(() -> {
+            if (!fullyDrawnReported) {
+                fullyDrawnReported = true;
+                reportFullyDrawn();
+            }
+        });
+    }
+    
     /**
      * Gets the server URL from Capacitor Bridge configuration.
      */
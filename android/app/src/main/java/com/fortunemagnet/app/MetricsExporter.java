@@ -0,0 +1,65 @@
+package com.fortunemagnet.app;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.webkit.WebView;
+
+import org.json.JSONException;
+
+/**
+ * Periodically sends the uploader metrics to the page as one
+ * native-uploader:metrics event. Off until the page asks for it; intervals
+ * in which nothing was recorded send nothing.
+ */
+final class MetricsExporter {
+    private static final String TAG = "NativeUploaderBridge";
+    static final long MIN_INTERVAL_MS = 1000;
+
+    private final WebView webView;
+    private final UploadPipeline pipeline;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable exportTask = this::export;
+
+    // Only touched on the main thread
+    private long intervalMs;
+    private long exportedVersion = -1;
+
+    MetricsExporter(WebView webView, UploadPipeline pipeline) {
+        this.webView = webView;
+        this.pipeline = pipeline;
+    }
+
+    /** Starts exporting every intervalMs (at least MIN_INTERVAL_MS), or stops for 0. Main thread only. */
+    void setInterval(long intervalMs) {
+        mainHandler.removeCallbacks(exportTask);
+        this.intervalMs = intervalMs > 0 ? Math.max(MIN_INTERVAL_MS, intervalMs) : 0;
+        exportedVersion = -1;
+        if (this.intervalMs > 0) {
+            mainHandler.postDelayed(exportTask, this.intervalMs);
+        }
+    }
+
+    void stop() {
+        setInterval(0);
+    }
+
+    private void export() {
+        if (intervalMs == 0) {
+            return;
+        }
+        mainHandler.postDelayed(exportTask, intervalMs);
+        long version = pipeline.metrics().version();
+        if (version == exportedVersion) {
+            return;
+        }
+        try {
+            String snapshot = pipeline.metricsSnapshot().toString();
+            exportedVersion = version;
+            webView.evaluateJavascript("window.dispatchEvent(new CustomEvent('native-uploader:metrics',{detail:"
+                + snapshot + "}));", null);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating metrics JSON", e);
+        }
+    }
+}
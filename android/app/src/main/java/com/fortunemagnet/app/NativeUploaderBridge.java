@@ -1,62 +1,120 @@
 package com.fortunemagnet.app;
 
 import android.content.Intent;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.util.Log;
 import android.webkit.JavascriptInterface;
 import android.webkit.WebView;
 
+import com.fortunemagnet.upload.EventLog;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Native bridge for photo picker and upload functionality.
  * Handles photo selection, image processing, and upload to backend.
+ * Each JS request keeps its own state, so several requests (and several
+ * photos of a multi-select request) upload concurrently on a bounded pool.
+ * The uploads themselves run in the process-wide UploadPipeline, which
+ * outlives this bridge and the WebView it talks to.
  */
-public class NativeUploaderBridge {
+public class NativeUploaderBridge implements UploadPipeline.Listener {
     private static final String TAG = "NativeUploaderBridge";
     private static final String IMAGE_MIME_TYPE = "image/*";
     
     private final MainActivity activity;
     private final WebView webView;
-    private final ExecutorService executorService;
-    private String currentRequestId;
-    private String accessToken; // Stored access token for API calls
-    private JSONObject currentOptions; // Store options from current request
+    private final String serverUrl;
+    private final ProgressDispatcher progressDispatcher;
+    private final Object pipelineLock = new Object();
+    private volatile UploadPipeline pipeline; // attached on first use, off the main thread
+    private MetricsExporter metricsExporter; // set before pipeline, read after it
+    private final ConcurrentHashMap<String, UploadRequest> requests = new ConcurrentHashMap<>();
+    
+    // Picker state, only touched on the UI thread: one picker at a time, later requests wait
+    private final ArrayDeque<UploadRequest> pickerQueue = new ArrayDeque<>();
+    private UploadRequest pickerRequest;
 
+    /**
+     * Cheap enough for activity start: the pipeline is only created and attached once
+     * the page calls in, on the JavaScript bridge's thread.
+     */
     public NativeUploaderBridge(MainActivity mainActivity, WebView webView) {
         this.activity = mainActivity;
         this.webView = webView;
-        this.executorService = Executors.newSingleThreadExecutor();
+        this.serverUrl = mainActivity.getServerUrl();
+        this.progressDispatcher = new ProgressDispatcher(webView, ProgressDispatcher.DEFAULT_MAX_DISPATCHES_PER_SECOND);
+    }
+
+    private UploadPipeline pipeline() {
+        UploadPipeline current = pipeline;
+        if (current == null) {
+            synchronized (pipelineLock) {
+                current = pipeline;
+                if (current == null) {
+                    current = UploadPipeline.get(activity);
+                    current.setBridgeServerUrl(serverUrl);
+                    current.setListener(this);
+                    metricsExporter = new MetricsExporter(webView, current);
+                    pipeline = current;
+                }
+            }
+        }
+        return current;
     }
 
     /**
-     * Sets the access token for authenticated API calls.
+     * Sets the access token for authenticated API calls. The page calls this when its
+     * Supabase session changes and when asked through onAccessTokenExpiring.
      * Called from JavaScript: window.AndroidNativeUploader.setAccessToken(token)
      */
     @JavascriptInterface
     public void setAccessToken(String token) {
-        this.accessToken = token;
-        Log.d(TAG, "Access token set: " + (token != null && !token.isEmpty() ? "***" + token.substring(Math.max(0, token.length() - 4)) : "null"));
+        pipeline().setAccessToken(token);
+        EventLog events = pipeline().events();
+        if (events.isLoggable(PipelineEvent.TOKEN_SET)) {
+            long expiresAt = JwtClaims.expiresAtMillis(token);
+            events.record(PipelineEvent.TOKEN_SET, null, token != null && !token.isEmpty() ? 1 : 0,
+                expiresAt > 0 ? expiresAt - System.currentTimeMillis() : 0);
+        }
     }
 
+    /**
+     * Options (all optional): fortuneId, accessToken, allowMultiple (multi-select,
+     * resolves with { success, results: [...] }), maxConcurrentUploads (worker pool size),
+     * retry ({ maxAttempts, baseDelayMs, maxDelayMs, deadlineMs } per pipeline stage),
+     * verify ("auto" | "response" | "head" | "list" | "none", see verifyUploadInStorage),
+     * offlineQueue (default true: keep the upload in the outbox across restarts and
+     * connectivity loss; the promise then resolves whenever the upload finishes),
+     * dedup (default true: reuse the stored object when the same photo was uploaded
+     * before with the same settings; the result then has deduplicated: true),
+     * batchFinalize (default true: photos of a multi-select pick are finalized in one
+     * request where the backend supports it), thumbnail ({ maxDimension: 320, quality: 70 }
+     * by default, or false: a small rendition is uploaded alongside the photo and the
+     * result carries thumbnailPath and blurHash, a placeholder to show while it loads),
+     * adaptToNetwork (default true: on a slow uplink, lower the resolution and quality
+     * the options leave unset), deferOriginalsUntilUnmetered (default false: with
+     * processImage: false, hold photos in the offline queue while the network is metered),
+     * plus the image processing options read by ImageProcessor.Settings.
+     * Queued uploads pause while the device is offline and resume when a network returns.
+     * While it runs, native-uploader:progress events carry { id, index, count, stage,
+     * bytesSent, totalBytes } (stage: process, ticket, upload, verify, finalize), at most
+     * a few per second; the JS wrapper forwards them to options.onProgress.
+     * The returned promise carries the request id as promise.id, for NativeUploader.cancel(id).
+     * A photo that fails for good reports { success: false, error, log }, where log lists
+     * what its request went through (stages, statuses, retries), for bug reports.
+     *
+     * @return false if the id is still in use by another request; nothing is then
+     *     started or delivered for this call
+     */
     @JavascriptInterface
-    public void pickAndUploadFortunePhoto(String jsonPayload) {
-        Log.d(TAG, "pickAndUploadFortunePhoto called with payload: " + jsonPayload);
-        
+    public boolean pickAndUploadFortunePhoto(String jsonPayload) {
         String id = "0";
         JSONObject options = null;
         String tokenFromOptions = null;
@@ -66,624 +124,314 @@ public class NativeUploaderBridge {
                 JSONObject obj = new JSONObject(jsonPayload);
                 id = obj.optString("id", "0");
                 options = obj.optJSONObject("options");
-                // Allow token to be passed in options as fallback
+                // Allow token to be passed in options as fallback; the request itself never keeps it
                 if (options != null) {
                     tokenFromOptions = options.optString("accessToken", null);
+                    options.remove("accessToken");
                 }
             }
         } catch (JSONException e) {
             Log.e(TAG, "Failed to parse JSON payload", e);
             resolveWithError(id, "Invalid request payload");
-            return;
+            return true;
         }
+        // Never the payload itself: its options may carry the access token
+        pipeline().events().record(PipelineEvent.REQUEST_RECEIVED, id, "pickAndUploadFortunePhoto",
+            jsonPayload != null ? jsonPayload.length() : 0, 0);
         
         // Use token from options if provided, otherwise use stored token
         if (tokenFromOptions != null && !tokenFromOptions.isEmpty()) {
-            this.accessToken = tokenFromOptions;
-            Log.d(TAG, "Using access token from options");
+            pipeline().setAccessToken(tokenFromOptions);
+            pipeline().events().record(PipelineEvent.TOKEN_FROM_OPTIONS, id);
         }
         
-        currentRequestId = id;
-        currentOptions = options; // Store options for use in processAndUploadImage
-        
-        // Launch photo picker on UI thread
-        activity.runOnUiThread(() -> {
-            Log.d(TAG, "Launching photo picker for request: " + id);
-            Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
-            intent.setType(IMAGE_MIME_TYPE);
-            intent.addCategory(Intent.CATEGORY_OPENABLE);
-            
-            try {
-                activity.startPhotoPicker(intent, this);
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to launch photo picker", e);
-                resolveWithError(id, "Failed to launch photo picker: " + e.getMessage());
-            }
-        });
-    }
-    
-    public void handlePhotoPickerResult(Uri imageUri) {
-        if (currentRequestId == null) {
-            Log.e(TAG, "No active request ID for photo picker result");
-            return;
+        UploadRequest request = new UploadRequest(id, options);
+        if (requests.putIfAbsent(id, request) != null) {
+            // The id still belongs to a running request: only this call fails, in the wrapper
+            pipeline().events().record(PipelineEvent.DUPLICATE_REQUEST, id);
+            return false;
+        }
+        if (request.options.has("maxConcurrentUploads")) {
+            pipeline().setMaxConcurrentUploads(request.options.optInt("maxConcurrentUploads",
+                UploadPipeline.DEFAULT_MAX_CONCURRENT_UPLOADS));
         }
         
-        String requestId = currentRequestId;
-        Log.d(TAG, "Photo selected: " + imageUri + " for request: " + requestId);
+        // The ticket does not depend on the image: fetch it while the user is still picking
+        request.setPrefetchedTicket(pipeline().requestTicket(request.options));
         
-        // Process image on background thread
-        executorService.execute(() -> {
-            try {
-                processAndUploadImage(imageUri, requestId);
-            } catch (Exception e) {
-                Log.e(TAG, "Error processing image", e);
-                resolveWithError(requestId, "Error processing image: " + e.getMessage());
-            }
+        // Queue for the photo picker on UI thread
+        activity.runOnUiThread(() -> {
+            pickerQueue.add(request);
+            launchNextPicker();
         });
+        return true;
     }
     
-    public void handlePhotoPickerCancelled() {
-        if (currentRequestId == null) {
-            return;
+    /**
+     * NativePhotoPicker: lets the user pick a photo and hands it to the page without
+     * uploading it. Resolves with { url, mimeType, width, height, size, expiresInMs },
+     * where url serves the file from disk for fetch() or an img tag until it expires
+     * (allowMultiple: { success, photos: [...] }). The photo is kept as picked unless
+     * options.processImage is true (then maxDimension, quality and format apply);
+     * with options.thumbnail it also carries a blurHash.
+     * Called from JavaScript: window.NativePhotoPicker.pickPhoto(options)
+     *
+     * @return false if the id is still in use by another request, as for pickAndUploadFortunePhoto
+     */
+    @JavascriptInterface
+    public boolean pickPhoto(String jsonPayload) {
+        String id = "0";
+        JSONObject options = null;
+        try {
+            if (jsonPayload != null) {
+                JSONObject obj = new JSONObject(jsonPayload);
+                id = obj.optString("id", "0");
+                options = obj.optJSONObject("options");
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to parse JSON payload", e);
+            resolveWithError(id, "Invalid request payload");
+            return true;
         }
+        pipeline().events().record(PipelineEvent.REQUEST_RECEIVED, id, "pickPhoto",
+            jsonPayload != null ? jsonPayload.length() : 0, 0);
         
-        String requestId = currentRequestId;
-        currentRequestId = null;
-        Log.d(TAG, "Photo picker cancelled for request: " + requestId);
-        resolveWithCancelled(requestId);
+        UploadRequest request = new UploadRequest(id, options, true);
+        if (requests.putIfAbsent(id, request) != null) {
+            // The id still belongs to a running request: only this call fails, in the wrapper
+            pipeline().events().record(PipelineEvent.DUPLICATE_REQUEST, id);
+            return false;
+        }
+        activity.runOnUiThread(() -> {
+            pickerQueue.add(request);
+            launchNextPicker();
+        });
+        return true;
     }
     
-    private void processAndUploadImage(Uri imageUri, String requestId) {
-        Log.d(TAG, "Step 1: Reading image from URI: " + imageUri);
-        
-        int width = 0;
-        int height = 0;
-        byte[] imageBytes = null;
-        
-        try (InputStream inputStream = activity.getContentResolver().openInputStream(imageUri)) {
-            if (inputStream == null) {
-                throw new IOException("Failed to open input stream for image");
-            }
-            
-            // Read bitmap to get dimensions
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(inputStream, null, options);
-            width = options.outWidth;
-            height = options.outHeight;
-            Log.d(TAG, "Image dimensions: " + width + "x" + height);
-            
-            // Read full image bytes
-            inputStream.close();
-            try (InputStream imageStream = activity.getContentResolver().openInputStream(imageUri)) {
-                if (imageStream == null) {
-                    throw new IOException("Failed to open image stream");
-                }
-                
-                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                byte[] chunk = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = imageStream.read(chunk)) != -1) {
-                    buffer.write(chunk, 0, bytesRead);
-                }
-                imageBytes = buffer.toByteArray();
-                Log.d(TAG, "Image size: " + imageBytes.length + " bytes");
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Error reading image", e);
-            resolveWithError(requestId, "Error reading image: " + e.getMessage());
-            return;
-        }
-        
-        // Get server URL from Capacitor config
-        String serverUrl = getServerUrl();
-        if (serverUrl == null || serverUrl.isEmpty()) {
-            Log.e(TAG, "Server URL not available");
-            resolveWithError(requestId, "Server URL not configured");
+    private void launchNextPicker() {
+        if (pickerRequest != null || pickerQueue.isEmpty()) {
             return;
         }
-        
-        Log.d(TAG, "Step 2: Requesting upload ticket from: " + serverUrl);
-        Log.d(TAG, "Using access token: " + (accessToken != null && !accessToken.isEmpty() ? "***" + accessToken.substring(Math.max(0, accessToken.length() - 4)) : "none"));
-        
-        // Step 1: Issue upload ticket
-        JSONObject ticketResponse = issueUploadTicket(serverUrl, requestId);
-        if (ticketResponse == null) {
-            return; // Error already resolved
-        }
-        
-        // Support BOTH legacy and new ticket formats
-        String uploadUrl = ticketResponse.optString("url", "");
-        String ticketId = ticketResponse.optString("ticketId", "");
-        String bucket = ticketResponse.optString("bucket", "photos");
-        
-        // Handle bucketRelativePath: new format has it, legacy format has "path"
-        String bucketRelativePath = ticketResponse.optString("bucketRelativePath", "");
-        if (bucketRelativePath.isEmpty()) {
-            bucketRelativePath = ticketResponse.optString("path", "");
-        }
-        
-        // Handle formFieldName: default to "file"
-        String formFieldName = ticketResponse.optString("formFieldName", "file");
-        
-        // Handle headers: new format has "requiredHeaders", legacy has "headers"
-        JSONObject requiredHeaders = ticketResponse.optJSONObject("requiredHeaders");
-        if (requiredHeaders == null) {
-            requiredHeaders = ticketResponse.optJSONObject("headers");
-        }
-        
-        // Extract fortune_id: prefer from options, then from ticket, then fallback to ticketId
-        String fortuneId = null;
-        if (currentOptions != null) {
-            fortuneId = currentOptions.optString("fortuneId", null);
-        }
-        if (fortuneId == null || fortuneId.isEmpty()) {
-            fortuneId = ticketResponse.optString("fortuneId", null);
-            if (fortuneId == null || fortuneId.isEmpty()) {
-                fortuneId = ticketResponse.optString("fortune_id", null);
-            }
-        }
-        if (fortuneId == null || fortuneId.isEmpty()) {
-            fortuneId = ticketId; // Fallback to ticketId
+        UploadRequest request = pickerQueue.poll();
+        pickerRequest = request;
+        
+        pipeline().events().record(PipelineEvent.PICKER_LAUNCHED, request.id);
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType(IMAGE_MIME_TYPE);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        if (request.allowMultiple) {
+            intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
         }
         
-        // Log upload URL (sanitized - show host + path prefix, no token)
-        String uploadUrlLog = uploadUrl;
         try {
-            URL urlObj = new URL(uploadUrl);
-            String path = urlObj.getPath();
-            if (path.length() > 100) path = path.substring(0, 100) + "...";
-            uploadUrlLog = urlObj.getHost() + path;
+            activity.startPhotoPicker(intent, this);
         } catch (Exception e) {
-            if (uploadUrl.length() > 100) uploadUrlLog = uploadUrl.substring(0, 100) + "...";
+            Log.e(TAG, "Failed to launch photo picker", e);
+            pickerRequest = null;
+            resolveWithError(request.id, "Failed to launch photo picker: " + e.getMessage());
+            launchNextPicker();
         }
-        
-        Log.d(TAG, "TICKET_OK uploadUrl=" + uploadUrlLog + " bucketRelativePath=" + bucketRelativePath);
-        
-        if (uploadUrl.isEmpty() || bucketRelativePath.isEmpty()) {
-            Log.e(TAG, "Invalid ticket response: missing url or path");
-            resolveWithError(requestId, "Invalid upload ticket response: missing url or path");
+    }
+    
+    /**
+     * Called on the UI thread with the photos picked for the request whose picker is open.
+     */
+    public void handlePhotoPickerResult(List<Uri> imageUris) {
+        UploadRequest request = pickerRequest;
+        pickerRequest = null;
+        if (request == null) {
+            Log.e(TAG, "No active request ID for photo picker result");
             return;
         }
-        
-        if (requiredHeaders == null) {
-            Log.w(TAG, "No headers/requiredHeaders in ticket, using default x-upsert:true");
-        }
-        
-        // Step 2: Upload to Supabase using POST multipart/form-data
-        boolean uploadSuccess = uploadToSupabaseMultipart(uploadUrl, imageBytes, formFieldName, requiredHeaders, requestId);
-        if (!uploadSuccess) {
-            return; // Error already resolved
+        if (request.cancelled) {
+            // Already resolved as cancelled while the picker was open
+            abandonPrefetchedTicket(request);
+            launchNextPicker();
+            return;
         }
         
-        // Step 2.5: Verify upload by checking if object exists in Storage
-        boolean verifySuccess = verifyUploadInStorage(serverUrl, bucket, bucketRelativePath, requestId);
-        if (!verifySuccess) {
-            Log.e(TAG, "VERIFY_FAIL: Upload did not persist, stopping");
-            resolveWithError(requestId, "Upload verification failed: file not found in storage");
+        // Single-photo requests only ever upload the first pick
+        List<Uri> picked = request.allowMultiple ? imageUris : imageUris.subList(0, 1);
+        pipeline().events().record(PipelineEvent.PHOTOS_PICKED, request.id, picked.size(), 0);
+        if (request.pickOnly) {
+            pipeline().preparePicked(request, new ArrayList<>(picked));
+            launchNextPicker();
             return;
         }
+        request.expectResults(picked.size());
         
-        // Step 3: Finalize with retry logic (max 3 attempts)
-        int maxRetries = 3;
-        JSONObject finalizeResponse = null;
-        boolean finalizeSuccess = false;
-        
-        for (int retryAttempt = 0; retryAttempt < maxRetries; retryAttempt++) {
-            Log.d(TAG, "Finalize attempt " + (retryAttempt + 1) + "/" + maxRetries);
-            finalizeResponse = finalizeFortunePhoto(serverUrl, fortuneId, bucket, bucketRelativePath, width, height, imageBytes.length, requestId, retryAttempt, maxRetries);
-            
-            if (finalizeResponse != null) {
-                finalizeSuccess = true;
-                break; // Success, exit retry loop
-            }
-            
-            // If this is the last attempt, exit
-            if (retryAttempt == maxRetries - 1) {
-                Log.e(TAG, "Failed to finalize photo after " + maxRetries + " attempts");
-                return; // Error already resolved in finalizeFortunePhoto
-            }
-            
-            // Wait before retry (exponential backoff: 1s, 2s)
-            int waitTime = 1000 * (retryAttempt + 1);
-            int retriesLeft = maxRetries - retryAttempt - 1;
-            Log.d(TAG, "Retrying finalize in " + waitTime + "ms (left=" + retriesLeft + ")");
-            try {
-                Thread.sleep(waitTime);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return;
-            }
+        // Process images on the worker pool
+        for (int i = 0; i < picked.size(); i++) {
+            pipeline().submit(new UploadJob(request, i, picked.get(i)));
         }
         
-        if (!finalizeSuccess) {
-            Log.e(TAG, "Failed to finalize photo after " + maxRetries + " attempts");
-            resolveWithError(requestId, "Failed to finalize photo after " + maxRetries + " attempts");
+        launchNextPicker();
+    }
+    
+    public void handlePhotoPickerCancelled() {
+        UploadRequest request = pickerRequest;
+        pickerRequest = null;
+        if (request == null) {
             return;
         }
         
-        Log.d(TAG, "Upload completed successfully for request: " + requestId);
-        
-        // Return success - extract signedUrl and replaced from finalize response
-        JSONObject result = new JSONObject();
-        try {
-            String signedUrl = finalizeResponse.optString("signedUrl", "");
-            boolean replaced = finalizeResponse.optBoolean("replaced", false);
-            result.put("success", true);
-            result.put("signedUrl", signedUrl);
-            result.put("replaced", replaced);
-            result.put("path", bucketRelativePath); // bucket-relative path: userId/file.jpg
-            result.put("width", width);
-            result.put("height", height);
-        } catch (JSONException e) {
-            Log.e(TAG, "Error creating result JSON", e);
+        pipeline().events().record(PipelineEvent.PICKER_CANCELLED, request.id);
+        abandonPrefetchedTicket(request);
+        if (!request.cancelled) {
+            resolveWithCancelled(request.id);
         }
-        
-        resolveWithSuccess(requestId, result);
+        launchNextPicker();
     }
     
-    private JSONObject issueUploadTicket(String serverUrl, String requestId) {
-        try {
-            // Use Supabase Edge Function URL
-            String supabaseUrl = serverUrl.contains("supabase.co") ? serverUrl : "https://pegiensgnptpdnfopnoj.supabase.co";
-            URL url = new URL(supabaseUrl + "/functions/v1/issue-fortune-upload-ticket");
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("Accept", "application/json");
-            
-            // Add Authorization header if token is available
-            if (accessToken != null && !accessToken.isEmpty()) {
-                conn.setRequestProperty("Authorization", "Bearer " + accessToken);
-                Log.d(TAG, "Added Authorization header to ticket request");
-            } else {
-                Log.w(TAG, "No access token available for ticket request");
-            }
-            
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(10000);
-            conn.setReadTimeout(30000);
-            
-            // Send request body (empty or with metadata if needed)
-            JSONObject requestBody = new JSONObject();
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = requestBody.toString().getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
-            
-            int responseCode = conn.getResponseCode();
-            Log.d(TAG, "Upload ticket response code: " + responseCode);
-            
-            if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_CREATED) {
-                String errorMsg = readErrorResponse(conn);
-                Log.e(TAG, "Failed to issue upload ticket: " + responseCode + " - " + errorMsg);
-                resolveWithError(requestId, "Failed to issue upload ticket: " + responseCode);
-                return null;
+    /**
+     * Cancels an upload started by pickAndUploadFortunePhoto and resolves its promise
+     * with { cancelled: true }. Called from JavaScript: window.NativeUploader.cancel(id)
+     */
+    @JavascriptInterface
+    public void cancelUpload(String id) {
+        pipeline().events().record(PipelineEvent.CANCEL_REQUESTED, id);
+        activity.runOnUiThread(() -> {
+            if (!cancelPicker(id)) {
+                pipeline().cancelAsync(id);
             }
-            
-            String response = readResponse(conn);
-            Log.d(TAG, "Upload ticket response: " + response);
-            
-            return new JSONObject(response);
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error issuing upload ticket", e);
-            resolveWithError(requestId, "Error issuing upload ticket: " + e.getMessage());
-            return null;
-        }
+        });
     }
     
-    private boolean verifyUploadInStorage(String serverUrl, String bucket, String bucketRelativePath, String requestId) {
+    /**
+     * Returns upload metrics since app start as JSON: per-stage latency histograms
+     * (microseconds, successful attempts), retries, parked jobs and failures by kind,
+     * uploaded bytes and throughput, job outcomes and dedup hits.
+     * Called from JavaScript: window.NativeUploader.getMetrics()
+     */
+    @JavascriptInterface
+    public String getMetrics() {
         try {
-            // Use Supabase REST API to list objects
-            String supabaseUrl = serverUrl.contains("supabase.co") ? serverUrl : "https://pegiensgnptpdnfopnoj.supabase.co";
-            
-            // Extract folder and filename from bucketRelativePath
-            int lastSlash = bucketRelativePath.lastIndexOf('/');
-            String folder = lastSlash >= 0 ? bucketRelativePath.substring(0, lastSlash) : "";
-            String filename = lastSlash >= 0 ? bucketRelativePath.substring(lastSlash + 1) : bucketRelativePath;
-            
-            // Build list API URL: /storage/v1/object/list/{bucket}/{folder}?search={filename}
-            StringBuilder listUrlBuilder = new StringBuilder(supabaseUrl);
-            listUrlBuilder.append("/storage/v1/object/list/").append(bucket);
-            if (!folder.isEmpty()) {
-                // URL-encode the entire folder path
-                listUrlBuilder.append("/").append(java.net.URLEncoder.encode(folder, StandardCharsets.UTF_8).replace("+", "%20"));
-            }
-            listUrlBuilder.append("?search=").append(java.net.URLEncoder.encode(filename, StandardCharsets.UTF_8));
-            String listUrl = listUrlBuilder.toString();
-            
-            URL url = new URL(listUrl);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setRequestProperty("Accept", "application/json");
-            
-            // Add Authorization header
-            if (accessToken != null && !accessToken.isEmpty()) {
-                conn.setRequestProperty("Authorization", "Bearer " + accessToken);
-            } else {
-                Log.w(TAG, "No access token for verification");
-                return false;
-            }
-            
-            conn.setConnectTimeout(10000);
-            conn.setReadTimeout(30000);
-            
-            int responseCode = conn.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                String response = readResponse(conn);
-                try {
-                    org.json.JSONArray files = new org.json.JSONArray(response);
-                    int matches = files.length();
-                    Log.d(TAG, "VERIFY_OK matches=" + matches);
-                    return matches > 0;
-                } catch (Exception e) {
-                    Log.e(TAG, "Failed to parse verification response", e);
-                    return false;
-                }
-            } else {
-                Log.e(TAG, "VERIFY_FAIL status=" + responseCode);
-                return false;
-            }
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error verifying upload in storage", e);
-            return false;
+            return pipeline().metricsSnapshot().toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating metrics JSON", e);
+            return "{}";
         }
     }
     
-    private boolean uploadToSupabaseMultipart(String uploadUrl, byte[] imageBytes, String formFieldName, JSONObject requiredHeaders, String requestId) {
-        try {
-            URL url = new URL(uploadUrl);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            
-            // Use POST multipart/form-data (required by createSignedUploadUrl)
-            String boundary = "----WebKitFormBoundary" + Long.toString(System.currentTimeMillis());
-            conn.setRequestMethod("POST");
-            
-            // Apply required headers from ticket (e.g., x-upsert: true)
-            if (requiredHeaders != null) {
-                java.util.Iterator<String> keys = requiredHeaders.keys();
-                while (keys.hasNext()) {
-                    String key = keys.next();
-                    String value = requiredHeaders.optString(key, "");
-                    if (!value.isEmpty()) {
-                        conn.setRequestProperty(key, value);
-                        Log.d(TAG, "Applied required header: " + key + ": " + value);
-                    }
-                }
-            } else {
-                // Fallback: always include x-upsert if not provided
-                conn.setRequestProperty("x-upsert", "true");
-            }
-            
-            // Let runtime set Content-Type with boundary
-            conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(10000);
-            conn.setReadTimeout(60000); // Longer timeout for upload
-            
-            try (OutputStream os = conn.getOutputStream()) {
-                // Write multipart form data
-                String lineEnd = "\r\n";
-                String twoHyphens = "--";
-                
-                // Start boundary
-                os.write((twoHyphens + boundary + lineEnd).getBytes(StandardCharsets.UTF_8));
-                // Content-Disposition header
-                os.write(("Content-Disposition: form-data; name=\"" + formFieldName + "\"; filename=\"photo.jpg\"" + lineEnd).getBytes(StandardCharsets.UTF_8));
-                // Content-Type header
-                os.write(("Content-Type: image/jpeg" + lineEnd).getBytes(StandardCharsets.UTF_8));
-                // Empty line before body
-                os.write(lineEnd.getBytes(StandardCharsets.UTF_8));
-                // File content
-                os.write(imageBytes, 0, imageBytes.length);
-                // End boundary
-                os.write((lineEnd + twoHyphens + boundary + twoHyphens + lineEnd).getBytes(StandardCharsets.UTF_8));
-            }
-            
-            int responseCode = conn.getResponseCode();
-            
-            String uploadResponseText = "";
-            try {
-                uploadResponseText = readResponse(conn);
-            } catch (Exception e) {
-                Log.w(TAG, "Could not read upload response", e);
-            }
-            
-            // Accept 200, 201, or 204 as success
-            String bodyPreview = uploadResponseText != null && !uploadResponseText.isEmpty() ? uploadResponseText : "";
-            if (bodyPreview.length() > 300) {
-                bodyPreview = bodyPreview.substring(0, 300);
-            }
-            
-            if (responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_CREATED || responseCode == HttpURLConnection.HTTP_NO_CONTENT) {
-                Log.d(TAG, "UPLOAD_OK status=" + responseCode + " body=" + bodyPreview);
-            } else {
-                Log.e(TAG, "UPLOAD_FAIL status=" + responseCode + " body=" + bodyPreview);
-                resolveWithError(requestId, "Failed to upload image: " + responseCode);
-                return false;
-            }
-            
-            // Small delay to ensure object is persisted
-            try {
-                Thread.sleep(1000); // 1 second
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-            
-            return true;
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error uploading to Supabase", e);
-            resolveWithError(requestId, "Error uploading image: " + e.getMessage());
-            return false;
-        }
+    /**
+     * Sends the metrics as a native-uploader:metrics event every intervalMs while
+     * anything changed; 0 stops. Called from JavaScript:
+     * window.NativeUploader.setMetricsExportInterval(intervalMs)
+     */
+    @JavascriptInterface
+    public void setMetricsExportInterval(long intervalMs) {
+        pipeline(); // Attaches the exporter
+        MetricsExporter exporter = metricsExporter;
+        activity.runOnUiThread(() -> exporter.setInterval(intervalMs));
     }
     
-    private JSONObject finalizeFortunePhoto(String serverUrl, String fortuneId, String bucket, String bucketRelativePath, int width, int height, int sizeBytes, String requestId, int retryAttempt, int maxRetries) {
-        try {
-            // Use Supabase Edge Function URL
-            String supabaseUrl = serverUrl.contains("supabase.co") ? serverUrl : "https://pegiensgnptpdnfopnoj.supabase.co";
-            URL url = new URL(supabaseUrl + "/functions/v1/finalize-fortune-photo");
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("Accept", "application/json");
-            
-            // Add Authorization header if token is available
-            if (accessToken != null && !accessToken.isEmpty()) {
-                conn.setRequestProperty("Authorization", "Bearer " + accessToken);
-            } else {
-                Log.w(TAG, "No access token available for finalize request");
-            }
-            
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(10000);
-            conn.setReadTimeout(30000);
-            
-            // Send finalize payload - backend expects: fortune_id, bucket, path (bucket-relative, NO prefix)
-            JSONObject requestBody = new JSONObject();
-            requestBody.put("fortune_id", fortuneId);
-            requestBody.put("bucket", bucket);
-            requestBody.put("path", bucketRelativePath); // bucket-relative: userId/file.jpg (NO "photos/" prefix)
-            requestBody.put("mime", "image/jpeg");
-            if (width > 0) requestBody.put("width", width);
-            if (height > 0) requestBody.put("height", height);
-            if (sizeBytes > 0) requestBody.put("size_bytes", sizeBytes);
-            
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = requestBody.toString().getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
-            
-            int responseCode = conn.getResponseCode();
-            String responseBody = readResponse(conn);
-            String responsePreview = responseBody.length() > 300 ? responseBody.substring(0, 300) : responseBody;
-            
-            if (responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_CREATED) {
-                JSONObject responseJson = new JSONObject(responseBody);
-                String signedUrl = responseJson.optString("signedUrl", "");
-                Log.d(TAG, "FINALIZE_OK signedUrl=" + (signedUrl.length() > 80 ? signedUrl.substring(0, 80) + "..." : signedUrl));
-                return responseJson;
-            } else {
-                Log.e(TAG, "FINALIZE_FAIL status=" + responseCode + " body=" + responsePreview);
-                // Only resolve error on last attempt
-                if (retryAttempt == maxRetries - 1) {
-                    resolveWithError(requestId, "Failed to finalize photo after " + maxRetries + " attempts: " + responseCode);
-                }
-                return null;
-            }
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error finalizing photo", e);
-            if (retryAttempt == maxRetries - 1) {
-                resolveWithError(requestId, "Error finalizing photo: " + e.getMessage());
+    /** @return true if the request had not got past the picker yet */
+    private boolean cancelPicker(String id) {
+        if (pickerRequest != null && pickerRequest.id.equals(id)) {
+            // The system picker cannot be closed from here; its result is ignored
+            pickerRequest.cancelled = true;
+            resolveWithCancelled(id);
+            return true;
+        }
+        for (UploadRequest queued : pickerQueue) {
+            if (queued.id.equals(id)) {
+                pickerQueue.remove(queued);
+                abandonPrefetchedTicket(queued);
+                resolveWithCancelled(id);
+                return true;
             }
-            return null;
         }
+        return false;
     }
     
-    private String getServerUrl() {
-        try {
-            // Try to get from Capacitor Bridge
-            String serverUrl = activity.getServerUrl();
-            if (serverUrl != null && !serverUrl.isEmpty()) {
-                return serverUrl;
-            }
-            
-            // Fallback: read from capacitor.config.json
-            try (InputStream is = activity.getAssets().open("capacitor.config.json")) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-                StringBuilder sb = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    sb.append(line);
-                }
-                
-                JSONObject config = new JSONObject(sb.toString());
-                JSONObject server = config.optJSONObject("server");
-                if (server != null) {
-                    return server.optString("url", "");
-                }
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error reading server URL", e);
+    private static void abandonPrefetchedTicket(UploadRequest request) {
+        UploadTicketCache.Prefetch prefetch = request.claimPrefetchedTicket();
+        if (prefetch != null) {
+            prefetch.abandon(); // Keep the ticket for the next pick
         }
-        
-        // Final fallback
-        return "https://fortune-magnet.vercel.app";
     }
     
-    private String readResponse(HttpURLConnection conn) throws IOException {
-        InputStream inputStream = conn.getResponseCode() >= 200 && conn.getResponseCode() < 300
-            ? conn.getInputStream()
-            : conn.getErrorStream();
-        
-        if (inputStream == null) {
-            return "";
+    /**
+     * Hands the WebView results that finished while it was gone (app killed,
+     * activity recreated) and resumes queued uploads. The bootstrap calls this once
+     * the page's DOM is ready, on every page load.
+     * Called from JavaScript: window.AndroidNativeUploader.onBootstrapReady()
+     */
+    @JavascriptInterface
+    public void onBootstrapReady() {
+        pipeline().events().record(PipelineEvent.BOOTSTRAP_READY, null);
+        activity.onUploaderReady();
+        pipeline().redeliverPending();
+        pipeline().resumeOutbox();
+    }
+    
+    /**
+     * Called when the activity is destroyed. Its page and promises go with it, so uploads
+     * nobody can receive are cancelled; outbox uploads keep running in the pipeline and
+     * deliver to the next WebView.
+     */
+    public void detach() {
+        UploadPipeline current = pipeline;
+        if (current == null) {
+            return; // The page never called in: nothing to cancel
         }
-        
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-        StringBuilder response = new StringBuilder();
-        String line;
-        while ((line = reader.readLine()) != null) {
-            response.append(line);
+        current.clearListener(this);
+        metricsExporter.stop();
+        for (UploadRequest queued : pickerQueue) {
+            abandonPrefetchedTicket(queued);
+        }
+        pickerQueue.clear();
+        for (UploadRequest request : requests.values()) {
+            if (!request.offlineQueue) {
+                current.cancelAsync(request.id);
+            }
         }
-        reader.close();
-        return response.toString();
+        requests.clear();
     }
     
-    private String readErrorResponse(HttpURLConnection conn) {
-        try {
-            return readResponse(conn);
-        } catch (Exception e) {
-            return "Unknown error";
-        }
+    @Override
+    public void onProgress(String requestId, int index, int count, String stage, long bytesSent, long totalBytes) {
+        progressDispatcher.update(requestId, index, count, stage, bytesSent, totalBytes);
     }
     
-    private void resolveWithSuccess(String requestId, JSONObject result) {
-        currentRequestId = null;
-        currentOptions = null;
-        String js = String.format(
-            "window.__resolveNativeUpload && window.__resolveNativeUpload('%s', %s);",
-            requestId, result.toString()
-        );
-        activity.runOnUiThread(() -> webView.evaluateJavascript(js, null));
+    @Override
+    public void onRequestFinished(String requestId, JSONObject result) {
+        requests.remove(requestId);
+        progressDispatcher.forget(requestId);
+        deliverResult(requestId, result);
+    }
+    
+    @Override
+    public void onAccessTokenExpiring() {
+        activity.runOnUiThread(() -> webView.evaluateJavascript(
+            "(window.__nativeUploaderRefreshToken && window.__nativeUploaderRefreshToken())", null));
     }
     
+    /** Fails a whole request before any photo was picked. */
     private void resolveWithError(String requestId, String errorMessage) {
-        currentRequestId = null;
-        currentOptions = null;
-        JSONObject error = new JSONObject();
-        try {
-            error.put("success", false);
-            error.put("error", errorMessage);
-        } catch (JSONException e) {
-            Log.e(TAG, "Error creating error JSON", e);
-        }
-        
-        String js = String.format(
-            "window.__resolveNativeUpload && window.__resolveNativeUpload('%s', %s);",
-            requestId, error.toString()
-        );
-        activity.runOnUiThread(() -> webView.evaluateJavascript(js, null));
+        requests.remove(requestId);
+        deliverResult(requestId, UploadPipeline.errorResult(errorMessage));
     }
     
     private void resolveWithCancelled(String requestId) {
-        currentRequestId = null;
-        currentOptions = null;
-        JSONObject cancelled = new JSONObject();
-        try {
-            cancelled.put("cancelled", true);
-        } catch (JSONException e) {
-            Log.e(TAG, "Error creating cancelled JSON", e);
-        }
-        
+        requests.remove(requestId);
+        deliverResult(requestId, UploadPipeline.cancelledResult());
+    }
+    
+    /**
+     * Resolves the JS promise. The page answers true once it took the result (a live
+     * promise or a native-uploader:result listener), and only then is it dropped from the outbox.
+     */
+    private void deliverResult(String requestId, JSONObject result) {
         String js = String.format(
-            "window.__resolveNativeUpload && window.__resolveNativeUpload('%s', %s);",
-            requestId, cancelled.toString()
+            "(window.__resolveNativeUpload ? window.__resolveNativeUpload('%s', %s) : false)",
+            requestId, result.toString()
         );
-        activity.runOnUiThread(() -> webView.evaluateJavascript(js, null));
+        activity.runOnUiThread(() -> webView.evaluateJavascript(js, value -> {
+            if ("true".equals(value)) {
+                pipeline().acknowledge(requestId);
+            }
+        }));
     }
 }
@@ -0,0 +1,111 @@
+package com.fortunemagnet.app;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+
+import com.fortunemagnet.upload.NetworkPolicy;
+
+/**
+ * Follows the default network through ConnectivityManager callbacks and keeps the
+ * engine's NetworkPolicy up to date: whether there is a network, whether it is
+ * metered and what upstream bandwidth the platform expects of it. The listener
+ * hears about every change that matters to queued uploads.
+ */
+final class NetworkMonitor extends ConnectivityManager.NetworkCallback {
+    private static final String TAG = "NativeUploaderBridge";
+
+    interface Listener {
+        /** The network was lost, replaced, came back or changed metering; called on a ConnectivityManager thread. */
+        void onNetworkChanged();
+    }
+
+    private final ConnectivityManager connectivity;
+    private final NetworkPolicy policy;
+    private final Listener listener;
+    private boolean started; // guarded by this
+
+    NetworkMonitor(Context context, NetworkPolicy policy, Listener listener) {
+        this.connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.policy = policy;
+        this.listener = listener;
+    }
+
+    /** Reads the current network and registers for changes; only the first call does anything. */
+    synchronized void start() {
+        if (started || connectivity == null) {
+            return;
+        }
+        started = true;
+        Network active = connectivity.getActiveNetwork();
+        NetworkCapabilities capabilities = active != null ? connectivity.getNetworkCapabilities(active) : null;
+        if (capabilities != null) {
+            policy.onNetworkAvailable(active, isMetered(capabilities), capabilities.getLinkUpstreamBandwidthKbps());
+        } else {
+            policy.onNetworkLost();
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                connectivity.registerDefaultNetworkCallback(this);
+            } else {
+                connectivity.registerNetworkCallback(new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build(), this);
+            }
+        } catch (RuntimeException e) {
+            // SecurityException on some OEM builds, or the app's callback limit was reached
+            Log.w(TAG, "Cannot follow network changes, uploads keep fixed settings", e);
+        }
+    }
+
+    @Override
+    public void onAvailable(Network network) {
+        // From API 26 onCapabilitiesChanged always follows onAvailable; before that it may not
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            NetworkCapabilities capabilities = connectivity.getNetworkCapabilities(network);
+            if (capabilities != null) {
+                onCapabilitiesChanged(network, capabilities);
+            }
+        }
+    }
+
+    @Override
+    public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+        // API 23 reports every network with internet access, not only the default one
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N && !network.equals(connectivity.getActiveNetwork())) {
+            return;
+        }
+        if (policy.onNetworkAvailable(network, isMetered(capabilities), capabilities.getLinkUpstreamBandwidthKbps())) {
+            listener.onNetworkChanged();
+        }
+    }
+
+    @Override
+    public void onLost(Network network) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            // Maybe not the default network, or another one already took over
+            Network active = connectivity.getActiveNetwork();
+            NetworkCapabilities capabilities = active != null ? connectivity.getNetworkCapabilities(active) : null;
+            if (capabilities != null) {
+                onCapabilitiesChanged(active, capabilities);
+                return;
+            }
+        }
+        // The default network callback reports the next default network, if any, through onAvailable
+        policy.onNetworkLost();
+        listener.onNetworkChanged();
+    }
+
+    private static boolean isMetered(NetworkCapabilities capabilities) {
+        if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)) {
+            return false;
+        }
+        // e.g. 5G plans that do not count traffic at the moment
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.R
+            || !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_TEMPORARILY_NOT_METERED);
+    }
+}
@@ -0,0 +1,61 @@
+package com.fortunemagnet.app;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finishes queued uploads once the device is online, also after the app was
+ * killed. WorkManager re-runs it with backoff until the outbox is empty.
+ */
+public class OutboxWorker extends Worker {
+    private static final String UNIQUE_WORK_NAME = "native-upload-outbox";
+    private static final String UNMETERED_WORK_NAME = "native-upload-outbox-unmetered";
+    // WorkManager stops a worker after 10 minutes
+    private static final long DRAIN_TIMEOUT_MS = 8 * 60 * 1000;
+
+    public OutboxWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    static void schedule(Context context) {
+        schedule(context, false);
+    }
+
+    /** @param unmetered wait for an unmetered network, for originals the page deferred until then */
+    static void schedule(Context context, boolean unmetered) {
+        Constraints constraints = new Constraints.Builder()
+            .setRequiredNetworkType(unmetered ? NetworkType.UNMETERED : NetworkType.CONNECTED)
+            .build();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(OutboxWorker.class)
+            .setConstraints(constraints)
+            .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 30, TimeUnit.SECONDS)
+            .build();
+        WorkManager.getInstance(context)
+            .enqueueUniqueWork(unmetered ? UNMETERED_WORK_NAME : UNIQUE_WORK_NAME, ExistingWorkPolicy.KEEP, request);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        UploadPipeline pipeline = UploadPipeline.get(getApplicationContext());
+        pipeline.events().record(PipelineEvent.OUTBOX_DRAIN, null, getRunAttemptCount(), 0);
+        try {
+            boolean drained = pipeline.drainOutbox(DRAIN_TIMEOUT_MS);
+            return drained ? Result.success() : Result.retry();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.retry();
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.fortunemagnet.app;
+
+import android.webkit.WebResourceResponse;
+
+import com.fortunemagnet.upload.EventLog;
+import com.fortunemagnet.upload.IoBuffers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Fortune photos on disk, keyed by "{bucket}/{path}" rather than by URL: every
+ * signed URL of a photo carries a new token, which defeats the WebView's own
+ * HTTP cache. A photo is put in right after it was uploaded, so showing it costs
+ * no download; anything else the page loads goes through the WebView as it would
+ * without the cache. Least recently used photos go first once the cache is over
+ * its size; a read bumps the file's modification time, so the order survives
+ * restarts.
+ *
+ * Photos belong to the signed-in user, in a directory of their own. While nobody
+ * is signed in nothing is served or kept, and once another user signs in the
+ * photos of everyone else are deleted, whether or not their signed URLs still work.
+ */
+final class PhotoCache {
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** A photo on disk: "{sha256 of the key}.{image subtype}". */
+    private static final class Entry {
+        final String fileName;
+        final long size;
+
+        Entry(String fileName, long size) {
+            this.fileName = fileName;
+            this.size = size;
+        }
+    }
+
+    private final File root;
+    private final long maxBytes;
+    private final EventLog events; // never the key: it names the user's storage folder
+    private File dir;                             // guarded by this; the owner's photos, null while nobody is signed in
+    private int generation;                       // guarded by this; bumped when the owner changes
+    private LinkedHashMap<String, Entry> entries; // key hash -> entry, access order; loaded on first use
+    private long totalBytes;                      // guarded by this, with entries
+
+    /** Cheap enough for the main thread: nothing touches the disk until the first lookup. */
+    PhotoCache(File root, long maxBytes, EventLog events) {
+        this.root = root;
+        this.maxBytes = maxBytes;
+        this.events = events;
+    }
+
+    /**
+     * Scopes the cache to a user: their photos are kept under a hash of their id, and
+     * another user's are deleted. Downloads still running for the previous owner are not kept.
+     *
+     * @param userId the signed-in user, or null to serve and keep nothing until one is set
+     */
+    synchronized void setOwner(String userId) {
+        File owner = userId != null ? new File(root, sha256Hex(userId)) : null;
+        if (owner == null ? dir == null : owner.equals(dir)) {
+            return;
+        }
+        dir = owner;
+        generation++;
+        entries = null;
+        totalBytes = 0;
+        if (owner != null) {
+            deleteOtherOwners(owner);
+        }
+    }
+
+    synchronized boolean hasOwner() {
+        return dir != null;
+    }
+
+    /** Adds a photo, moving the file into the cache when possible and copying it otherwise. */
+    void put(String key, String mimeType, File file) {
+        int owner = generation();
+        File target = tmpFile();
+        if (target == null) {
+            return;
+        }
+        if (!file.renameTo(target)) {
+            target.delete();
+            try (InputStream in = new FileInputStream(file)) {
+                put(key, mimeType, in);
+            } catch (IOException e) {
+                events.record(PipelineEvent.PHOTO_CACHE_WRITE_FAIL, null, "copy", 0, 0);
+            }
+            return;
+        }
+        commit(key, mimeType, target, owner);
+    }
+
+    /** Adds a photo from a stream, which the caller closes. */
+    void put(String key, String mimeType, InputStream in) throws IOException {
+        int owner = generation();
+        File target = tmpFile();
+        if (target == null) {
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(target)) {
+            byte[] buffer = IoBuffers.get();
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+        } catch (IOException e) {
+            target.delete();
+            throw e;
+        }
+        commit(key, mimeType, target, owner);
+    }
+
+    /** @return the cached photo, streamed from disk, or null if it is not cached */
+    WebResourceResponse serve(String key) {
+        File file = lookup(key);
+        if (file == null) {
+            return null;
+        }
+        try {
+            InputStream in = new FileInputStream(file);
+            Map<String, String> headers = headers();
+            headers.put("Content-Length", Long.toString(file.length()));
+            return new WebResourceResponse(mimeTypeOf(file.getName()), null, 200, "OK", headers, in);
+        } catch (IOException e) {
+            events.record(PipelineEvent.PHOTO_CACHE_READ_FAIL, null);
+            return null;
+        }
+    }
+
+    synchronized long totalBytes() {
+        entries();
+        return totalBytes;
+    }
+
+    /** @return the file of a cached photo, now the most recently used, or null */
+    synchronized File lookup(String key) {
+        if (dir == null) {
+            return null;
+        }
+        String hash = sha256Hex(key);
+        Entry entry = entries().get(hash);
+        if (entry == null) {
+            return null;
+        }
+        File file = new File(dir, entry.fileName);
+        if (!file.exists()) {
+            entries.remove(hash);
+            totalBytes -= entry.size;
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /** @param owner generation() when the photo started to be written; a photo of an earlier owner is dropped */
+    private synchronized void commit(String key, String mimeType, File tmp, int owner) {
+        if (owner != generation || dir == null) {
+            tmp.delete();
+            return;
+        }
+        LinkedHashMap<String, Entry> map = entries();
+        String hash = sha256Hex(key);
+        Entry replaced = map.remove(hash);
+        if (replaced != null) {
+            new File(dir, replaced.fileName).delete(); // Possibly under another type
+            totalBytes -= replaced.size;
+        }
+        File file = new File(dir, hash + "." + extensionOf(mimeType));
+        if (!tmp.renameTo(file)) {
+            events.record(PipelineEvent.PHOTO_CACHE_WRITE_FAIL, null, "commit", 0, 0);
+            tmp.delete();
+            return;
+        }
+        Entry entry = new Entry(file.getName(), file.length());
+        map.put(hash, entry);
+        totalBytes += entry.size;
+        evict(map);
+    }
+
+    private void evict(LinkedHashMap<String, Entry> map) {
+        Iterator<Entry> it = map.values().iterator();
+        // Least recently used first; the photo just added stays even if it alone is too big
+        while (totalBytes > maxBytes && map.size() > 1 && it.hasNext()) {
+            Entry entry = it.next();
+            if (!new File(dir, entry.fileName).delete()) {
+                events.record(PipelineEvent.PHOTO_CACHE_DELETE_FAIL, null, "evict", 0, 0);
+            }
+            totalBytes -= entry.size;
+            it.remove();
+        }
+    }
+
+    private synchronized int generation() {
+        return generation;
+    }
+
+    /** Deletes the photos of every user but the owner, and any left from before photos had owners. */
+    private void deleteOtherOwners(File owner) {
+        File[] found = root.listFiles();
+        if (found == null) {
+            return;
+        }
+        for (File file : found) {
+            if (file.equals(owner)) {
+                continue;
+            }
+            File[] photos = file.listFiles();
+            if (photos != null) {
+                for (File photo : photos) {
+                    photo.delete();
+                }
+            }
+            if (!file.delete()) {
+                events.record(PipelineEvent.PHOTO_CACHE_DELETE_FAIL, null, "owner", 0, 0);
+            }
+        }
+    }
+
+    private LinkedHashMap<String, Entry> entries() {
+        if (entries == null) {
+            entries = new LinkedHashMap<>(16, 0.75f, true);
+            totalBytes = 0;
+            load();
+        }
+        return entries;
+    }
+
+    private void load() {
+        File[] found = dir != null ? dir.listFiles() : null;
+        if (found == null) {
+            return;
+        }
+        List<File> cached = new ArrayList<>();
+        for (File file : found) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                file.delete(); // A download or copy an earlier process did not finish
+            } else {
+                cached.add(file);
+            }
+        }
+        Collections.sort(cached, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : cached) {
+            String name = file.getName();
+            Entry entry = new Entry(name, file.length());
+            entries.put(name.substring(0, name.indexOf('.') >= 0 ? name.indexOf('.') : name.length()), entry);
+            totalBytes += entry.size;
+        }
+    }
+
+    /** A new file to write a photo into before it is committed, or null without an owner or a usable directory. */
+    private synchronized File tmpFile() {
+        if (dir == null) {
+            return null;
+        }
+        entries(); // Loading clears leftover temporary files: never after this one exists
+        if (!dir.exists() && !dir.mkdirs()) {
+            events.record(PipelineEvent.PHOTO_CACHE_WRITE_FAIL, null, "directory", 0, 0);
+            return null;
+        }
+        try {
+            return File.createTempFile("photo", TMP_SUFFIX, dir);
+        } catch (IOException e) {
+            events.record(PipelineEvent.PHOTO_CACHE_WRITE_FAIL, null, "file", 0, 0);
+            return null;
+        }
+    }
+
+    private static Map<String, String> headers() {
+        Map<String, String> headers = new HashMap<>();
+        // Photos are loaded from the app's web origin
+        headers.put("Access-Control-Allow-Origin", "*");
+        headers.put("Cache-Control", "no-store"); // The native cache is the only copy worth keeping
+        return headers;
+    }
+
+    private static String extensionOf(String mimeType) {
+        String subtype = mimeType.startsWith("image/") ? mimeType.substring("image/".length()) : "";
+        return subtype.matches("[a-z0-9.+-]+") ? subtype : "bin";
+    }
+
+    private static String mimeTypeOf(String fileName) {
+        String extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        return extension.equals("bin") ? "application/octet-stream" : "image/" + extension;
+    }
+
+    private static String sha256Hex(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
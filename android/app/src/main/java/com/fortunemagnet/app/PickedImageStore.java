@@ -0,0 +1,128 @@
+package com.fortunemagnet.app;
+
+import android.util.Log;
+import android.webkit.WebResourceResponse;
+
+import androidx.webkit.WebViewAssetLoader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Photos picked through NativePhotoPicker, kept as files in the cache and served
+ * to the WebView from disk under short-lived, unguessable URLs, so the page can
+ * fetch() them as a Blob instead of receiving base64 through evaluateJavascript.
+ */
+final class PickedImageStore implements WebViewAssetLoader.PathHandler {
+    private static final String TAG = "NativeUploaderBridge";
+    static final String DOMAIN = WebViewAssetLoader.DEFAULT_DOMAIN;
+    static final String PATH_PREFIX = "/native-picker/";
+    static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+
+    private static final class Entry {
+        final File file;
+        final String mimeType;
+        final long expiresAtMillis;
+
+        Entry(File file, String mimeType, long expiresAtMillis) {
+            this.file = file;
+            this.mimeType = mimeType;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    private final File dir;
+    private final long ttlMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Entry> entries = new HashMap<>(); // guarded by this
+    private boolean staleCleared; // guarded by this
+
+    /** Cheap enough for the main thread: nothing touches the disk until the first pick. */
+    PickedImageStore(File dir, long ttlMillis) {
+        this.dir = dir;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /** Directory to write picked images into before registering them. */
+    synchronized File dir() throws IOException {
+        if (!staleCleared) {
+            // Files of an earlier process have no URL anymore
+            File[] stale = dir.listFiles();
+            if (stale != null) {
+                for (File file : stale) {
+                    file.delete();
+                }
+            }
+            staleCleared = true;
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create picked image directory");
+        }
+        return dir;
+    }
+
+    /**
+     * Takes ownership of the file and returns the URL it is served under until it expires.
+     */
+    synchronized String register(File file, String mimeType, long nowMillis) {
+        sweep(nowMillis);
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        entries.put(token.toString(), new Entry(file, mimeType, nowMillis + ttlMillis));
+        return "https://" + DOMAIN + PATH_PREFIX + token;
+    }
+
+    long ttlMillis() {
+        return ttlMillis;
+    }
+
+    /** Serves a registered file; path is relative to PATH_PREFIX. */
+    @Override
+    public WebResourceResponse handle(String path) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+            if (entry != null && entry.expiresAtMillis <= System.currentTimeMillis()) {
+                entries.remove(path);
+                entry.file.delete();
+                entry = null;
+            }
+        }
+        Map<String, String> headers = new HashMap<>();
+        // The page is served from the app's web origin, not from this domain
+        headers.put("Access-Control-Allow-Origin", "*");
+        headers.put("Cache-Control", "no-store");
+        if (entry == null) {
+            return new WebResourceResponse("text/plain", "utf-8", 404, "Not Found", headers, null);
+        }
+        try {
+            headers.put("Content-Length", Long.toString(entry.file.length()));
+            return new WebResourceResponse(entry.mimeType, null, 200, "OK", headers, new FileInputStream(entry.file));
+        } catch (IOException e) {
+            Log.w(TAG, "Picked image no longer readable", e);
+            return new WebResourceResponse("text/plain", "utf-8", 404, "Not Found", headers, null);
+        }
+    }
+
+    private void sweep(long nowMillis) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.expiresAtMillis <= nowMillis) {
+                it.remove();
+                if (!entry.file.delete()) {
+                    Log.w(TAG, "Could not delete expired picked image " + entry.file.getName());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.fortunemagnet.app;
+
+import com.fortunemagnet.upload.EventLog;
+
+/**
+ * What the bridge and the pipeline record in the pipeline's EventLog, next to the
+ * engine's UploadEvents. Subjects are request ids for bridge calls and job labels
+ * for everything a photo goes through.
+ */
+enum PipelineEvent implements EventLog.Type {
+    BOOTSTRAP_READY(EventLog.Level.DEBUG, null, null),
+    ENGINE_BUILT(EventLog.Level.INFO, null, null),         // detail: server URL
+    WORKER_POOL_SIZE(EventLog.Level.DEBUG, "size", null),
+    REQUEST_RECEIVED(EventLog.Level.INFO, "payloadChars", null), // detail: the JS method
+    DUPLICATE_REQUEST(EventLog.Level.WARN, null, null),
+    TOKEN_SET(EventLog.Level.DEBUG, "hasToken", "expiresInMs"),
+    TOKEN_FROM_OPTIONS(EventLog.Level.DEBUG, null, null),
+    TOKEN_REFRESH_REQUESTED(EventLog.Level.INFO, "expiresInMs", null),
+    PICKER_LAUNCHED(EventLog.Level.DEBUG, null, null),
+    PICKER_CANCELLED(EventLog.Level.INFO, null, null),
+    PHOTOS_PICKED(EventLog.Level.INFO, "count", null),
+    CANCEL_REQUESTED(EventLog.Level.INFO, null, null),
+    CANCELLED(EventLog.Level.INFO, "jobs", null),          // detail: "queued" for a request only in the outbox
+    CANCEL_UNKNOWN(EventLog.Level.INFO, null, null),
+    PICKED_READY(EventLog.Level.DEBUG, "width", "height"),
+    SOURCE_OPENED(EventLog.Level.DEBUG, "bytes", null),   // detail: mime type
+    PROCESSED(EventLog.Level.INFO, "width", "height"),    // detail: mime type
+    THUMBNAIL_READY(EventLog.Level.DEBUG, "bytes", null),
+    THUMBNAIL_OK(EventLog.Level.INFO, null, null),
+    THUMBNAIL_FAIL(EventLog.Level.WARN, null, null),      // detail: the failure
+    BITMAP_POOL_CLEAR(EventLog.Level.DEBUG, "bytes", "hits"),
+    DEDUP_MISS(EventLog.Level.DEBUG, "hits", "misses"),
+    DEDUP_HIT(EventLog.Level.INFO, "hits", "misses"),
+    DEDUP_STALE(EventLog.Level.WARN, null, null),
+    PHOTO_CACHE_WRITE_FAIL(EventLog.Level.WARN, null, null), // detail: which step
+    PHOTO_CACHE_READ_FAIL(EventLog.Level.WARN, null, null),
+    PHOTO_CACHE_DELETE_FAIL(EventLog.Level.WARN, null, null), // detail: "evict" or "owner"
+    TICKET_SPARE_STORED(EventLog.Level.DEBUG, "spares", null),
+    TICKET_SPARE_USED(EventLog.Level.DEBUG, null, null),
+    NETWORK_CHANGED(EventLog.Level.INFO, "metered", "bytesPerSecond"),
+    NETWORK_LOST(EventLog.Level.INFO, null, null),
+    NETWORK_TIER(EventLog.Level.INFO, "bytesPerSecond", null), // detail: the tier processing adapted to
+    OUTBOX_DRAIN(EventLog.Level.INFO, "attempt", null),
+    OUTBOX_WAITING_FOR_TOKEN(EventLog.Level.INFO, null, null),
+    OUTBOX_PARKED(EventLog.Level.INFO, null, null),       // detail: why
+    OUTBOX_EXPIRED(EventLog.Level.WARN, null, null),
+    OUTBOX_UNREADABLE(EventLog.Level.WARN, null, null),   // detail: what could not be read
+    OUTBOX_WRITE_FAIL(EventLog.Level.WARN, null, null),   // detail: what could not be kept; the upload goes on
+    OUTBOX_RESUME(EventLog.Level.INFO, null, null),       // detail: stage
+    OUTBOX_RESTORE(EventLog.Level.INFO, null, null),      // detail: stage
+    STAGE_ABORTED(EventLog.Level.INFO, null, null),       // detail: stage
+    UPLOAD_DONE(EventLog.Level.INFO, "bytes", null);
+
+    private final EventLog.Level level;
+    private final String firstArgument;
+    private final String secondArgument;
+
+    PipelineEvent(EventLog.Level level, String firstArgument, String secondArgument) {
+        this.level = level;
+        this.firstArgument = firstArgument;
+        this.secondArgument = secondArgument;
+    }
+
+    @Override
+    public EventLog.Level level() {
+        return level;
+    }
+
+    @Override
+    public String firstArgument() {
+        return firstArgument;
+    }
+
+    @Override
+    public String secondArgument() {
+        return secondArgument;
+    }
+}
@@ -0,0 +1,98 @@
+package com.fortunemagnet.app;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.WebView;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pushes upload progress to the page as native-uploader:progress events.
+ * Updates arrive from worker threads for every buffer sent; only the latest
+ * update per photo is kept and all pending ones go out together in a single
+ * evaluateJavascript call, at most maxDispatchesPerSecond times per second.
+ */
+final class ProgressDispatcher {
+    private static final String TAG = "NativeUploaderBridge";
+    static final int DEFAULT_MAX_DISPATCHES_PER_SECOND = 5;
+
+    private final WebView webView;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final long minIntervalMs;
+    private final Runnable flushTask = this::flush;
+
+    // Guarded by this; keyed by requestId#index so later updates replace earlier ones
+    private final Map<String, JSONObject> pending = new LinkedHashMap<>();
+    private boolean flushScheduled;
+    private long lastFlushAt;
+
+    ProgressDispatcher(WebView webView, int maxDispatchesPerSecond) {
+        this.webView = webView;
+        this.minIntervalMs = 1000L / Math.max(1, maxDispatchesPerSecond);
+    }
+
+    /**
+     * @param totalBytes -1 when the size is unknown
+     */
+    void update(String requestId, int index, int count, String stage, long bytesSent, long totalBytes) {
+        JSONObject detail = new JSONObject();
+        try {
+            detail.put("id", requestId);
+            detail.put("index", index);
+            detail.put("count", count);
+            detail.put("stage", stage);
+            detail.put("bytesSent", bytesSent);
+            detail.put("totalBytes", totalBytes);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating progress JSON", e);
+            return;
+        }
+        synchronized (this) {
+            pending.put(requestId + "#" + index, detail);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+            long delay = Math.max(0, lastFlushAt + minIntervalMs - SystemClock.uptimeMillis());
+            mainHandler.postDelayed(flushTask, delay);
+        }
+    }
+
+    /** Drops queued updates of a finished request, so none arrive after its result. */
+    synchronized void forget(String requestId) {
+        String prefix = requestId + "#";
+        Iterator<String> it = pending.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    private void flush() {
+        JSONArray events = new JSONArray();
+        synchronized (this) {
+            flushScheduled = false;
+            lastFlushAt = SystemClock.uptimeMillis();
+            for (JSONObject detail : pending.values()) {
+                events.put(detail);
+            }
+            pending.clear();
+        }
+        if (events.length() == 0) {
+            return;
+        }
+        String js = "(function(e){for(var i=0;i<e.length;i++){"
+            + "window.dispatchEvent(new CustomEvent('native-uploader:progress',{detail:e[i]}));}})("
+            + events.toString() + ");";
+        webView.evaluateJavascript(js, null);
+    }
+}
@@ -0,0 +1,225 @@
+package com.fortunemagnet.app;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers where identical photos were already uploaded, keyed by the SHA-256
+ * of the original plus the processing settings and the user, so picking the
+ * same photo again goes straight to finalize with the existing object.
+ * Bounded LRU with a TTL, persisted as a properties file in app-private storage.
+ */
+final class UploadDedupCache {
+    private static final String TAG = "NativeUploaderBridge";
+    static final int DEFAULT_MAX_ENTRIES = 200;
+    // Past this an object may have been cleaned up server-side; finalize rechecks anyway
+    static final long DEFAULT_TTL_MS = 7L * 24 * 60 * 60 * 1000;
+
+    /** An uploaded object and what finalize needs to know about it. */
+    static final class Entry {
+        final String bucket;
+        final String bucketRelativePath;
+        final String mimeType;
+        final int width;
+        final int height;
+        final long sizeBytes;
+        final long expiresAtMillis;
+        final String thumbnailPath; // null if the photo was uploaded without a thumbnail
+        final String blurHash;
+        long lastUsedMillis;
+
+        Entry(String bucket, String bucketRelativePath, String mimeType, int width, int height,
+              long sizeBytes, long expiresAtMillis, long lastUsedMillis, String thumbnailPath, String blurHash) {
+            this.bucket = bucket;
+            this.bucketRelativePath = bucketRelativePath;
+            this.mimeType = mimeType;
+            this.width = width;
+            this.height = height;
+            this.sizeBytes = sizeBytes;
+            this.expiresAtMillis = expiresAtMillis;
+            this.lastUsedMillis = lastUsedMillis;
+            this.thumbnailPath = thumbnailPath;
+            this.blurHash = blurHash;
+        }
+
+        private String encode() {
+            return bucket + '\t' + bucketRelativePath + '\t' + mimeType + '\t' + width + '\t' + height
+                + '\t' + sizeBytes + '\t' + expiresAtMillis + '\t' + lastUsedMillis
+                + '\t' + (thumbnailPath != null ? thumbnailPath : "") + '\t' + (blurHash != null ? blurHash : "");
+        }
+
+        private static Entry decode(String value) {
+            String[] f = value.split("\t", -1);
+            // Entries written before thumbnails have 8 fields
+            if (f.length != 8 && f.length != 10) {
+                throw new IllegalArgumentException("Malformed dedup entry");
+            }
+            return new Entry(f[0], f[1], f[2], Integer.parseInt(f[3]), Integer.parseInt(f[4]),
+                Long.parseLong(f[5]), Long.parseLong(f[6]), Long.parseLong(f[7]),
+                f.length > 8 && !f[8].isEmpty() ? f[8] : null, f.length > 9 && !f[9].isEmpty() ? f[9] : null);
+        }
+    }
+
+    private final File file;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private LinkedHashMap<String, Entry> entries; // access order, loaded on first use
+
+    UploadDedupCache(File file) {
+        this(file, DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MS);
+    }
+
+    UploadDedupCache(File file, int maxEntries, long ttlMillis) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /** Key for a photo: who uploads it, what its bytes are and how they are processed. */
+    static String key(String userId, String sha256, String settingsSignature) {
+        return userId + ":" + sha256 + ":" + settingsSignature;
+    }
+
+    /** @return the live entry for the key, or null (counted as a miss) */
+    synchronized Entry lookup(String key, long nowMillis) {
+        Map<String, Entry> map = entries();
+        Entry entry = map.get(key);
+        if (entry != null && entry.expiresAtMillis <= nowMillis) {
+            map.remove(key);
+            save();
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        entry.lastUsedMillis = nowMillis;
+        hits.incrementAndGet();
+        save();
+        return entry;
+    }
+
+    synchronized void put(String key, String bucket, String bucketRelativePath, String mimeType,
+                          int width, int height, long sizeBytes, long nowMillis) {
+        put(key, bucket, bucketRelativePath, mimeType, width, height, sizeBytes, null, null, nowMillis);
+    }
+
+    synchronized void put(String key, String bucket, String bucketRelativePath, String mimeType,
+                          int width, int height, long sizeBytes, String thumbnailPath, String blurHash,
+                          long nowMillis) {
+        LinkedHashMap<String, Entry> map = entries();
+        map.put(key, new Entry(bucket, bucketRelativePath, mimeType, width, height, sizeBytes,
+            nowMillis + ttlMillis, nowMillis, thumbnailPath, blurHash));
+        evict(map, nowMillis);
+        save();
+    }
+
+    /** Drops an entry whose object turned out to be gone. */
+    synchronized void invalidate(String key) {
+        if (entries().remove(key) != null) {
+            save();
+        }
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    synchronized int size() {
+        return entries().size();
+    }
+
+    private void evict(LinkedHashMap<String, Entry> map, long nowMillis) {
+        Iterator<Entry> it = map.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAtMillis <= nowMillis) {
+                it.remove();
+            }
+        }
+        // Least recently used first
+        it = map.values().iterator();
+        while (map.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private LinkedHashMap<String, Entry> entries() {
+        if (entries == null) {
+            entries = new LinkedHashMap<>(16, 0.75f, true);
+            load();
+        }
+        return entries;
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read dedup cache, starting empty", e);
+            return;
+        }
+        List<Map.Entry<String, Entry>> loaded = new ArrayList<>();
+        for (String key : props.stringPropertyNames()) {
+            try {
+                loaded.add(new AbstractMap.SimpleEntry<>(key, Entry.decode(props.getProperty(key))));
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Dropping malformed dedup entry", e);
+            }
+        }
+        // Properties forget the order: rebuild it from the last use
+        Collections.sort(loaded, (a, b) -> Long.compare(a.getValue().lastUsedMillis, b.getValue().lastUsedMillis));
+        for (Map.Entry<String, Entry> entry : loaded) {
+            entries.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void save() {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            Log.w(TAG, "Could not create dedup cache directory");
+            return;
+        }
+        Properties props = new Properties();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            props.setProperty(entry.getKey(), entry.getValue().encode());
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, null);
+        } catch (IOException e) {
+            tmp.delete();
+            Log.w(TAG, "Could not write dedup cache", e);
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            Log.w(TAG, "Could not replace dedup cache file");
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.fortunemagnet.app;
+
+import android.net.Uri;
+
+import com.fortunemagnet.upload.UploadBlob;
+import com.fortunemagnet.upload.UploadTask;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One picked photo moving through the upload pipeline. On top of the engine's
+ * task state it keeps what the app-side stages need: the picked Uri, the
+ * processed image, the dedup lookup and the worker it is running on.
+ */
+final class UploadJob extends UploadTask {
+    final UploadRequest request;
+    final int index;
+    final Uri imageUri;
+    private final String label;
+    long createdAt = System.currentTimeMillis(); // when the photo was picked; restored from the outbox
+    long pickedAtNanos = -1; // System.nanoTime() at pick, -1 for jobs restored from an earlier process
+
+    // Only touched by the worker currently running the job
+    UploadTicketCache.Prefetch ticketFuture;
+    ImageProcessor.Result processed;
+    String dedupKey;                 // null when the photo cannot be deduplicated
+    UploadDedupCache.Entry dedupHit; // set when an identical photo was already uploaded
+
+    // Touched by the canceller as well
+    Thread worker;                            // guarded by this; the thread running the job, if any
+    volatile ScheduledFuture<?> pendingRetry; // backoff timer while waiting for a retry
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    UploadJob(UploadRequest request, int index, Uri imageUri) {
+        super(request.options);
+        this.request = request;
+        this.index = index;
+        this.imageUri = imageUri;
+        this.label = request.id + "#" + index;
+    }
+
+    @Override
+    public UploadBlob blob() {
+        return processed != null ? processed.source.blob() : null;
+    }
+
+    @Override
+    public int width() {
+        return processed.width;
+    }
+
+    @Override
+    public int height() {
+        return processed.height;
+    }
+
+    /** A deduplicated photo stays in the bucket it was uploaded to. */
+    @Override
+    public String bucket() {
+        return dedupHit != null ? dedupHit.bucket : ticket.bucket;
+    }
+
+    /** The other photos of the same pick. */
+    @Override
+    public int batchSiblings() {
+        return Math.max(0, request.expectedResults() - 1);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return request.cancelled;
+    }
+
+    /** @return true for the one caller that gets to report the job's result */
+    boolean markFinished() {
+        return finished.compareAndSet(false, true);
+    }
+
+    boolean isFinished() {
+        return finished.get();
+    }
+
+    /** Request id plus photo position, for logs; built once, as every recorded event carries it. */
+    @Override
+    public String label() {
+        return label;
+    }
+}
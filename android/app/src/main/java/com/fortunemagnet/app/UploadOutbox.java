@@ -0,0 +1,339 @@
+package com.fortunemagnet.app;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Durable queue of picked photos and their pipeline state in app-private storage,
+ * so uploads survive the app being killed or the device going offline, and
+ * results reach the WebView even if it was recreated in the meantime.
+ *
+ * One directory per request:
+ *   job-N.properties  pipeline state of photo N, rewritten after every stage
+ *   job-N.img         the bytes being uploaded (processed copy or original)
+ *   result-N.txt      result JSON of photo N once it finished
+ *   delivery.txt      final result JSON of the request, until JS acknowledges it
+ */
+final class UploadOutbox {
+    private static final String TAG = "NativeUploaderBridge";
+    // Options the page may pass that must never reach the disk; a restored request uses the current token
+    private static final String[] CREDENTIAL_OPTIONS = { "accessToken", "refreshToken" };
+
+    /** Persisted state of one photo. Strings hold JSON where the pipeline needs it. */
+    static final class Record {
+        String requestId;
+        int index;
+        int count;
+        String optionsJson;
+        long createdAt;
+        String stage;
+        String sourceUri;
+        String imagePath;      // null until the image was copied into the outbox
+        String mimeType;
+        int width;
+        int height;
+        String fingerprint;
+        String dedupKey;
+        String ticketJson;     // raw ticket, so an upload resumes with the same object path
+        long ticketIssuedAt;
+        String bucketRelativePath;
+        long uploadedBytes;
+        String uploadConfirmation;
+        String thumbnailImagePath; // null without a thumbnail, or once it was uploaded
+        String thumbnailMimeType;
+        String thumbnailPath;      // bucket-relative path of the uploaded thumbnail
+        String blurHash;
+
+        String key() {
+            return requestId + "#" + index;
+        }
+    }
+
+    private final File dir;
+
+    UploadOutbox(File dir) {
+        this.dir = dir;
+    }
+
+    /** Where the image of a photo is kept while it is queued. */
+    File imageFile(String requestId, int index) {
+        return new File(requestDir(requestId), "job-" + index + ".img");
+    }
+
+    /** Where the thumbnail of a photo is kept while it is queued. */
+    File thumbnailFile(String requestId, int index) {
+        return new File(requestDir(requestId), "job-" + index + ".thumb");
+    }
+
+    synchronized void save(Record record) throws IOException {
+        File requestDir = requestDir(record.requestId);
+        if (!requestDir.exists() && !requestDir.mkdirs()) {
+            throw new IOException("Could not create outbox directory");
+        }
+        Properties props = new Properties();
+        props.setProperty("requestId", record.requestId);
+        props.setProperty("index", Integer.toString(record.index));
+        props.setProperty("count", Integer.toString(record.count));
+        props.setProperty("createdAt", Long.toString(record.createdAt));
+        props.setProperty("width", Integer.toString(record.width));
+        props.setProperty("height", Integer.toString(record.height));
+        props.setProperty("ticketIssuedAt", Long.toString(record.ticketIssuedAt));
+        props.setProperty("uploadedBytes", Long.toString(record.uploadedBytes));
+        putIfSet(props, "options", withoutCredentials(record.optionsJson));
+        putIfSet(props, "stage", record.stage);
+        putIfSet(props, "sourceUri", record.sourceUri);
+        putIfSet(props, "imagePath", record.imagePath);
+        putIfSet(props, "mimeType", record.mimeType);
+        putIfSet(props, "fingerprint", record.fingerprint);
+        putIfSet(props, "dedupKey", record.dedupKey);
+        putIfSet(props, "ticket", record.ticketJson);
+        putIfSet(props, "bucketRelativePath", record.bucketRelativePath);
+        putIfSet(props, "uploadConfirmation", record.uploadConfirmation);
+        putIfSet(props, "thumbnailImagePath", record.thumbnailImagePath);
+        putIfSet(props, "thumbnailMimeType", record.thumbnailMimeType);
+        putIfSet(props, "thumbnailPath", record.thumbnailPath);
+        putIfSet(props, "blurHash", record.blurHash);
+        writeAtomically(new File(requestDir, "job-" + record.index + ".properties"), props);
+    }
+
+    /** @return every photo that has not finished yet, oldest request first */
+    synchronized List<Record> loadPending() {
+        List<Record> records = new ArrayList<>();
+        File[] requestDirs = dir.listFiles();
+        if (requestDirs == null) {
+            return records;
+        }
+        for (File requestDir : requestDirs) {
+            File[] files = requestDir.listFiles((d, name) -> name.startsWith("job-") && name.endsWith(".properties"));
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                Record record = read(file);
+                if (record != null) {
+                    records.add(record);
+                }
+            }
+        }
+        Collections.sort(records, (a, b) -> a.createdAt != b.createdAt
+            ? Long.compare(a.createdAt, b.createdAt)
+            : Integer.compare(a.index, b.index));
+        return records;
+    }
+
+    /** Stores the result of one photo and drops its queued state and image. */
+    synchronized void saveJobResult(String requestId, int index, String resultJson) throws IOException {
+        File requestDir = requestDir(requestId);
+        if (!requestDir.exists() && !requestDir.mkdirs()) {
+            throw new IOException("Could not create outbox directory");
+        }
+        Properties props = new Properties();
+        props.setProperty("result", resultJson);
+        writeAtomically(new File(requestDir, "result-" + index + ".txt"), props);
+        deleteQuietly(new File(requestDir, "job-" + index + ".properties"));
+        deleteQuietly(imageFile(requestId, index));
+        deleteQuietly(thumbnailFile(requestId, index));
+    }
+
+    /** @return results of the photos of a request that already finished, by index */
+    synchronized TreeMap<Integer, String> loadJobResults(String requestId) {
+        TreeMap<Integer, String> results = new TreeMap<>();
+        File[] files = requestDir(requestId).listFiles((d, name) -> name.startsWith("result-"));
+        if (files == null) {
+            return results;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                int index = Integer.parseInt(name.substring("result-".length(), name.length() - ".txt".length()));
+                String result = readProperties(file).getProperty("result");
+                if (result != null) {
+                    results.put(index, result);
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Discarding unreadable outbox result " + name, e);
+            }
+        }
+        return results;
+    }
+
+    /** Stores the final result of a request until the WebView acknowledges it. */
+    synchronized void saveDelivery(String requestId, String resultJson) throws IOException {
+        File requestDir = requestDir(requestId);
+        if (!requestDir.exists() && !requestDir.mkdirs()) {
+            throw new IOException("Could not create outbox directory");
+        }
+        Properties props = new Properties();
+        props.setProperty("requestId", requestId);
+        props.setProperty("result", resultJson);
+        props.setProperty("createdAt", Long.toString(System.currentTimeMillis()));
+        writeAtomically(new File(requestDir, "delivery.txt"), props);
+        File[] results = requestDir.listFiles((d, name) -> name.startsWith("result-"));
+        if (results != null) {
+            for (File file : results) {
+                deleteQuietly(file);
+            }
+        }
+    }
+
+    /** @return final results not yet acknowledged by the WebView, as [requestId, resultJson] */
+    synchronized List<String[]> loadDeliveries() {
+        List<String[]> deliveries = new ArrayList<>();
+        File[] requestDirs = dir.listFiles();
+        if (requestDirs == null) {
+            return deliveries;
+        }
+        for (File requestDir : requestDirs) {
+            File file = new File(requestDir, "delivery.txt");
+            if (!file.exists()) {
+                continue;
+            }
+            try {
+                Properties props = readProperties(file);
+                String requestId = props.getProperty("requestId");
+                String result = props.getProperty("result");
+                if (requestId != null && result != null) {
+                    deliveries.add(new String[] { requestId, result });
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Discarding unreadable outbox delivery", e);
+                deleteQuietly(file);
+            }
+        }
+        return deliveries;
+    }
+
+    /** Forgets a request once its result reached JS. */
+    synchronized void acknowledge(String requestId) {
+        File requestDir = requestDir(requestId);
+        File[] files = requestDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            deleteQuietly(file);
+        }
+        deleteQuietly(requestDir);
+    }
+
+    private Record read(File file) {
+        try {
+            Properties props = readProperties(file);
+            Record record = new Record();
+            record.requestId = props.getProperty("requestId");
+            record.index = Integer.parseInt(props.getProperty("index"));
+            record.count = Integer.parseInt(props.getProperty("count"));
+            record.createdAt = Long.parseLong(props.getProperty("createdAt"));
+            record.width = Integer.parseInt(props.getProperty("width", "0"));
+            record.height = Integer.parseInt(props.getProperty("height", "0"));
+            record.ticketIssuedAt = Long.parseLong(props.getProperty("ticketIssuedAt", "0"));
+            record.uploadedBytes = Long.parseLong(props.getProperty("uploadedBytes", "0"));
+            record.optionsJson = props.getProperty("options");
+            record.stage = props.getProperty("stage");
+            record.sourceUri = props.getProperty("sourceUri");
+            record.imagePath = props.getProperty("imagePath");
+            record.mimeType = props.getProperty("mimeType");
+            record.fingerprint = props.getProperty("fingerprint");
+            record.dedupKey = props.getProperty("dedupKey");
+            record.ticketJson = props.getProperty("ticket");
+            record.bucketRelativePath = props.getProperty("bucketRelativePath");
+            record.uploadConfirmation = props.getProperty("uploadConfirmation");
+            record.thumbnailImagePath = props.getProperty("thumbnailImagePath");
+            record.thumbnailMimeType = props.getProperty("thumbnailMimeType");
+            record.thumbnailPath = props.getProperty("thumbnailPath");
+            record.blurHash = props.getProperty("blurHash");
+            if (record.requestId == null) {
+                throw new IOException("Outbox record has no request id");
+            }
+            return record;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Discarding unreadable outbox record " + file.getName(), e);
+            deleteQuietly(file);
+            return null;
+        }
+    }
+
+    private File requestDir(String requestId) {
+        return new File(dir, sha256Hex(requestId));
+    }
+
+    /** @return the options without credentials, or null if they cannot be read (and so cannot be cleaned) */
+    static String withoutCredentials(String optionsJson) {
+        if (optionsJson == null) {
+            return null;
+        }
+        try {
+            JSONObject options = new JSONObject(optionsJson);
+            for (String key : CREDENTIAL_OPTIONS) {
+                options.remove(key);
+            }
+            return options.toString();
+        } catch (JSONException e) {
+            Log.w(TAG, "Not persisting unreadable upload options", e);
+            return null;
+        }
+    }
+
+    private static void putIfSet(Properties props, String key, String value) {
+        if (value != null) {
+            props.setProperty(key, value);
+        }
+    }
+
+    private static Properties readProperties(File file) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        }
+        return props;
+    }
+
+    // Write to a temp file and rename so a crash never leaves a torn record
+    private static void writeAtomically(File file, Properties props) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, null);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not write outbox record");
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Could not delete outbox file " + file.getName());
+        }
+    }
+
+    private static String sha256Hex(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
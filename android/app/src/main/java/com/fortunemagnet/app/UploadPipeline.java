@@ -0,0 +1,1363 @@
+package com.fortunemagnet.app;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import com.fortunemagnet.upload.EventLog;
+import com.fortunemagnet.upload.IoBuffers;
+import com.fortunemagnet.upload.NetworkPolicy;
+import com.fortunemagnet.upload.OkHttpTransport;
+import com.fortunemagnet.upload.StageException;
+import com.fortunemagnet.upload.Transport;
+import com.fortunemagnet.upload.UploadBlob;
+import com.fortunemagnet.upload.UploadCheckpointStore;
+import com.fortunemagnet.upload.UploadEndpoints;
+import com.fortunemagnet.upload.UploadEngine;
+import com.fortunemagnet.upload.UploadEvent;
+import com.fortunemagnet.upload.UploadMetrics;
+import com.fortunemagnet.upload.UploadTicket;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The upload pipeline (process, ticket, upload, verify, finalize), one per process.
+ * It only needs the application context, so the same instance serves the WebView
+ * bridge and the outbox worker that finishes queued uploads after the app was
+ * killed or went offline. Finished requests are reported to the listener, which
+ * is the bridge while a WebView is attached.
+ *
+ * Image processing, dedup, the outbox, retry scheduling and cancellation live
+ * here; the network calls of each stage are made by the platform-independent
+ * UploadEngine.
+ */
+final class UploadPipeline {
+    private static final String TAG = "NativeUploaderBridge";
+    static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 3;
+    private static final int MAX_CONCURRENT_UPLOADS_LIMIT = 6;
+    private static final long MAX_OUTBOX_AGE_MS = 3L * 24 * 60 * 60 * 1000;
+    // Photos of one pick that finish within this window are finalized in one request
+    private static final long FINALIZE_BATCH_WINDOW_MS = 200;
+    private static final int FINALIZE_BATCH_MAX_ITEMS = 10;
+    // Refresh tokens this close to expiry before a network stage, waiting at most TOKEN_REFRESH_WAIT_MS
+    private static final long TOKEN_REFRESH_MARGIN_MS = 60 * 1000;
+    private static final long TOKEN_REFRESH_WAIT_MS = 5 * 1000;
+    // Enough for the events of a few multi-photo picks, including their retries
+    private static final int EVENT_LOG_CAPACITY = 512;
+
+    /** Receives progress and final request results; called on worker threads. */
+    interface Listener {
+        /**
+         * Called when a photo enters a stage and for every buffer it uploads.
+         *
+         * @param totalBytes -1 when the size is unknown
+         */
+        void onProgress(String requestId, int index, int count, String stage, long bytesSent, long totalBytes);
+
+        void onRequestFinished(String requestId, JSONObject result);
+
+        /**
+         * The access token runs out before the next network call: ask the page for a
+         * fresh one, which arrives through {@link #setAccessToken}.
+         */
+        void onAccessTokenExpiring();
+    }
+
+    private static UploadPipeline instance;
+
+    private final Context context;
+    private final ContentResolver resolver;
+    private final ImageProcessor imageProcessor;
+    private final UploadCheckpointStore checkpointStore;
+    private final UploadOutbox outbox;
+    private final UploadDedupCache dedupCache;
+    private final PickedImageStore pickedImages;
+    private final PhotoCache photoCache;
+    private final NetworkPolicy networkPolicy = new NetworkPolicy();
+    private final NetworkMonitor networkMonitor;
+    // Release builds keep INFO and up for failure reports; verbose ones keep everything and log it as it happens
+    private final EventLog events = AndroidLogger.isVerbose()
+        ? new EventLog(EVENT_LOG_CAPACITY, EventLog.Level.DEBUG, AndroidLogger.INSTANCE)
+        : new EventLog(EVENT_LOG_CAPACITY, EventLog.Level.INFO, null);
+    // Threads and the HTTP client are created by the first upload, not at app start
+    private ThreadPoolExecutor executorService; // guarded by this
+    private ThreadPoolExecutor ticketExecutor; // guarded by this; short network calls that never wait on workers
+    private ScheduledThreadPoolExecutor retryScheduler; // guarded by this; re-queues jobs after their backoff delay
+    private int maxConcurrentUploads = DEFAULT_MAX_CONCURRENT_UPLOADS; // guarded by this
+    private final UploadTicketCache ticketCache = new UploadTicketCache(events);
+    private final UploadMetrics metrics = new UploadMetrics();
+    // Jobs running or waiting for a retry, and jobs parked until the network returns
+    private final Map<String, UploadJob> active = new ConcurrentHashMap<>();
+    private final Map<String, UploadJob> parked = new ConcurrentHashMap<>();
+    private final Object drainLock = new Object();
+    private final Object tokenLock = new Object();
+    private final Object engineLock = new Object();
+    private String refreshRequestedFor; // guarded by tokenLock
+    private long refreshDeadline; // guarded by tokenLock
+    private volatile boolean outboxMayHavePending = true; // unknown until the first scan
+    private volatile Listener listener;
+    private volatile String accessToken; // Stored access token for API calls
+    private String bridgeServerUrl; // guarded by engineLock; wins over capacitor.config.json
+    private String resolvedServerUrl; // guarded by engineLock; null until first resolved
+    private volatile UploadEndpoints endpoints; // resolved on first use, again when the server URL changes
+    private volatile UploadEngine engine; // built on first use, rebuilt when the endpoints change
+
+    private UploadPipeline(Context context) {
+        this.context = context;
+        this.resolver = context.getContentResolver();
+        this.imageProcessor = new ImageProcessor(resolver, context.getCacheDir(), events);
+        this.checkpointStore = new UploadCheckpointStore(new File(context.getFilesDir(), "upload-checkpoints"),
+            AndroidLogger.INSTANCE);
+        this.outbox = new UploadOutbox(new File(context.getFilesDir(), "upload-outbox"));
+        this.dedupCache = new UploadDedupCache(new File(context.getFilesDir(), "upload-dedup.properties"));
+        this.pickedImages = new PickedImageStore(new File(context.getCacheDir(), "native-picker"), PickedImageStore.DEFAULT_TTL_MS);
+        this.photoCache = new PhotoCache(new File(context.getCacheDir(), "photo-cache"), PhotoCache.DEFAULT_MAX_BYTES,
+            events);
+        this.networkMonitor = new NetworkMonitor(context, networkPolicy, this::onNetworkChanged);
+    }
+
+    /** Cheap: the pipeline only creates threads, files and the HTTP client once it has work. */
+    static synchronized UploadPipeline get(Context context) {
+        if (instance == null) {
+            instance = new UploadPipeline(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /** Lets go of what the pipeline only keeps to be faster (pooled bitmaps). */
+    void trimMemory() {
+        imageProcessor.trimMemory();
+    }
+
+    private synchronized ThreadPoolExecutor workers() {
+        if (executorService == null) {
+            executorService = new ThreadPoolExecutor(maxConcurrentUploads, maxConcurrentUploads,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            executorService.allowCoreThreadTimeOut(true);
+            // Uploads follow the network from the first one on
+            networkMonitor.start();
+        }
+        return executorService;
+    }
+
+    private synchronized ThreadPoolExecutor tickets() {
+        if (ticketExecutor == null) {
+            ticketExecutor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            ticketExecutor.allowCoreThreadTimeOut(true);
+        }
+        return ticketExecutor;
+    }
+
+    private synchronized ScheduledThreadPoolExecutor retries() {
+        if (retryScheduler == null) {
+            retryScheduler = new ScheduledThreadPoolExecutor(1);
+            retryScheduler.setKeepAliveTime(30, TimeUnit.SECONDS);
+            retryScheduler.allowCoreThreadTimeOut(true);
+            retryScheduler.setRemoveOnCancelPolicy(true);
+        }
+        return retryScheduler;
+    }
+
+    /** Where the bridge and the pipeline record what a request went through. */
+    EventLog events() {
+        return events;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Detaches the listener only if it is still the given one. */
+    void clearListener(Listener expected) {
+        if (listener == expected) {
+            listener = null;
+        }
+    }
+
+    void setAccessToken(String token) {
+        synchronized (tokenLock) {
+            this.accessToken = token;
+            tokenLock.notifyAll();
+        }
+        // Cached photos are only served to the user they were downloaded for
+        photoCache.setOwner(JwtClaims.subject(token));
+        // Queued uploads waited for a token (e.g. after a restart): pick them up now
+        if (token != null && !token.isEmpty() && outboxMayHavePending) {
+            resumeOutbox();
+        }
+    }
+
+    /**
+     * Server URL reported by the Capacitor bridge; preferred over capacitor.config.json.
+     * Only remembered here, as this runs during activity start: the next upload builds
+     * the engine for it.
+     */
+    void setBridgeServerUrl(String serverUrl) {
+        if (serverUrl == null || serverUrl.isEmpty()) {
+            return;
+        }
+        synchronized (engineLock) {
+            if (!serverUrl.equals(bridgeServerUrl)) {
+                bridgeServerUrl = serverUrl;
+                endpoints = null;
+                engine = null;
+            }
+        }
+    }
+    
+    private UploadEngine engine() {
+        UploadEngine current = engine;
+        if (current == null) {
+            synchronized (engineLock) {
+                current = engine;
+                if (current == null) {
+                    current = buildEngine(endpoints());
+                    events.record(PipelineEvent.ENGINE_BUILT, null, resolvedServerUrl, 0, 0);
+                    engine = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /** The endpoints the engine is built for; resolving them builds nothing else. */
+    private UploadEndpoints endpoints() {
+        UploadEndpoints current = endpoints;
+        if (current == null) {
+            synchronized (engineLock) {
+                current = endpoints;
+                if (current == null) {
+                    // Without a URL from the bridge, resolve once from the bundled config
+                    resolvedServerUrl = bridgeServerUrl != null ? bridgeServerUrl : readConfiguredServerUrl();
+                    current = UploadEndpoints.forServerUrl(resolvedServerUrl);
+                    endpoints = current;
+                }
+            }
+        }
+        return current;
+    }
+    
+    private UploadEngine buildEngine(UploadEndpoints endpoints) {
+        return new UploadEngine.Builder()
+            .endpoints(endpoints)
+            .transport(OkHttpTransport.shared())
+            .blobStore(new ContentBlobStore(resolver))
+            .checkpointStore(checkpointStore)
+            .logger(AndroidLogger.INSTANCE)
+            .events(events)
+            .networkPolicy(networkPolicy)
+            .tokens(() -> accessToken)
+            .progress((task, sent) -> reportProgress((UploadJob) task, sent))
+            .metrics(metrics)
+            .finalizeBatching(FINALIZE_BATCH_WINDOW_MS, FINALIZE_BATCH_MAX_ITEMS)
+            .build();
+    }
+
+    synchronized void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        int size = Math.max(1, Math.min(MAX_CONCURRENT_UPLOADS_LIMIT, maxConcurrentUploads));
+        this.maxConcurrentUploads = size;
+        if (executorService == null) {
+            // Applied when the first upload creates the pool
+            return;
+        }
+        // Keep core <= max at every step
+        if (size > executorService.getMaximumPoolSize()) {
+            executorService.setMaximumPoolSize(size);
+            executorService.setCorePoolSize(size);
+        } else {
+            executorService.setCorePoolSize(size);
+            executorService.setMaximumPoolSize(size);
+        }
+        events.record(PipelineEvent.WORKER_POOL_SIZE, null, size, 0);
+    }
+
+    /** Starts a freshly picked photo. */
+    void submit(UploadJob job) {
+        job.pickedAtNanos = System.nanoTime();
+        job.advance(UploadJob.Stage.PROCESS);
+        if (job.request.offlineQueue) {
+            // Make sure the queue is drained even if this process dies mid-upload
+            OutboxWorker.schedule(context);
+        }
+        start(job);
+    }
+
+    UploadMetrics metrics() {
+        return metrics;
+    }
+
+    /** Current metrics as JSON, including the dedup cache hit rate. */
+    JSONObject metricsSnapshot() throws JSONException {
+        JSONObject snapshot = metrics.snapshot();
+        JSONObject dedup = new JSONObject();
+        dedup.put("hits", dedupCache.hits());
+        dedup.put("misses", dedupCache.misses());
+        snapshot.put("dedup", dedup);
+        return snapshot;
+    }
+
+    /** Serves photos picked through NativePhotoPicker to the WebView. */
+    PickedImageStore pickedImages() {
+        return pickedImages;
+    }
+    
+    /**
+     * Serves a photo the page downloads from storage out of the signed-in user's photo
+     * cache. Called on the WebView's request thread, which only ever reads the cache:
+     * the cache is filled by uploads.
+     *
+     * @return null for anything but a cached whole-photo download with a user signed in,
+     *     which the WebView then loads itself, with the page's own request headers
+     */
+    WebResourceResponse interceptPhotoRequest(WebResourceRequest request) {
+        String url = request.getUrl().toString();
+        // Cheap check first: most requests are the page's own assets
+        if (!"GET".equals(request.getMethod()) || !url.contains("/storage/v1/object/")
+            || request.getRequestHeaders().containsKey("Range") || !photoCache.hasOwner()) {
+            return null;
+        }
+        String key = endpoints().downloadedObjectKey(url);
+        return key != null ? photoCache.serve(key) : null;
+    }
+    
+    /**
+     * NativePhotoPicker: prepares the picked photos (processed only if asked to) and
+     * reports { url, mimeType, width, height, size, expiresInMs } per photo, where url
+     * serves the file from disk. Nothing is uploaded.
+     */
+    void preparePicked(UploadRequest request, List<Uri> uris) {
+        workers().execute(() -> {
+            JSONObject result;
+            try {
+                ImageProcessor.Settings settings = ImageProcessor.Settings.fromOptions(request.options, false);
+                JSONArray photos = new JSONArray();
+                for (Uri uri : uris) {
+                    photos.put(preparePickedPhoto(request, uri, settings));
+                }
+                if (!request.allowMultiple && photos.length() == 1) {
+                    result = photos.getJSONObject(0);
+                } else {
+                    result = new JSONObject();
+                    result.put("success", true);
+                    result.put("photos", photos);
+                }
+            } catch (IOException | JSONException | RuntimeException e) {
+                Log.e(TAG, "Error preparing picked photo", e);
+                result = errorResult("Error reading image: " + e.getMessage());
+            }
+            Listener current = listener;
+            if (current != null) {
+                current.onRequestFinished(request.id, result);
+            }
+        });
+    }
+    
+    private JSONObject preparePickedPhoto(UploadRequest request, Uri uri, ImageProcessor.Settings settings)
+            throws IOException, JSONException {
+        UploadSource original = UploadSource.fromContentUri(resolver, uri);
+        ImageProcessor.Result processed = imageProcessor.process(original, settings, imageProcessor.probe(original, false));
+        // The picker's read grant is temporary: serve a private copy
+        File target = new File(pickedImages.dir(), UUID.randomUUID() + "." + extension(processed.source.fileName()));
+        moveOrCopy(processed, target);
+        processed.deleteTempFile(); // The page only gets the BlurHash, not the thumbnail
+        String url = pickedImages.register(target, processed.source.mimeType, System.currentTimeMillis());
+        events.record(PipelineEvent.PICKED_READY, request.id, processed.width, processed.height);
+        
+        JSONObject photo = new JSONObject();
+        photo.put("success", true);
+        photo.put("url", url);
+        photo.put("mimeType", processed.source.mimeType);
+        photo.put("width", processed.width);
+        photo.put("height", processed.height);
+        if (processed.thumbnail != null) {
+            photo.put("blurHash", processed.thumbnail.blurHash);
+        }
+        photo.put("size", target.length());
+        photo.put("expiresInMs", pickedImages.ttlMillis());
+        return photo;
+    }
+    
+    private static String extension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot >= 0 ? fileName.substring(dot + 1) : "img";
+    }
+    
+    private void start(UploadJob job) {
+        active.put(job.label(), job);
+        workers().execute(() -> runPipeline(job));
+    }
+
+    /** Resumes parked and persisted uploads in the background. */
+    void resumeOutbox() {
+        workers().execute(this::restorePending);
+    }
+
+    /**
+     * Resumes queued uploads and blocks until nothing is running or the timeout passes.
+     * Called by the outbox worker.
+     *
+     * @return true when the outbox is empty afterwards
+     */
+    boolean drainOutbox(long timeoutMs) throws InterruptedException {
+        if (!restorePending()) {
+            return false;
+        }
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        synchronized (drainLock) {
+            long remaining;
+            while (!active.isEmpty() && (remaining = deadline - SystemClock.elapsedRealtime()) > 0) {
+                drainLock.wait(remaining);
+            }
+        }
+        return active.isEmpty() && !hasParkedJobsToRetry();
+    }
+
+    /** Jobs parked for other reasons than a metered network; the unmetered outbox worker resumes those. */
+    private boolean hasParkedJobsToRetry() {
+        for (UploadJob job : parked.values()) {
+            if (!waitsForUnmeteredNetwork(job)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Hands final results that JS has not acknowledged yet to the listener again. */
+    void redeliverPending() {
+        workers().execute(() -> {
+            Listener current = listener;
+            if (current == null) {
+                return;
+            }
+            for (String[] delivery : outbox.loadDeliveries()) {
+                try {
+                    current.onRequestFinished(delivery[0], new JSONObject(delivery[1]));
+                } catch (JSONException e) {
+                    events.record(PipelineEvent.OUTBOX_UNREADABLE, delivery[0], "result", 0, 0);
+                    outbox.acknowledge(delivery[0]);
+                }
+            }
+        });
+    }
+
+    /** JS received the result of a request: forget it. */
+    void acknowledge(String requestId) {
+        workers().execute(() -> outbox.acknowledge(requestId));
+    }
+
+    /** @return false if resuming has to wait for an access token */
+    private synchronized boolean restorePending() {
+        String token = accessToken;
+        if (token == null || token.isEmpty()) {
+            events.record(PipelineEvent.OUTBOX_WAITING_FOR_TOKEN, null);
+            return false;
+        }
+        // Parked jobs are still in memory with their live request
+        for (UploadJob job : parked.values()) {
+            if (waitsForUnmeteredNetwork(job)) {
+                continue;
+            }
+            parked.remove(job.label());
+            events.record(PipelineEvent.OUTBOX_RESUME, job.label(), job.stage.name(), 0, 0);
+            job.advance(job.stage);
+            start(job);
+        }
+        // Jobs from an earlier process
+        Map<String, UploadRequest> restored = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (UploadOutbox.Record record : outbox.loadPending()) {
+            if (active.containsKey(record.key()) || parked.containsKey(record.key())) {
+                continue;
+            }
+            UploadRequest request = restored.get(record.requestId);
+            if (request == null) {
+                request = restoreRequest(record);
+                restored.put(record.requestId, request);
+            }
+            UploadJob job = restoreJob(request, record);
+            if (now - record.createdAt > MAX_OUTBOX_AGE_MS) {
+                events.record(PipelineEvent.OUTBOX_EXPIRED, job.label());
+                finishJob(job, failureResult(job, "Upload expired in offline queue"));
+                continue;
+            }
+            events.record(PipelineEvent.OUTBOX_RESTORE, job.label(), job.stage.name(), 0, 0);
+            start(job);
+        }
+        // Originals waiting for an unmetered network stay parked
+        outboxMayHavePending = !parked.isEmpty();
+        return true;
+    }
+
+    private UploadRequest restoreRequest(UploadOutbox.Record record) {
+        JSONObject options = null;
+        try {
+            options = record.optionsJson != null ? new JSONObject(record.optionsJson) : null;
+        } catch (JSONException e) {
+            events.record(PipelineEvent.OUTBOX_UNREADABLE, record.requestId, "options", 0, 0);
+        }
+        UploadRequest request = new UploadRequest(record.requestId, options);
+        request.expectResults(record.count);
+        for (Map.Entry<Integer, String> result : outbox.loadJobResults(record.requestId).entrySet()) {
+            try {
+                request.complete(result.getKey(), new JSONObject(result.getValue()));
+            } catch (JSONException e) {
+                request.complete(result.getKey(), errorResult("Unreadable queued result"));
+            }
+        }
+        return request;
+    }
+
+    private UploadJob restoreJob(UploadRequest request, UploadOutbox.Record record) {
+        UploadJob job = new UploadJob(request, record.index, record.sourceUri != null ? Uri.parse(record.sourceUri) : null);
+        job.createdAt = record.createdAt;
+        UploadJob.Stage stage = record.stage != null ? UploadJob.Stage.valueOf(record.stage) : UploadJob.Stage.PROCESS;
+        if (stage != UploadJob.Stage.PROCESS && record.imagePath != null) {
+            File image = new File(record.imagePath);
+            ImageProcessor.Thumbnail thumbnail = null;
+            if (record.blurHash != null || record.thumbnailImagePath != null) {
+                thumbnail = new ImageProcessor.Thumbnail(record.thumbnailImagePath != null
+                    ? UploadSource.fromFile(new File(record.thumbnailImagePath), record.thumbnailMimeType) : null, record.blurHash);
+            }
+            job.processed = new ImageProcessor.Result(UploadSource.fromFile(image, record.mimeType), record.width, record.height,
+                image, thumbnail);
+            job.thumbnailPath = record.thumbnailPath;
+            job.blurHash = record.blurHash;
+            job.fingerprint = record.fingerprint;
+            job.dedupKey = record.dedupKey;
+            job.bucketRelativePath = record.bucketRelativePath;
+            job.uploadedBytes = record.uploadedBytes;
+            job.uploadConfirmation = record.uploadConfirmation;
+            if (record.ticketJson != null) {
+                try {
+                    UploadTicket ticket = UploadTicket.parse(new JSONObject(record.ticketJson), accessToken, record.ticketIssuedAt);
+                    // An expired signed URL cannot upload anymore; later stages only need the path
+                    if (stage != UploadJob.Stage.UPLOAD || ticket.isFresh(System.currentTimeMillis())) {
+                        job.ticket = ticket;
+                    }
+                } catch (JSONException e) {
+                    events.record(PipelineEvent.OUTBOX_UNREADABLE, job.label(), "ticket", 0, 0);
+                }
+            }
+            if (job.ticket == null && stage != UploadJob.Stage.TICKET) {
+                stage = UploadJob.Stage.TICKET;
+            }
+        } else {
+            stage = UploadJob.Stage.PROCESS;
+        }
+        job.advance(stage);
+        return job;
+    }
+
+    /**
+     * Runs the job's remaining stages on this worker. A failed stage is not retried
+     * in place: the request's retry policy picks a backoff delay and the job is
+     * scheduled again from the same stage, so no worker sleeps while waiting.
+     * A job that runs out of retries because the network is gone is parked in the
+     * outbox instead of failing, and resumes when connectivity returns.
+     */
+    private void runPipeline(UploadJob job) {
+        synchronized (job) {
+            if (job.isFinished()) {
+                return; // Cancelled while queued
+            }
+            job.worker = Thread.currentThread();
+            job.pendingRetry = null;
+        }
+        try {
+            runStages(job);
+        } finally {
+            synchronized (job) {
+                job.worker = null;
+                Thread.interrupted(); // A late cancel must not hit the next job on this thread
+            }
+            if (job.request.cancelled && job.processed != null) {
+                job.processed.deleteTempFile(); // Written after the cancel cleaned up
+            }
+        }
+    }
+    
+    private void runStages(UploadJob job) {
+        try {
+            while (job.stage != UploadJob.Stage.DONE) {
+                if (job.request.cancelled) {
+                    return;
+                }
+                if (job.stage != UploadJob.Stage.PROCESS && mustWaitForNetwork(job)) {
+                    metrics.stageParked(job.stage);
+                    park(job, networkPolicy.isAvailable() ? "waiting for an unmetered network" : "offline");
+                    return;
+                }
+                reportProgress(job, job.stage == UploadJob.Stage.UPLOAD ? 0 : job.uploadedBytes);
+                if (job.stage != UploadJob.Stage.PROCESS) {
+                    ensureFreshAccessToken();
+                }
+                UploadJob.Stage stage = job.stage;
+                long started = System.nanoTime();
+                runStage(job);
+                long elapsed = System.nanoTime() - started;
+                metrics.stageSucceeded(stage, elapsed);
+                if (stage == UploadJob.Stage.UPLOAD) {
+                    metrics.uploaded(job.uploadedBytes, elapsed);
+                }
+            }
+        } catch (StageException e) {
+            if (job.request.cancelled) {
+                events.record(PipelineEvent.STAGE_ABORTED, job.label(), job.stage.name(), 0, 0);
+                return;
+            }
+            metrics.stageFailed(job.stage, e.kind);
+            job.attempt++;
+            long elapsed = System.currentTimeMillis() - job.stageStartedAt;
+            long delay = job.request.retryPolicy.delayBeforeRetry(job.attempt, elapsed, e);
+            if (delay < 0 && e.kind == StageException.Kind.NETWORK && job.request.offlineQueue
+                    && job.stage != UploadJob.Stage.PROCESS) {
+                metrics.stageParked(job.stage);
+                park(job, e.getMessage());
+                return;
+            }
+            if (delay < 0) {
+                events.record(UploadEvent.STAGE_FAIL, job.label(), e.getMessage(), job.attempt, 0);
+                finishJob(job, failureResult(job, e.getMessage()));
+                return;
+            }
+            events.record(UploadEvent.STAGE_RETRY, job.label(), e.getMessage(), job.attempt, delay);
+            metrics.stageRetried(job.stage);
+            job.pendingRetry = retries().schedule(() -> workers().execute(() -> runPipeline(job)), delay, TimeUnit.MILLISECONDS);
+            return;
+        } catch (RuntimeException e) {
+            if (job.request.cancelled) {
+                return;
+            }
+            Log.e(TAG, "Error processing image", e);
+            finishJob(job, failureResult(job, "Error processing image: " + e.getMessage()));
+            return;
+        }
+        
+        events.record(PipelineEvent.UPLOAD_DONE, job.label(), job.uploadedBytes, 0);
+        finishJob(job, successResult(job));
+    }
+    
+    /**
+     * Pulls a new token from the page when the current one expires within
+     * TOKEN_REFRESH_MARGIN_MS, so a network stage does not go out with a token that
+     * is about to be rejected. Asks once per token; without an answer the stage runs
+     * with the old token and an auth failure is retried like any other.
+     */
+    private void ensureFreshAccessToken() {
+        String token = accessToken;
+        long expiresAt = JwtClaims.expiresAtMillis(token);
+        if (expiresAt == 0 || expiresAt - System.currentTimeMillis() > TOKEN_REFRESH_MARGIN_MS) {
+            return;
+        }
+        Listener current = listener;
+        if (current == null) {
+            return;
+        }
+        boolean ask = false;
+        synchronized (tokenLock) {
+            if (!token.equals(refreshRequestedFor)) {
+                refreshRequestedFor = token;
+                refreshDeadline = SystemClock.elapsedRealtime() + TOKEN_REFRESH_WAIT_MS;
+                ask = true;
+            }
+        }
+        if (ask) {
+            events.record(PipelineEvent.TOKEN_REFRESH_REQUESTED, null, expiresAt - System.currentTimeMillis(), 0);
+            current.onAccessTokenExpiring();
+        }
+        synchronized (tokenLock) {
+            long remaining;
+            while (token.equals(accessToken) && (remaining = refreshDeadline - SystemClock.elapsedRealtime()) > 0) {
+                try {
+                    tokenLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    // Cancelled: the caller checks the request next
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+    
+    private void runStage(UploadJob job) throws StageException {
+        switch (job.stage) {
+            case PROCESS:
+                persist(job);
+                processImage(job);
+                if (job.dedupHit != null) {
+                    skipToFinalize(job);
+                    break;
+                }
+                job.advance(UploadJob.Stage.TICKET);
+                if (job.request.offlineQueue) {
+                    adoptIntoOutbox(job);
+                }
+                break;
+            case TICKET:
+                job.ticket = awaitTicket(job);
+                // A deduplicated photo only needed the ticket for its fortune id
+                job.advance(job.dedupHit != null ? UploadJob.Stage.FINALIZE : UploadJob.Stage.UPLOAD);
+                break;
+            case UPLOAD:
+                Future<String> thumbnailUpload = startThumbnailUpload(job);
+                try {
+                    engine().upload(job);
+                } catch (StageException | RuntimeException e) {
+                    if (thumbnailUpload != null) {
+                        thumbnailUpload.cancel(true);
+                    }
+                    throw e;
+                }
+                awaitThumbnailUpload(job, thumbnailUpload);
+                job.advance(UploadJob.Stage.VERIFY);
+                break;
+            case VERIFY:
+                engine().verify(job);
+                job.advance(UploadJob.Stage.FINALIZE);
+                break;
+            case FINALIZE:
+                try {
+                    job.finalizeResponse = engine().finalizePhoto(job);
+                } catch (StageException e) {
+                    if (job.dedupHit == null || e.kind != StageException.Kind.NOT_READY) {
+                        throw e;
+                    }
+                    // The cached object is gone: forget it and upload the photo after all
+                    events.record(PipelineEvent.DEDUP_STALE, job.label());
+                    dedupCache.invalidate(job.dedupKey);
+                    job.dedupHit = null;
+                    job.processed = null;
+                    job.bucketRelativePath = null;
+                    job.uploadedBytes = 0;
+                    job.thumbnailPath = null;
+                    job.blurHash = null;
+                    job.advance(UploadJob.Stage.PROCESS);
+                    break;
+                }
+                rememberUpload(job);
+                cacheUploadedPhoto(job);
+                job.advance(UploadJob.Stage.DONE);
+                return;
+            default:
+                return;
+        }
+        persist(job);
+    }
+    
+    /** An identical photo is already in storage: only finalize is left (plus a ticket if the fortune id comes from it). */
+    private void skipToFinalize(UploadJob job) {
+        if (job.request.options.optString("fortuneId", "").isEmpty()) {
+            job.advance(UploadJob.Stage.TICKET);
+            return;
+        }
+        job.ticketFuture.abandon(); // Keep the ticket for the next pick
+        job.ticketFuture = null;
+        job.advance(UploadJob.Stage.FINALIZE);
+    }
+    
+    /**
+     * Uploads the thumbnail under its own ticket while the photo uploads on this thread.
+     * It runs on the ticket executor: a thumbnail is a few dozen kilobytes, so ticket
+     * requests queued behind it wait about one round trip.
+     *
+     * @return null if there is no thumbnail left to upload
+     */
+    private Future<String> startThumbnailUpload(UploadJob job) {
+        ImageProcessor.Thumbnail thumbnail = job.processed != null ? job.processed.thumbnail : null;
+        if (job.thumbnailPath != null || thumbnail == null || thumbnail.source == null) {
+            return null;
+        }
+        UploadEngine current = engine();
+        UploadBlob blob = thumbnail.source.blob();
+        return tickets().submit(() -> current.uploadRendition(job, blob));
+    }
+    
+    /** A failed thumbnail only costs the feed its small rendition: the photo goes on without it. */
+    private void awaitThumbnailUpload(UploadJob job, Future<String> thumbnailUpload) throws StageException {
+        if (thumbnailUpload == null) {
+            return;
+        }
+        try {
+            job.thumbnailPath = thumbnailUpload.get();
+            events.record(PipelineEvent.THUMBNAIL_OK, job.label());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            events.record(PipelineEvent.THUMBNAIL_FAIL, job.label(), cause.getMessage(), 0, 0);
+        } catch (InterruptedException e) {
+            thumbnailUpload.cancel(true);
+            Thread.currentThread().interrupt();
+            throw StageException.fatal("Upload interrupted", e);
+        }
+    }
+    
+    private void rememberUpload(UploadJob job) {
+        if (job.dedupKey == null || job.dedupHit != null || job.bucketRelativePath == null) {
+            return;
+        }
+        ImageProcessor.Result processed = job.processed;
+        dedupCache.put(job.dedupKey, job.ticket.bucket, job.bucketRelativePath, processed.source.mimeType,
+            processed.width, processed.height, job.uploadedBytes, job.thumbnailPath, job.blurHash,
+            System.currentTimeMillis());
+    }
+    
+    /** The page is about to show the photo just uploaded: have it on disk under its storage path. */
+    private void cacheUploadedPhoto(UploadJob job) {
+        ImageProcessor.Result processed = job.processed;
+        if (job.dedupHit != null || processed == null) {
+            return;
+        }
+        String bucket = job.bucket();
+        File thumbnailFile = processed.thumbnailFile();
+        if (thumbnailFile != null && job.thumbnailPath != null) {
+            photoCache.put(bucket + "/" + job.thumbnailPath, processed.thumbnail.source.mimeType, thumbnailFile);
+        }
+        String key = bucket + "/" + job.bucketRelativePath;
+        if (processed.tempFile != null) {
+            // Moved: the file would be deleted once the job finishes anyway
+            photoCache.put(key, processed.source.mimeType, processed.tempFile);
+            return;
+        }
+        try (InputStream in = processed.source.open(resolver)) {
+            photoCache.put(key, processed.source.mimeType, in);
+        } catch (IOException e) {
+            events.record(PipelineEvent.PHOTO_CACHE_WRITE_FAIL, job.label(), "upload", 0, 0);
+        }
+    }
+    
+    private void park(UploadJob job, String reason) {
+        events.record(PipelineEvent.OUTBOX_PARKED, job.label(), reason, 0, 0);
+        parked.put(job.label(), job);
+        outboxMayHavePending = true;
+        removeActive(job);
+        OutboxWorker.schedule(context, waitsForUnmeteredNetwork(job));
+    }
+    
+    /**
+     * Queued uploads wait in the outbox instead of failing their network stage:
+     * all of them while there is no network, originals the page deferred while it is metered.
+     */
+    private boolean mustWaitForNetwork(UploadJob job) {
+        return job.request.offlineQueue && (!networkPolicy.isAvailable() || waitsForUnmeteredNetwork(job));
+    }
+    
+    private boolean waitsForUnmeteredNetwork(UploadJob job) {
+        return job.request.originalsOnUnmeteredOnly && job.stage == UploadJob.Stage.UPLOAD && job.dedupHit == null
+            && networkPolicy.isMetered();
+    }
+    
+    /**
+     * Called when the network is lost, replaced or changes metering. Running transfers
+     * fail over to the retry policy on their own; queued uploads pause while offline
+     * (see mustWaitForNetwork) and resume here once a network is back.
+     */
+    private void onNetworkChanged() {
+        if (!networkPolicy.isAvailable()) {
+            events.record(PipelineEvent.NETWORK_LOST, null);
+            return;
+        }
+        events.record(PipelineEvent.NETWORK_CHANGED, null, networkPolicy.isMetered() ? 1 : 0,
+            networkPolicy.estimatedBytesPerSecond());
+        // Idle pooled connections may belong to the network that went away
+        OkHttpTransport.shared().evictIdleConnections();
+        if (outboxMayHavePending) {
+            resumeOutbox();
+        }
+    }
+    
+    /** Saves the job's progress so it can be resumed by a later process. */
+    private void persist(UploadJob job) {
+        if (!job.request.offlineQueue) {
+            return;
+        }
+        synchronized (job) {
+            // A cancelled job must not come back from the outbox
+            if (!job.isFinished()) {
+                saveRecord(job);
+            }
+        }
+    }
+    
+    private void saveRecord(UploadJob job) {
+        UploadOutbox.Record record = new UploadOutbox.Record();
+        record.requestId = job.request.id;
+        record.index = job.index;
+        record.count = job.request.expectedResults();
+        record.optionsJson = job.request.options.toString();
+        record.createdAt = job.createdAt;
+        record.stage = job.stage.name();
+        record.sourceUri = job.imageUri != null ? job.imageUri.toString() : null;
+        if (job.processed != null && job.processed.tempFile != null) {
+            record.imagePath = job.processed.tempFile.getAbsolutePath();
+            record.mimeType = job.processed.source.mimeType;
+            record.width = job.processed.width;
+            record.height = job.processed.height;
+            File thumbnailFile = job.processed.thumbnailFile();
+            if (thumbnailFile != null && job.thumbnailPath == null) {
+                record.thumbnailImagePath = thumbnailFile.getAbsolutePath();
+                record.thumbnailMimeType = job.processed.thumbnail.source.mimeType;
+            }
+        }
+        record.thumbnailPath = job.thumbnailPath;
+        record.blurHash = job.blurHash;
+        record.fingerprint = job.fingerprint;
+        record.dedupKey = job.dedupKey;
+        if (job.ticket != null) {
+            record.ticketJson = job.ticket.raw.toString();
+            record.ticketIssuedAt = job.ticket.issuedAtMillis;
+        }
+        record.bucketRelativePath = job.bucketRelativePath;
+        record.uploadedBytes = job.uploadedBytes;
+        record.uploadConfirmation = job.uploadConfirmation;
+        try {
+            outbox.save(record);
+        } catch (IOException e) {
+            // It will not survive a restart
+            events.record(PipelineEvent.OUTBOX_WRITE_FAIL, job.label(), "record", 0, 0);
+        }
+    }
+    
+    /**
+     * Moves the bytes to upload into the outbox, so the upload no longer depends on the
+     * picker's temporary read grant or on the cache directory surviving.
+     */
+    private void adoptIntoOutbox(UploadJob job) {
+        ImageProcessor.Result processed = job.processed;
+        File target = outbox.imageFile(job.request.id, job.index);
+        File parent = target.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            events.record(PipelineEvent.OUTBOX_WRITE_FAIL, job.label(), "directory", 0, 0);
+            return;
+        }
+        try {
+            moveOrCopy(processed, target);
+        } catch (IOException e) {
+            // Still uploadable from where it is, just not across a restart
+            events.record(PipelineEvent.OUTBOX_WRITE_FAIL, job.label(), "image", 0, 0);
+            return;
+        }
+        job.processed = new ImageProcessor.Result(UploadSource.fromFile(target, processed.source.mimeType),
+            processed.width, processed.height, target, adoptThumbnail(job, processed.thumbnail));
+    }
+    
+    /** Moves the thumbnail next to the image in the outbox; without it the upload just goes on without one. */
+    private ImageProcessor.Thumbnail adoptThumbnail(UploadJob job, ImageProcessor.Thumbnail thumbnail) {
+        if (thumbnail == null || thumbnail.source == null) {
+            return thumbnail;
+        }
+        File current = new File(thumbnail.source.uri.getPath());
+        File target = outbox.thumbnailFile(job.request.id, job.index);
+        if (!current.renameTo(target)) {
+            events.record(PipelineEvent.OUTBOX_WRITE_FAIL, job.label(), "thumbnail", 0, 0);
+            current.delete();
+            return new ImageProcessor.Thumbnail(null, thumbnail.blurHash);
+        }
+        return new ImageProcessor.Thumbnail(UploadSource.fromFile(target, thumbnail.source.mimeType), thumbnail.blurHash);
+    }
+    
+    /** Moves the processed file to target, or copies the bytes when it is the original (or on another filesystem). */
+    private void moveOrCopy(ImageProcessor.Result processed, File target) throws IOException {
+        if (processed.tempFile != null && processed.tempFile.renameTo(target)) {
+            return;
+        }
+        try (InputStream in = processed.source.open(resolver);
+             OutputStream out = new FileOutputStream(target)) {
+            byte[] buffer = IoBuffers.get();
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+        } catch (IOException e) {
+            target.delete();
+            throw e;
+        }
+        processed.deleteImageFile();
+    }
+    
+    private void reportProgress(UploadJob job, long bytesSent) {
+        Listener current = listener;
+        if (current == null || job.isFinished()) {
+            return;
+        }
+        long total = job.processed != null ? job.processed.source.length : -1;
+        current.onProgress(job.request.id, job.index, job.request.expectedResults(),
+            job.stage.name().toLowerCase(Locale.ROOT), bytesSent, total);
+    }
+    
+    /**
+     * Cancels a request: queued and parked jobs stop right away, a pending backoff is
+     * dropped, and a running job is interrupted and has its HTTP call aborted.
+     * The request then resolves with { cancelled: true }.
+     *
+     * @return false if no upload with that id is known
+     */
+    boolean cancel(String requestId) {
+        List<UploadJob> jobs = new ArrayList<>();
+        for (UploadJob job : active.values()) {
+            if (job.request.id.equals(requestId)) {
+                jobs.add(job);
+            }
+        }
+        for (UploadJob job : parked.values()) {
+            if (job.request.id.equals(requestId)) {
+                parked.remove(job.label());
+                jobs.add(job);
+            }
+        }
+        if (jobs.isEmpty()) {
+            return cancelQueued(requestId);
+        }
+        events.record(PipelineEvent.CANCELLED, requestId, jobs.size(), 0);
+        jobs.get(0).request.cancelled = true;
+        for (UploadJob job : jobs) {
+            ScheduledFuture<?> retry = job.pendingRetry;
+            if (retry != null) {
+                retry.cancel(false);
+            }
+            synchronized (job) {
+                if (job.worker != null) {
+                    job.worker.interrupt();
+                }
+            }
+            if (job.ticketFuture != null && job.ticket == null) {
+                job.ticketFuture.abandon(); // Keep the ticket for the next pick
+            }
+        }
+        cancelCalls(jobs);
+        for (UploadJob job : jobs) {
+            finishJob(job, cancelledResult());
+        }
+        return true;
+    }
+    
+    /** cancel() off the caller's thread, on the short-task executor so queued uploads cannot delay it. */
+    void cancelAsync(String requestId) {
+        tickets().execute(() -> {
+            if (!cancel(requestId)) {
+                events.record(PipelineEvent.CANCEL_UNKNOWN, requestId);
+            }
+        });
+    }
+    
+    /** Cancels a request that only exists in the outbox, e.g. while it waits for a token. */
+    private boolean cancelQueued(String requestId) {
+        boolean known = false;
+        for (UploadOutbox.Record record : outbox.loadPending()) {
+            known |= record.requestId.equals(requestId);
+        }
+        if (!known) {
+            return false;
+        }
+        events.record(PipelineEvent.CANCELLED, requestId, "queued", 0, 0);
+        outbox.acknowledge(requestId);
+        Listener current = listener;
+        if (current != null) {
+            current.onRequestFinished(requestId, cancelledResult());
+        }
+        return true;
+    }
+    
+    /** Aborts the open connections of the given jobs; blocked reads and writes fail at once. */
+    private void cancelCalls(List<UploadJob> jobs) {
+        Transport transport = OkHttpTransport.shared(); // the one every engine sends through
+        for (UploadJob job : jobs) {
+            transport.cancel(job);
+        }
+    }
+    
+    static JSONObject cancelledResult() {
+        JSONObject cancelled = new JSONObject();
+        try {
+            cancelled.put("cancelled", true);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating cancelled JSON", e);
+        }
+        return cancelled;
+    }
+    
+    /** Records a photo's result and reports the request once all its photos are done. */
+    private void finishJob(UploadJob job, JSONObject result) {
+        UploadRequest request = job.request;
+        boolean last;
+        JSONObject finalResult;
+        synchronized (job) {
+            if (!job.markFinished()) {
+                return; // Already reported, e.g. cancelled while its stage was still running
+            }
+            if (job.processed != null) {
+                job.processed.deleteTempFile();
+            }
+            metrics.jobFinished(result.optBoolean("success", false), result.optBoolean("deduplicated", false),
+                request.cancelled, job.pickedAtNanos >= 0 ? System.nanoTime() - job.pickedAtNanos : -1);
+            last = request.complete(job.index, result);
+            // A cancelled request resolves like a cancelled pick, whatever its photos did
+            finalResult = !last ? null : request.cancelled ? cancelledResult() : request.buildResult();
+            if (request.offlineQueue) {
+                try {
+                    outbox.saveJobResult(request.id, job.index, result.toString());
+                    if (last) {
+                        outbox.saveDelivery(request.id, finalResult.toString());
+                    }
+                } catch (IOException e) {
+                    events.record(PipelineEvent.OUTBOX_WRITE_FAIL, job.label(), "result", 0, 0);
+                }
+            }
+        }
+        removeActive(job);
+        Listener current = listener;
+        if (last && current != null) {
+            current.onRequestFinished(request.id, finalResult);
+        }
+    }
+    
+    private void removeActive(UploadJob job) {
+        active.remove(job.label());
+        synchronized (drainLock) {
+            drainLock.notifyAll();
+        }
+    }
+    
+    /**
+     * Step 1: downscales and re-encodes the photo. The upload ticket does not depend on
+     * the image, so it is requested first (or was already prefetched while the picker was
+     * open) and its round trip overlaps with decoding and re-encoding on this thread.
+     */
+    private void processImage(UploadJob job) throws StageException {
+        Uri imageUri = job.imageUri;
+        
+        job.ticketFuture = job.request.claimPrefetchedTicket();
+        if (job.ticketFuture == null) {
+            job.ticketFuture = requestTicket(job.options);
+        }
+        
+        // The image is never loaded into memory: it is re-opened and streamed by the upload step
+        UploadSource original = UploadSource.fromContentUri(resolver, imageUri);
+        events.record(PipelineEvent.SOURCE_OPENED, job.label(), original.mimeType, original.length, 0);
+        
+        // Downscale and re-encode before upload; width/height describe the uploaded image
+        try {
+            ImageProcessor.Settings settings = ImageProcessor.Settings.fromOptions(job.request.options);
+            if (job.request.adaptToNetwork) {
+                NetworkPolicy.Tier tier = networkPolicy.tier();
+                settings = settings.adaptedTo(tier, job.request.options);
+                events.record(PipelineEvent.NETWORK_TIER, job.label(), tier.name(),
+                    networkPolicy.estimatedBytesPerSecond(), 0);
+            }
+            // Only a dedup lookup needs the hash, which costs a full read of the original
+            String dedupUserId = dedupUserId(job);
+            ImageProcessor.Probe probe = imageProcessor.probe(original, dedupUserId != null);
+            if (dedupUserId != null && findDuplicate(job, dedupUserId, probe, settings)) {
+                return;
+            }
+            job.processed = imageProcessor.process(original, settings, probe);
+            job.blurHash = job.processed.thumbnail != null ? job.processed.thumbnail.blurHash : null;
+            events.record(PipelineEvent.PROCESSED, job.label(), job.processed.source.mimeType, job.processed.width,
+                job.processed.height);
+            if (job.processed.thumbnail != null && job.processed.thumbnail.source != null) {
+                events.record(PipelineEvent.THUMBNAIL_READY, job.label(), job.processed.thumbnail.source.length, 0);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error reading image", e);
+            job.ticketFuture.abandon(); // Keep the ticket for the next pick
+            job.ticketFuture = null;
+            throw StageException.fatal("Error reading image: " + e.getMessage(), e);
+        }
+        
+        // Identifies the bytes being uploaded so a resumable upload can pick up where it stopped
+        job.fingerprint = imageUri + "|" + original.length + "|" + job.processed.source.mimeType + "|" + job.processed.source.length;
+    }
+    
+    /**
+     * The user whose uploads the photo is looked up among. Objects live under the user's
+     * folder, so without a user id from the access token there is nothing to look up.
+     *
+     * @return null when the job is not deduplicated
+     */
+    private String dedupUserId(UploadJob job) {
+        return job.request.options.optBoolean("dedup", true) ? JwtClaims.subject(accessToken) : null;
+    }
+
+    /**
+     * Looks the photo up in the dedup cache by the hash of its original bytes.
+     *
+     * @return true if an identical photo was already uploaded and the job now points at it
+     */
+    private boolean findDuplicate(UploadJob job, String userId, ImageProcessor.Probe probe,
+                                  ImageProcessor.Settings settings) {
+        job.dedupKey = UploadDedupCache.key(userId, probe.sha256, settings.signature());
+        UploadDedupCache.Entry hit = dedupCache.lookup(job.dedupKey, System.currentTimeMillis());
+        if (hit == null) {
+            events.record(PipelineEvent.DEDUP_MISS, job.label(), dedupCache.hits(), dedupCache.misses());
+            return false;
+        }
+        events.record(PipelineEvent.DEDUP_HIT, job.label(), dedupCache.hits(), dedupCache.misses());
+        job.dedupHit = hit;
+        job.processed = new ImageProcessor.Result(UploadSource.stored(hit.mimeType, hit.sizeBytes), hit.width, hit.height, null);
+        job.bucketRelativePath = hit.bucketRelativePath;
+        job.uploadedBytes = hit.sizeBytes;
+        job.thumbnailPath = hit.thumbnailPath;
+        job.blurHash = hit.blurHash;
+        return true;
+    }
+    
+    /**
+     * Starts an upload ticket request on the network executor, or reuses a spare ticket.
+     * Requests with their own options.endpoints never share tickets with others. Nor do
+     * requests without options.fortuneId: finalize takes their fortune id from the ticket,
+     * and a spare one was issued for an earlier pick.
+     */
+    UploadTicketCache.Prefetch requestTicket(JSONObject options) {
+        final String token = accessToken;
+        if (options.optJSONObject("endpoints") != null) {
+            UploadEngine current = engine();
+            UploadTicketCache.Prefetch prefetch = new UploadTicketCache.Prefetch(
+                () -> current.issueTicket(token, current.endpointsFor(options)), null);
+            tickets().execute(prefetch);
+            return prefetch;
+        }
+        UploadTicket spare = options.optString("fortuneId", "").isEmpty() ? null : ticketCache.take(token);
+        if (spare != null) {
+            events.record(PipelineEvent.TICKET_SPARE_USED, null);
+            return UploadTicketCache.Prefetch.completed(spare, ticketCache);
+        }
+        UploadTicketCache.Prefetch prefetch = new UploadTicketCache.Prefetch(() -> engine().issueTicket(token), ticketCache);
+        tickets().execute(prefetch);
+        return prefetch;
+    }
+    
+    private UploadTicket awaitTicket(UploadJob job) throws StageException {
+        if (job.ticketFuture == null) {
+            // Retrying after a failed ticket request
+            job.ticketFuture = requestTicket(job.options);
+        }
+        try {
+            UploadTicket ticket = job.ticketFuture.get();
+            if (!ticket.isValid()) {
+                throw StageException.fatal("Invalid upload ticket response: missing url or path", null);
+            }
+            return ticket;
+        } catch (ExecutionException e) {
+            job.ticketFuture = null;
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof StageException) {
+                throw (StageException) cause;
+            }
+            throw StageException.network(cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw StageException.fatal("Upload interrupted", e);
+        }
+    }
+    
+    private JSONObject successResult(UploadJob job) {
+        // Return success - extract signedUrl and replaced from finalize response
+        JSONObject result = new JSONObject();
+        try {
+            String signedUrl = job.finalizeResponse.optString("signedUrl", "");
+            boolean replaced = job.finalizeResponse.optBoolean("replaced", false);
+            result.put("success", true);
+            result.put("signedUrl", signedUrl);
+            result.put("replaced", replaced);
+            result.put("path", job.bucketRelativePath); // bucket-relative path: userId/file.jpg
+            result.put("width", job.processed.width);
+            result.put("height", job.processed.height);
+            result.put("mime", job.processed.source.mimeType);
+            result.put("deduplicated", job.dedupHit != null);
+            if (job.blurHash != null) {
+                result.put("blurHash", job.blurHash);
+            }
+            if (job.thumbnailPath != null) {
+                result.put("thumbnailPath", job.thumbnailPath);
+                String thumbnailSignedUrl = job.finalizeResponse.optString("thumbnailSignedUrl", "");
+                if (!thumbnailSignedUrl.isEmpty()) {
+                    result.put("thumbnailSignedUrl", thumbnailSignedUrl);
+                }
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating result JSON", e);
+        }
+        return result;
+    }
+    
+    /** server.url from capacitor.config.json, or the web app's host. */
+    private String readConfiguredServerUrl() {
+        try (InputStream is = context.getAssets().open("capacitor.config.json")) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sb.append(line);
+            }
+            
+            JSONObject config = new JSONObject(sb.toString());
+            JSONObject server = config.optJSONObject("server");
+            if (server != null) {
+                return server.optString("url", "");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading server URL", e);
+        }
+        
+        return "https://fortune-magnet.vercel.app";
+    }
+    
+    /**
+     * The error result of a photo that failed for good, with what its request went
+     * through as "log". The only time events reach logcat in release builds.
+     */
+    private JSONObject failureResult(UploadJob job, String errorMessage) {
+        JSONObject error = errorResult(errorMessage);
+        List<String> lines = events.dump(job.request.id, job.label());
+        Log.w(TAG, "UPLOAD_FAILED " + job.label() + ", its events:");
+        JSONArray log = new JSONArray();
+        for (String line : lines) {
+            Log.w(TAG, "  " + line);
+            log.put(line);
+        }
+        try {
+            error.put("log", log);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating error JSON", e);
+        }
+        return error;
+    }
+    
+    static JSONObject errorResult(String errorMessage) {
+        JSONObject error = new JSONObject();
+        try {
+            error.put("success", false);
+            error.put("error", errorMessage);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating error JSON", e);
+        }
+        return error;
+    }
+}
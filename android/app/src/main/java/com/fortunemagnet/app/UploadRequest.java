@@ -0,0 +1,114 @@
+package com.fortunemagnet.app;
+
+import android.util.Log;
+
+import com.fortunemagnet.upload.ExponentialBackoffPolicy;
+import com.fortunemagnet.upload.RetryPolicy;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * State of one pickAndUploadFortunePhoto call from JS, keyed by its request id.
+ * A request owns one upload job per picked photo and resolves the JS promise
+ * once, after every job has reported its result.
+ */
+final class UploadRequest {
+    private static final String TAG = "NativeUploaderBridge";
+
+    final String id;
+    final JSONObject options;
+    final boolean allowMultiple;
+    final boolean pickOnly;
+    final RetryPolicy retryPolicy;
+    final boolean offlineQueue; // persist jobs so they survive restarts and connectivity loss
+    final boolean adaptToNetwork; // cap resolution and quality the page did not set on slow networks
+    final boolean originalsOnUnmeteredOnly; // queue unprocessed photos until the network is unmetered
+    volatile boolean cancelled;
+
+    private JSONObject[] results;
+    private int remaining;
+    private UploadTicketCache.Prefetch prefetchedTicket;
+
+    UploadRequest(String id, JSONObject options) {
+        this(id, options, false);
+    }
+
+    /** @param pickOnly NativePhotoPicker request: hand the photos to the page instead of uploading */
+    UploadRequest(String id, JSONObject options, boolean pickOnly) {
+        this.id = id;
+        this.pickOnly = pickOnly;
+        this.options = options != null ? options : new JSONObject();
+        this.allowMultiple = this.options.optBoolean("allowMultiple", false);
+        this.retryPolicy = ExponentialBackoffPolicy.fromOptions(this.options);
+        this.offlineQueue = this.options.optBoolean("offlineQueue", true);
+        this.adaptToNetwork = this.options.optBoolean("adaptToNetwork", true);
+        // Needs the outbox to wait in; processed photos are small enough for any network
+        this.originalsOnUnmeteredOnly = offlineQueue && this.options.optBoolean("deferOriginalsUntilUnmetered", false)
+            && !ImageProcessor.Settings.fromOptions(this.options).enabled;
+    }
+
+    synchronized void setPrefetchedTicket(UploadTicketCache.Prefetch prefetch) {
+        prefetchedTicket = prefetch;
+    }
+
+    /**
+     * Hands the ticket requested while the picker was open to the first job that asks.
+     *
+     * @return the prefetch, or null if it was already claimed
+     */
+    synchronized UploadTicketCache.Prefetch claimPrefetchedTicket() {
+        UploadTicketCache.Prefetch prefetch = prefetchedTicket;
+        prefetchedTicket = null;
+        return prefetch;
+    }
+
+    /** Called once the picker returns, with the number of photos to upload. */
+    synchronized void expectResults(int count) {
+        results = new JSONObject[count];
+        remaining = count;
+    }
+
+    synchronized int expectedResults() {
+        return results != null ? results.length : 0;
+    }
+
+    /**
+     * Records the result of one photo.
+     *
+     * @return true when this was the last outstanding photo of the request
+     */
+    synchronized boolean complete(int index, JSONObject result) {
+        if (results == null || results[index] != null) {
+            return false;
+        }
+        results[index] = result;
+        remaining--;
+        return remaining == 0;
+    }
+
+    /**
+     * Result handed to JS. Single-photo requests keep the original shape;
+     * multi-select requests get { success, results: [...] } in pick order.
+     */
+    synchronized JSONObject buildResult() {
+        if (!allowMultiple && results.length == 1) {
+            return results[0];
+        }
+        JSONObject aggregate = new JSONObject();
+        JSONArray items = new JSONArray();
+        boolean allSucceeded = true;
+        for (JSONObject result : results) {
+            items.put(result);
+            allSucceeded &= result.optBoolean("success", false);
+        }
+        try {
+            aggregate.put("success", allSucceeded);
+            aggregate.put("results", items);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating result JSON", e);
+        }
+        return aggregate;
+    }
+}
@@ -0,0 +1,96 @@
+package com.fortunemagnet.app;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import com.fortunemagnet.upload.UploadBlob;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Image to be uploaded, addressed by Uri so it can be re-opened and streamed
+ * as many times as the pipeline needs without keeping its bytes in memory.
+ */
+final class UploadSource {
+    private static final String TAG = "NativeUploaderBridge";
+
+    final Uri uri;
+    final long length; // -1 when the provider does not report a size
+    final String mimeType;
+
+    private UploadSource(Uri uri, long length, String mimeType) {
+        this.uri = uri;
+        this.length = length;
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * Resolves the size of a picked content Uri without reading it.
+     * Tries OpenableColumns.SIZE first, then the asset file descriptor.
+     */
+    static UploadSource fromContentUri(ContentResolver resolver, Uri uri) {
+        long length = -1;
+
+        try (Cursor cursor = resolver.query(uri, new String[] { OpenableColumns.SIZE }, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int index = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (index >= 0 && !cursor.isNull(index)) {
+                    length = cursor.getLong(index);
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Could not query image size", e);
+        }
+
+        if (length < 0) {
+            try (AssetFileDescriptor afd = resolver.openAssetFileDescriptor(uri, "r")) {
+                if (afd != null && afd.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH) {
+                    length = afd.getLength();
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Could not read image size from file descriptor", e);
+            }
+        }
+
+        String mimeType = resolver.getType(uri);
+        if (mimeType == null || !mimeType.startsWith("image/")) {
+            mimeType = "image/jpeg";
+        }
+
+        return new UploadSource(uri, length, mimeType);
+    }
+
+    /** Wraps a processed image written to app-private storage. */
+    static UploadSource fromFile(File file, String mimeType) {
+        return new UploadSource(Uri.fromFile(file), file.length(), mimeType);
+    }
+
+    /** Describes an object that is already in storage; it is never opened. */
+    static UploadSource stored(String mimeType, long length) {
+        return new UploadSource(null, length, mimeType);
+    }
+
+    /** File name sent in the multipart part, with an extension matching the MIME type. */
+    String fileName() {
+        return UploadBlob.fileNameFor(mimeType);
+    }
+
+    /** The source as the upload engine sees it; opened through ContentBlobStore. */
+    UploadBlob blob() {
+        return new UploadBlob(uri != null ? uri.toString() : null, length, mimeType);
+    }
+
+    InputStream open(ContentResolver resolver) throws IOException {
+        InputStream inputStream = resolver.openInputStream(uri);
+        if (inputStream == null) {
+            throw new IOException("Failed to open input stream for image");
+        }
+        return inputStream;
+    }
+}
@@ -0,0 +1,96 @@
+package com.fortunemagnet.app;
+
+import com.fortunemagnet.upload.EventLog;
+import com.fortunemagnet.upload.UploadTicket;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps unused but still valid upload tickets, e.g. one prefetched while the
+ * picker was open and then cancelled, so the next pick skips the ticket round trip.
+ * Only picks that name their fortune may take one (see UploadPipeline.requestTicket).
+ */
+final class UploadTicketCache {
+    private static final int MAX_SPARE_TICKETS = 2;
+
+    private final ArrayDeque<UploadTicket> spares = new ArrayDeque<>();
+    private final EventLog events;
+
+    UploadTicketCache(EventLog events) {
+        this.events = events;
+    }
+
+    synchronized void offer(UploadTicket ticket) {
+        if (ticket == null || !ticket.isValid()) {
+            return;
+        }
+        if (spares.size() >= MAX_SPARE_TICKETS) {
+            spares.pollFirst();
+        }
+        spares.addLast(ticket);
+        events.record(PipelineEvent.TICKET_SPARE_STORED, null, spares.size(), 0);
+    }
+
+    /** @return a spare ticket usable with the given token, or null */
+    synchronized UploadTicket take(String accessToken) {
+        long now = System.currentTimeMillis();
+        while (!spares.isEmpty()) {
+            UploadTicket ticket = spares.pollLast();
+            if (ticket.isReusable(accessToken, now)) {
+                return ticket;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Ticket request started ahead of need. If its owner no longer needs it,
+     * abandon() sends the ticket to the cache once (or as soon as) it arrives.
+     */
+    static final class Prefetch extends FutureTask<UploadTicket> {
+        private final UploadTicketCache cache;
+        private final AtomicBoolean recycled = new AtomicBoolean(false);
+        private volatile boolean abandoned;
+
+        /** @param cache where an abandoned ticket goes, or null to drop it */
+        Prefetch(Callable<UploadTicket> fetch, UploadTicketCache cache) {
+            super(fetch);
+            this.cache = cache;
+        }
+
+        /** Already-issued ticket wrapped as a completed prefetch. */
+        static Prefetch completed(UploadTicket ticket, UploadTicketCache cache) {
+            Prefetch prefetch = new Prefetch(() -> ticket, cache);
+            prefetch.run();
+            return prefetch;
+        }
+
+        void abandon() {
+            abandoned = true;
+            if (isDone()) {
+                recycle();
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (abandoned) {
+                recycle();
+            }
+        }
+
+        private void recycle() {
+            if (cache == null || !recycled.compareAndSet(false, true) || isCancelled()) {
+                return;
+            }
+            try {
+                cache.offer(get());
+            } catch (Exception e) {
+                // A failed prefetch has nothing to recycle
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.fortunemagnet.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class BlurHashTest {
+
+    @Test
+    public void encode_averageColorIsTheSolidColor() {
+        int[] white = new int[8 * 6];
+        Arrays.fill(white, 0xFFFFFFFF);
+        int[] black = new int[8 * 6];
+        Arrays.fill(black, 0xFF000000);
+
+        String whiteHash = BlurHash.encode(white, 8, 6, 4, 3);
+        String blackHash = BlurHash.encode(black, 8, 6, 4, 3);
+
+        assertEquals('L', whiteHash.charAt(0)); // (4 - 1) + (3 - 1) * 9 = 21
+        assertEquals("TSUA", whiteHash.substring(2, 6)); // 0xFFFFFF in base 83
+        assertEquals("0000", blackHash.substring(2, 6));
+        assertEquals(4 + 2 * 4 * 3, whiteHash.length());
+    }
+
+    @Test
+    public void encode_lengthAndSizeFollowComponents() {
+        int[] pixels = new int[6 * 8];
+        for (int p = 0; p < pixels.length; p++) {
+            pixels[p] = p % 6 < 3 ? 0xFF000000 : 0xFFFFFFFF;
+        }
+
+        String hash = BlurHash.encode(pixels, 6, 8, 3, 4);
+
+        assertEquals(4 + 2 * 3 * 4, hash.length());
+        assertEquals('T', hash.charAt(0)); // (3 - 1) + (4 - 1) * 9 = 29
+        assertNotEquals('0', hash.charAt(1)); // the edge gives AC components a range
+    }
+
+    @Test
+    public void encode_rejectsTooManyComponents() {
+        try {
+            BlurHash.encode(new int[4], 2, 2, 10, 3);
+            fail("Expected more than 9 components to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("between 1 and 9"));
+        }
+    }
+}
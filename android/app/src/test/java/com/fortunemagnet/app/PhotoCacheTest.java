@@ -0,0 +1,141 @@
+package com.fortunemagnet.app;
+
+import static org.junit.Assert.*;
+
+import com.fortunemagnet.upload.EventLog;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class PhotoCacheTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(tempFolder.getRoot(), "photo-cache");
+    }
+
+    @Test
+    public void put_movesTheUploadedFileInAndSurvivesANewInstance() throws Exception {
+        PhotoCache cache = cache(1000);
+        File uploaded = file("upload.jpg", 100);
+
+        cache.put("photos/user-1/a.jpg", "image/jpeg", uploaded);
+
+        assertFalse(uploaded.exists());
+        File cached = cache(1000).lookup("photos/user-1/a.jpg");
+        assertNotNull(cached);
+        assertEquals(100, cached.length());
+        assertTrue(cached.getName().endsWith(".jpeg"));
+        assertNull(cache.lookup("photos/user-1/b.jpg"));
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsedOverTheSize() throws Exception {
+        PhotoCache cache = cache(250);
+        cache.put("a", "image/jpeg", new ByteArrayInputStream(new byte[100]));
+        cache.put("b", "image/jpeg", new ByteArrayInputStream(new byte[100]));
+        assertNotNull(cache.lookup("a")); // b is now the least recently used
+
+        cache.put("c", "image/webp", new ByteArrayInputStream(new byte[100]));
+
+        assertNotNull(cache.lookup("a"));
+        assertNull(cache.lookup("b"));
+        assertNotNull(cache.lookup("c"));
+        assertEquals(200, cache.totalBytes());
+    }
+
+    @Test
+    public void put_keepsNothingOfAFailedCopy() throws Exception {
+        PhotoCache cache = cache(1000);
+        cache.put("whole", "image/jpeg", new ByteArrayInputStream(new byte[300]));
+        InputStream broken = new InputStream() {
+            private boolean started;
+
+            @Override
+            public int read() throws IOException {
+                throw new IOException("source went away");
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (started) {
+                    throw new IOException("source went away");
+                }
+                started = true;
+                return Math.min(length, 64);
+            }
+        };
+
+        try {
+            cache.put("partial", "image/jpeg", broken);
+            fail("Expected the copy to fail");
+        } catch (IOException expected) {
+            // The source failed mid-copy
+        }
+
+        assertNull(cache.lookup("partial"));
+        assertEquals(1, cache.lookup("whole").getParentFile().listFiles().length); // no temporary files left behind
+    }
+
+    @Test
+    public void anotherUser_neverSeesThePhotosOfTheFirst() throws Exception {
+        PhotoCache cache = cache(1000);
+        cache.put("photos/user-1/a.jpg", "image/jpeg", new ByteArrayInputStream(new byte[100]));
+        InputStream copy = new ByteArrayInputStream(new byte[100]) {
+            @Override
+            public synchronized int read(byte[] buffer, int offset, int length) {
+                cache.setOwner("user-2"); // Finishes after the switch
+                return super.read(buffer, offset, length);
+            }
+        };
+
+        cache.put("photos/user-1/b.jpg", "image/jpeg", copy);
+
+        assertNull(cache.lookup("photos/user-1/a.jpg"));
+        assertNull(cache.lookup("photos/user-1/b.jpg"));
+        assertEquals(0, cache.totalBytes());
+        assertNull(cache(1000).lookup("photos/user-1/a.jpg")); // gone from disk, not just hidden
+    }
+
+    @Test
+    public void withoutAUser_nothingIsServedOrKept() throws Exception {
+        PhotoCache cache = cache(1000);
+        cache.put("a", "image/jpeg", new ByteArrayInputStream(new byte[100]));
+
+        cache.setOwner(null);
+        cache.put("b", "image/jpeg", new ByteArrayInputStream(new byte[100]));
+
+        assertFalse(cache.hasOwner());
+        assertNull(cache.lookup("a"));
+        cache.setOwner("user-1");
+        assertNotNull(cache.lookup("a")); // the same user keeps their photos
+        assertNull(cache.lookup("b"));
+    }
+
+    private PhotoCache cache(long maxBytes) {
+        PhotoCache cache = new PhotoCache(dir, maxBytes, EventLog.NONE);
+        cache.setOwner("user-1");
+        return cache;
+    }
+
+    private File file(String name, int size) throws Exception {
+        File file = tempFolder.newFile(name);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,93 @@
+package com.fortunemagnet.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+public class UploadDedupCacheTest {
+    private static final long TTL = 60_000;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(tempFolder.newFolder("dedup"), "upload-dedup.properties");
+    }
+
+    @Test
+    public void lookup_returnsStoredObjectAndCountsHitsAndMisses() {
+        UploadDedupCache cache = new UploadDedupCache(file, 10, TTL);
+        String key = UploadDedupCache.key("user-1", "abc", "jpeg@2048q85");
+
+        assertNull(cache.lookup(key, 1000));
+        cache.put(key, "photos", "user-1/a.jpg", "image/jpeg", 800, 600, 12345, 1000);
+        UploadDedupCache.Entry entry = cache.lookup(key, 2000);
+
+        assertNotNull(entry);
+        assertEquals("photos", entry.bucket);
+        assertEquals("user-1/a.jpg", entry.bucketRelativePath);
+        assertEquals(800, entry.width);
+        assertEquals(12345, entry.sizeBytes);
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertNull(cache.lookup(UploadDedupCache.key("user-2", "abc", "jpeg@2048q85"), 2000));
+    }
+
+    @Test
+    public void entries_expireAfterTtl() {
+        UploadDedupCache cache = new UploadDedupCache(file, 10, TTL);
+        cache.put("k", "photos", "p.jpg", "image/jpeg", 1, 1, 1, 1000);
+
+        assertNotNull(cache.lookup("k", 1000 + TTL - 1));
+        assertNull(cache.lookup("k", 1000 + TTL));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsedAndOrderSurvivesReload() {
+        UploadDedupCache cache = new UploadDedupCache(file, 2, TTL);
+        cache.put("a", "photos", "a.jpg", "image/jpeg", 1, 1, 1, 1000);
+        cache.put("b", "photos", "b.jpg", "image/jpeg", 1, 1, 1, 1001);
+        assertNotNull(cache.lookup("a", 1002)); // b is now the least recently used
+
+        UploadDedupCache reloaded = new UploadDedupCache(file, 2, TTL);
+        reloaded.put("c", "photos", "c.jpg", "image/jpeg", 1, 1, 1, 1003);
+
+        assertEquals(2, reloaded.size());
+        assertNull(reloaded.lookup("b", 1004));
+        assertNotNull(reloaded.lookup("a", 1004));
+        assertNotNull(reloaded.lookup("c", 1004));
+    }
+
+    @Test
+    public void entries_keepThumbnailAcrossReload() {
+        UploadDedupCache cache = new UploadDedupCache(file, 10, TTL);
+        cache.put("k", "photos", "p.jpg", "image/jpeg", 1, 1, 1, "p-thumb.jpg", "L0TSUA", 1000);
+        cache.put("plain", "photos", "q.jpg", "image/jpeg", 1, 1, 1, 1000);
+
+        UploadDedupCache reloaded = new UploadDedupCache(file, 10, TTL);
+        UploadDedupCache.Entry entry = reloaded.lookup("k", 1001);
+        assertEquals("p-thumb.jpg", entry.thumbnailPath);
+        assertEquals("L0TSUA", entry.blurHash);
+        UploadDedupCache.Entry plain = reloaded.lookup("plain", 1001);
+        assertNull(plain.thumbnailPath);
+        assertNull(plain.blurHash);
+    }
+
+    @Test
+    public void invalidate_removesEntry() {
+        UploadDedupCache cache = new UploadDedupCache(file, 10, TTL);
+        cache.put("k", "photos", "p.jpg", "image/jpeg", 1, 1, 1, 1000);
+        cache.invalidate("k");
+
+        assertNull(new UploadDedupCache(file, 10, TTL).lookup("k", 1001));
+    }
+}
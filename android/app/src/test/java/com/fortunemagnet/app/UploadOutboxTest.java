@@ -0,0 +1,116 @@
+package com.fortunemagnet.app;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+public class UploadOutboxTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dir;
+    private UploadOutbox outbox;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tempFolder.newFolder("outbox");
+        outbox = new UploadOutbox(dir);
+    }
+
+    @Test
+    public void pendingJobs_surviveANewInstanceInPickOrder() throws Exception {
+        outbox.save(record("req-b", 0, 2000, "TICKET"));
+        outbox.save(record("req-a", 1, 1000, "UPLOAD"));
+        outbox.save(record("req-a", 0, 1000, "VERIFY"));
+
+        List<UploadOutbox.Record> pending = new UploadOutbox(dir).loadPending();
+
+        assertEquals(3, pending.size());
+        assertEquals("req-a#0", pending.get(0).key());
+        assertEquals("req-a#1", pending.get(1).key());
+        assertEquals("req-b#0", pending.get(2).key());
+        UploadOutbox.Record first = pending.get(0);
+        assertEquals("VERIFY", first.stage);
+        assertEquals(2, first.count);
+        assertEquals("{\"fortuneId\":\"f-1\"}", first.optionsJson);
+        assertEquals("user/photo.jpg", first.bucketRelativePath);
+        assertEquals(4096, first.uploadedBytes);
+        assertNull(first.uploadConfirmation);
+    }
+
+    @Test
+    public void finishedJobs_turnIntoOneDeliveryUntilAcknowledged() throws Exception {
+        outbox.save(record("req-1", 0, 1000, "FINALIZE"));
+        outbox.save(record("req-1", 1, 1000, "UPLOAD"));
+        assertTrue(outbox.imageFile("req-1", 0).createNewFile());
+
+        outbox.saveJobResult("req-1", 0, "{\"success\":true}");
+
+        assertFalse(outbox.imageFile("req-1", 0).exists());
+        assertEquals(1, outbox.loadPending().size());
+        Map<Integer, String> results = outbox.loadJobResults("req-1");
+        assertEquals("{\"success\":true}", results.get(0));
+
+        outbox.saveJobResult("req-1", 1, "{\"success\":false}");
+        outbox.saveDelivery("req-1", "{\"success\":false,\"results\":[]}");
+
+        assertTrue(outbox.loadPending().isEmpty());
+        assertTrue(outbox.loadJobResults("req-1").isEmpty());
+        List<String[]> deliveries = outbox.loadDeliveries();
+        assertEquals(1, deliveries.size());
+        assertEquals("req-1", deliveries.get(0)[0]);
+
+        outbox.acknowledge("req-1");
+
+        assertTrue(outbox.loadDeliveries().isEmpty());
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void unreadableRecords_areDropped() throws Exception {
+        outbox.save(record("req-1", 0, 1000, "UPLOAD"));
+        File requestDir = dir.listFiles()[0];
+        File corrupt = new File(requestDir, "job-1.properties");
+        assertTrue(corrupt.createNewFile());
+
+        assertEquals(1, outbox.loadPending().size());
+        assertFalse(corrupt.exists());
+    }
+
+    @Test
+    public void credentialsInOptions_neverReachTheDisk() throws Exception {
+        UploadOutbox.Record record = record("req-1", 0, 1000, "UPLOAD");
+        record.optionsJson = "{\"fortuneId\":\"f-1\",\"accessToken\":\"eyJ.secret.jwt\",\"refreshToken\":\"r-1\"}";
+
+        outbox.save(record);
+
+        File saved = new File(dir.listFiles()[0], "job-0.properties");
+        String contents = new String(Files.readAllBytes(saved.toPath()), StandardCharsets.UTF_8);
+        assertFalse(contents, contents.contains("eyJ.secret.jwt"));
+        assertFalse(contents, contents.contains("r-1"));
+        assertEquals("{\"fortuneId\":\"f-1\"}", outbox.loadPending().get(0).optionsJson);
+    }
+
+    private static UploadOutbox.Record record(String requestId, int index, long createdAt, String stage) {
+        UploadOutbox.Record record = new UploadOutbox.Record();
+        record.requestId = requestId;
+        record.index = index;
+        record.count = 2;
+        record.createdAt = createdAt;
+        record.stage = stage;
+        record.optionsJson = "{\"fortuneId\":\"f-1\"}";
+        record.sourceUri = "content://media/picker/" + index;
+        record.bucketRelativePath = "user/photo.jpg";
+        record.uploadedBytes = 4096;
+        return record;
+    }
+}
@@ -0,0 +1,47 @@
+package com.fortunemagnet.benchmark;
+
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.StartupMode;
+import androidx.benchmark.macro.StartupTimingMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+
+import kotlin.Unit;
+
+/**
+ * Cold start of the app from the launcher. Compare timeToInitialDisplayMs (first
+ * frame) and timeToFullDisplayMs (uploader bootstrap ready) between builds to see
+ * what the native uploader's startup work costs.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+    private static final String PACKAGE_NAME = "com.fortunemagnet.app";
+    private static final int ITERATIONS = 10;
+
+    @Rule
+    public MacrobenchmarkRule benchmarkRule = new MacrobenchmarkRule();
+
+    @Test
+    public void coldStart() {
+        benchmarkRule.measureRepeated(
+            PACKAGE_NAME,
+            Collections.singletonList(new StartupTimingMetric()),
+            CompilationMode.DEFAULT,
+            StartupMode.COLD,
+            ITERATIONS,
+            scope -> {
+                scope.pressHome();
+                return Unit.INSTANCE;
+            },
+            scope -> {
+                scope.startActivityAndWait();
+                return Unit.INSTANCE;
+            });
+    }
+}
@@ -0,0 +1,38 @@
+package com.fortunemagnet.upload;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Deciding whether and when a failed stage is retried, with the policy uploads get by default. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BackoffBenchmark {
+    private final ExponentialBackoffPolicy policy = ExponentialBackoffPolicy.fromOptions(null);
+    private final StageException network = StageException.network("connection reset", null);
+    private final StageException rejected = StageException.http("Failed to upload: 403", 403);
+    private int attempt;
+
+    @Benchmark
+    public long retryable() {
+        attempt = attempt % 3 + 1;
+        return policy.delayBeforeRetry(attempt, 1000, network);
+    }
+
+    @Benchmark
+    public long notRetryable() {
+        return policy.delayBeforeRetry(1, 1000, rejected);
+    }
+}
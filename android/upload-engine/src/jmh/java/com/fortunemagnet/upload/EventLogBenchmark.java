@@ -0,0 +1,52 @@
+package com.fortunemagnet.upload;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording an event, which the pipeline does at every stage of every photo.
+ * Run with -prof gc to see that recording allocates nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventLogBenchmark {
+    private static final String SUBJECT = "17#0";
+
+    private final EventLog kept = new EventLog(256, EventLog.Level.DEBUG, null);
+    private final EventLog belowLevel = new EventLog(256, EventLog.Level.WARN, null);
+
+    @Benchmark
+    public void record() {
+        kept.record(UploadEvent.UPLOAD_OK, SUBJECT, 200, 482113);
+    }
+
+    @Benchmark
+    public void recordWithDetail() {
+        kept.record(UploadEvent.VERIFY_OK, SUBJECT, "head", 12, 0);
+    }
+
+    @Benchmark
+    public void recordBelowLevel() {
+        belowLevel.record(UploadEvent.UPLOAD_OK, SUBJECT, 200, 482113);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        kept.record(UploadEvent.UPLOAD_OK, SUBJECT, 200, 482113);
+    }
+}
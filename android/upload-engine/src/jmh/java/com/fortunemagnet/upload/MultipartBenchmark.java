@@ -0,0 +1,58 @@
+package com.fortunemagnet.upload;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames and copies a photo the way an upload writes it to the socket, into a
+ * sink that drops the bytes: the per-byte cost of an upload without the network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultipartBenchmark {
+    @Param({ "262144", "2097152" })
+    int photoBytes;
+
+    private byte[] photo;
+    private StreamingMultipartBody body;
+    private OutputStream sink;
+
+    @Setup
+    public void setUp() {
+        photo = new byte[photoBytes];
+        new Random(42).nextBytes(photo);
+        body = new StreamingMultipartBody("file", "photo.jpg", "image/jpeg");
+        sink = OutputStream.nullOutputStream();
+    }
+
+    @Benchmark
+    public long writeTo() throws IOException {
+        return body.writeTo(sink, new ByteArrayInputStream(photo));
+    }
+
+    @Benchmark
+    public long frameAndWrite() throws IOException {
+        // A new body per upload, as UploadEngine builds one
+        StreamingMultipartBody fresh = new StreamingMultipartBody("file", "photo.jpg", "image/jpeg");
+        return fresh.writeTo(sink, new ByteArrayInputStream(photo));
+    }
+}
@@ -0,0 +1,41 @@
+package com.fortunemagnet.upload;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** What a stage attempt costs in UploadMetrics, alone and with the worker pool recording at once. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadMetricsBenchmark {
+    private final UploadMetrics metrics = new UploadMetrics();
+
+    @Benchmark
+    public void stageSucceeded() {
+        metrics.stageSucceeded(UploadTask.Stage.UPLOAD, 48_213_000L);
+    }
+
+    @Benchmark
+    public void uploaded() {
+        metrics.uploaded(482_113L, 48_213_000L);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void stageSucceededContended() {
+        metrics.stageSucceeded(UploadTask.Stage.UPLOAD, 48_213_000L);
+    }
+}
@@ -0,0 +1,12 @@
+package com.fortunemagnet.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Opens the bytes of an image to upload. Called again for every attempt, so
+ * an implementation must be able to read the same blob more than once.
+ */
+public interface BlobStore {
+    InputStream open(UploadBlob blob) throws IOException;
+}
@@ -0,0 +1,31 @@
+package com.fortunemagnet.upload;
+
+/**
+ * Time source of the engine: wall-clock time for tickets and deadlines, a
+ * monotonic clock for measuring, and sleeping between retries.
+ */
+public interface Clock {
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+    };
+
+    long currentTimeMillis();
+
+    /** Monotonic, for durations only. */
+    long nanoTime();
+
+    void sleep(long millis) throws InterruptedException;
+}
@@ -0,0 +1,176 @@
+package com.fortunemagnet.upload;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Fixed-format diagnostic events of the upload pipeline, kept in a preallocated
+ * ring buffer instead of being written to logcat as they happen. An event is a
+ * type, the task it belongs to and up to two numbers plus a string the caller
+ * already has (a stage name, a status message), so recording copies a few
+ * references into arrays and allocates nothing; events below the minimum level
+ * return after one comparison. Text is only built by {@link #dump}, i.e. when an
+ * upload failed and someone needs to know why, or for the mirror logger, which
+ * debug builds set to see every event as it is recorded.
+ */
+public final class EventLog {
+    /** Records nothing. */
+    public static final EventLog NONE = new EventLog(0, Level.ERROR, null);
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    /**
+     * A kind of event. Implemented by enums, whose name() is the event's name in
+     * a dump; the argument names label the two numbers, null when unused.
+     */
+    public interface Type {
+        String name();
+
+        Level level();
+
+        String firstArgument();
+
+        String secondArgument();
+    }
+
+    private final int capacity;
+    private final Level minLevel;
+    private final Logger mirror; // null unless every event should also be logged as it happens
+    private final Clock clock;
+
+    // One slot per event, guarded by this; next is the slot written next
+    private final long[] times;
+    private final Type[] types;
+    private final String[] subjects;
+    private final String[] details;
+    private final long[] firsts;
+    private final long[] seconds;
+    private int next;
+    private int size;
+
+    /**
+     * @param capacity events kept; older ones are overwritten
+     * @param minLevel events below it are dropped
+     * @param mirror also receives every recorded event as a line, or null
+     */
+    public EventLog(int capacity, Level minLevel, Logger mirror) {
+        this(capacity, minLevel, mirror, Clock.SYSTEM);
+    }
+
+    EventLog(int capacity, Level minLevel, Logger mirror, Clock clock) {
+        this.capacity = capacity;
+        this.minLevel = minLevel;
+        this.mirror = mirror;
+        this.clock = clock;
+        this.times = new long[capacity];
+        this.types = new Type[capacity];
+        this.subjects = new String[capacity];
+        this.details = new String[capacity];
+        this.firsts = new long[capacity];
+        this.seconds = new long[capacity];
+    }
+
+    /** Whether events of this type are kept; lets callers skip computing arguments. */
+    public boolean isLoggable(Type type) {
+        return capacity > 0 && type.level().compareTo(minLevel) >= 0;
+    }
+
+    public void record(Type type, String subject) {
+        record(type, subject, null, 0, 0);
+    }
+
+    public void record(Type type, String subject, long first, long second) {
+        record(type, subject, null, first, second);
+    }
+
+    /**
+     * @param subject label of the task the event belongs to ({@link UploadTask#label}), or null
+     * @param detail a string that already exists anyway, or null; never build one for this call
+     */
+    public void record(Type type, String subject, String detail, long first, long second) {
+        if (!isLoggable(type)) {
+            return;
+        }
+        long time = clock.currentTimeMillis();
+        synchronized (this) {
+            int slot = next;
+            times[slot] = time;
+            types[slot] = type;
+            subjects[slot] = subject;
+            details[slot] = detail;
+            firsts[slot] = first;
+            seconds[slot] = second;
+            next = (slot + 1) % capacity;
+            size = Math.min(size + 1, capacity);
+        }
+        if (mirror != null) {
+            mirror.d(format(new StringBuilder(), null, type, subject, detail, first, second).toString());
+        }
+    }
+
+    /**
+     * The kept events of the given subjects as lines, oldest first, e.g.
+     * "12:00:01.250 UPLOAD_OK 17#0 status=200 bytes=482113".
+     */
+    public List<String> dump(String... subjects) {
+        List<String> lines = new ArrayList<>();
+        SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        synchronized (this) {
+            for (int i = 0; i < size; i++) {
+                int slot = (next - size + i + capacity) % capacity;
+                if (matches(this.subjects[slot], subjects)) {
+                    lines.add(format(new StringBuilder(), timeFormat.format(new Date(times[slot])), types[slot],
+                        this.subjects[slot], details[slot], firsts[slot], seconds[slot]).toString());
+                }
+            }
+        }
+        return lines;
+    }
+
+    /** Forgets every event, e.g. once a dump was delivered. */
+    public synchronized void clear() {
+        for (int i = 0; i < capacity; i++) {
+            types[i] = null;
+            subjects[i] = null;
+            details[i] = null;
+        }
+        next = 0;
+        size = 0;
+    }
+
+    private static boolean matches(String subject, String[] subjects) {
+        if (subjects.length == 0) {
+            return true;
+        }
+        for (String wanted : subjects) {
+            if (wanted != null && wanted.equals(subject)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static StringBuilder format(StringBuilder line, String time, Type type, String subject, String detail,
+                                        long first, long second) {
+        if (time != null) {
+            line.append(time).append(' ');
+        }
+        line.append(type.name());
+        if (subject != null) {
+            line.append(' ').append(subject);
+        }
+        if (type.firstArgument() != null) {
+            line.append(' ').append(type.firstArgument()).append('=').append(first);
+        }
+        if (type.secondArgument() != null) {
+            line.append(' ').append(type.secondArgument()).append('=').append(second);
+        }
+        if (detail != null) {
+            line.append(": ").append(detail);
+        }
+        return line;
+    }
+}
@@ -0,0 +1,84 @@
+package com.fortunemagnet.upload;
+
+import org.json.JSONObject;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter and a per-stage deadline.
+ * Retries network errors, 5xx, 408, 429 and not-yet-visible results;
+ * other 4xx and fatal errors fail fast.
+ */
+public final class ExponentialBackoffPolicy implements RetryPolicy {
+    static final int DEFAULT_MAX_ATTEMPTS = 4;
+    static final long DEFAULT_BASE_DELAY_MS = 500;
+    static final long DEFAULT_MAX_DELAY_MS = 8000;
+    static final long DEFAULT_DEADLINE_MS = 90000;
+
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final long deadlineMs;
+    private final Random random;
+
+    public ExponentialBackoffPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs, long deadlineMs, Random random) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.deadlineMs = deadlineMs;
+        this.random = random;
+    }
+
+    /**
+     * Reads the optional { retry: { maxAttempts, baseDelayMs, maxDelayMs, deadlineMs } } option.
+     */
+    public static ExponentialBackoffPolicy fromOptions(JSONObject options) {
+        JSONObject retry = options != null ? options.optJSONObject("retry") : null;
+        if (retry == null) {
+            return new ExponentialBackoffPolicy(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MS,
+                DEFAULT_MAX_DELAY_MS, DEFAULT_DEADLINE_MS, null);
+        }
+        return new ExponentialBackoffPolicy(
+            Math.max(1, retry.optInt("maxAttempts", DEFAULT_MAX_ATTEMPTS)),
+            Math.max(0, retry.optLong("baseDelayMs", DEFAULT_BASE_DELAY_MS)),
+            Math.max(0, retry.optLong("maxDelayMs", DEFAULT_MAX_DELAY_MS)),
+            Math.max(0, retry.optLong("deadlineMs", DEFAULT_DEADLINE_MS)),
+            null);
+    }
+
+    static boolean isRetryable(StageException failure) {
+        switch (failure.kind) {
+            case NETWORK:
+            case NOT_READY:
+                return true;
+            case HTTP:
+                int status = failure.statusCode;
+                return status >= 500 || status == 408 || status == 429;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public long delayBeforeRetry(int attempt, long elapsedMillis, StageException failure) {
+        if (!isRetryable(failure) || attempt >= maxAttempts) {
+            return -1;
+        }
+        // Equal jitter: half of the exponential step is fixed, half is random
+        long exponential = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt - 1, 20));
+        long half = exponential / 2;
+        long delay = half + (half > 0 ? nextLong(half + 1) : 0);
+        if (elapsedMillis + delay > deadlineMs) {
+            return -1;
+        }
+        return delay;
+    }
+
+    private long nextLong(long bound) {
+        if (random != null) {
+            return (long) (random.nextDouble() * bound);
+        }
+        return ThreadLocalRandom.current().nextLong(bound);
+    }
+}
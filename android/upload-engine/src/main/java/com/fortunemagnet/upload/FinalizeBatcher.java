@@ -0,0 +1,176 @@
+package com.fortunemagnet.upload;
+
+import okhttp3.HttpUrl;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups the finalize calls of photos picked together into one request, so a
+ * multi-select pick costs one edge function round trip instead of one per photo.
+ * The first task to arrive leads the batch: it waits up to the window for its
+ * siblings (or until all of them joined), sends the batch and hands every task
+ * its own item's result. A failed item only fails its own task, which retries
+ * on its own.
+ *
+ * A finalize function that does not take batches is remembered per URL; its
+ * tasks finalize one by one from then on, as does a batch nobody joined.
+ */
+final class FinalizeBatcher {
+
+    /** One task's finalize payload and, once the batch was sent, its outcome. */
+    static final class Item {
+        final UploadTask task;
+        final JSONObject payload;
+        JSONObject response;    // the item's finalize response
+        StageException failure; // why the item (or the whole batch) failed
+        boolean done;           // guarded by the batcher
+
+        Item(UploadTask task, JSONObject payload) {
+            this.task = task;
+            this.payload = payload;
+        }
+    }
+
+    interface Sender {
+        /**
+         * Sends the items as one request and sets each item's response or failure.
+         *
+         * @return false if the endpoint does not take batches
+         * @throws StageException if the request as a whole failed
+         */
+        boolean send(HttpUrl url, List<Item> items) throws StageException;
+    }
+
+    private final long windowMs;
+    private final int maxItems;
+    private final Sender sender;
+    private final Logger logger;
+    private final EventLog events;
+    private final Map<HttpUrl, List<Item>> open = new HashMap<>(); // guarded by this
+    private final Set<HttpUrl> unsupported = new HashSet<>(); // guarded by this
+
+    FinalizeBatcher(long windowMs, int maxItems, Sender sender, Logger logger, EventLog events) {
+        this.windowMs = windowMs;
+        this.maxItems = maxItems;
+        this.sender = sender;
+        this.logger = logger;
+        this.events = events;
+    }
+
+    /**
+     * Finalizes the task as part of a batch, blocking until the batch was sent.
+     *
+     * @return the task's finalize response, or null if the task has to finalize on its own
+     */
+    JSONObject finalizePhoto(UploadTask task, HttpUrl url, JSONObject payload) throws StageException {
+        Item item = new Item(task, payload);
+        List<Item> batch;
+        boolean leader;
+        synchronized (this) {
+            if (unsupported.contains(url)) {
+                return null;
+            }
+            batch = open.get(url);
+            leader = batch == null;
+            if (leader) {
+                batch = new ArrayList<>();
+                open.put(url, batch);
+            }
+            batch.add(item);
+            if (batch.size() >= expectedSize(batch)) {
+                open.remove(url);
+                notifyAll(); // the leader stops waiting
+            }
+        }
+        if (leader) {
+            lead(url, batch);
+        }
+        return await(item);
+    }
+
+    /** Photos of the largest pick in the batch, at most maxItems. */
+    private int expectedSize(List<Item> batch) {
+        int expected = 1;
+        for (Item item : batch) {
+            expected = Math.max(expected, item.task.batchSiblings() + 1);
+        }
+        return Math.min(expected, maxItems);
+    }
+
+    private void lead(HttpUrl url, List<Item> batch) {
+        boolean interrupted = false;
+        synchronized (this) {
+            long deadline = System.nanoTime() + windowMs * 1000000;
+            long remaining;
+            while (open.get(url) == batch && (remaining = (deadline - System.nanoTime()) / 1000000) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    // The others wait for this batch: send it anyway
+                    interrupted = true;
+                    break;
+                }
+            }
+            if (open.get(url) == batch) {
+                open.remove(url);
+            }
+        }
+        // Closed: nobody joins anymore
+        try {
+            if (batch.size() > 1) {
+                events.record(UploadEvent.FINALIZE_BATCH, batch.get(0).task.label(), batch.size(), 0);
+                if (!sender.send(url, batch)) {
+                    synchronized (this) {
+                        unsupported.add(url);
+                    }
+                    // Each photo finalizes on its own from now on
+                    events.record(UploadEvent.FINALIZE_BATCH_UNSUPPORTED, batch.get(0).task.label(), batch.size(), 0);
+                }
+            }
+        } catch (StageException e) {
+            for (Item item : batch) {
+                item.failure = e;
+            }
+        } catch (RuntimeException e) {
+            logger.e("Error finalizing batch", e);
+            StageException failure = StageException.fatal("Error finalizing photos: " + e.getMessage(), e);
+            for (Item item : batch) {
+                item.failure = failure;
+            }
+        } finally {
+            synchronized (this) {
+                for (Item item : batch) {
+                    item.done = true;
+                }
+                notifyAll();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private JSONObject await(Item item) throws StageException {
+        synchronized (this) {
+            while (!item.done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw StageException.network("Interrupted while waiting for the finalize batch", e);
+                }
+            }
+        }
+        if (item.failure != null) {
+            throw item.failure;
+        }
+        return item.response;
+    }
+}
@@ -0,0 +1,23 @@
+package com.fortunemagnet.upload;
+
+/**
+ * Per-thread copy buffers shared by the streaming upload paths, so each
+ * upload worker allocates its buffer once instead of once per upload.
+ */
+public final class IoBuffers {
+    public static final int SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SIZE];
+        }
+    };
+
+    private IoBuffers() {
+    }
+
+    public static byte[] get() {
+        return BUFFER.get();
+    }
+}
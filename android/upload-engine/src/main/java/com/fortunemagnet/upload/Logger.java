@@ -0,0 +1,27 @@
+package com.fortunemagnet.upload;
+
+/**
+ * Where the engine writes its log lines (TICKET_OK, UPLOAD_OK, ...).
+ * The error may be null.
+ */
+public interface Logger {
+    Logger NONE = new Logger() {
+        @Override
+        public void d(String message) {
+        }
+
+        @Override
+        public void w(String message, Throwable error) {
+        }
+
+        @Override
+        public void e(String message, Throwable error) {
+        }
+    };
+
+    void d(String message);
+
+    void w(String message, Throwable error);
+
+    void e(String message, Throwable error);
+}
@@ -0,0 +1,110 @@
+package com.fortunemagnet.upload;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the engine knows about the network it uploads over: whether there is one,
+ * whether it is metered, and how fast uploads on it have been. The platform
+ * reports network changes; {@link OkHttpTransport} reports every transfer of a
+ * request tagged with the policy. The resulting {@link Tier} sets the transfer
+ * timeouts and lets the app pick how much to send.
+ *
+ * Throughput is a moving average of recent transfers. A new network starts over
+ * from the bandwidth the platform estimates for it, which is only a hint: measured
+ * transfers replace it quickly.
+ */
+public final class NetworkPolicy {
+    /** How fast uploads go. Transfers on slower tiers wait longer before giving up on a stalled socket. */
+    public enum Tier {
+        FAST(30),
+        NORMAL(60),
+        SLOW(120);
+
+        public final int transferTimeoutSeconds;
+
+        Tier(int transferTimeoutSeconds) {
+            this.transferTimeoutSeconds = transferTimeoutSeconds;
+        }
+    }
+
+    // Smaller transfers mostly measure round trips, not bandwidth
+    static final long MIN_SAMPLE_BYTES = 64 * 1024;
+    static final long FAST_BYTES_PER_SECOND = 1000 * 1000;  // 8 Mbit/s
+    static final long SLOW_BYTES_PER_SECOND = 150 * 1000;   // 1.2 Mbit/s
+    // Weight of the newest transfer in the average
+    private static final double SMOOTHING = 0.3;
+    // Platform bandwidth estimates describe the link, which uploads rarely get all of
+    private static final double LINK_ESTIMATE_SHARE = 0.5;
+
+    private Object network;        // guarded by this; identifies the current network, null when unknown
+    private boolean available = true; // guarded by this; assume online until told otherwise
+    private boolean metered;       // guarded by this
+    private double bytesPerSecond; // guarded by this; 0 without an estimate
+    private int samples;           // guarded by this; transfers measured on the current network
+
+    /**
+     * The default network is (still) up.
+     *
+     * @param network identifies it; a different one starts the estimate over
+     * @param upstreamKbps the platform's estimate of the link, 0 if unknown
+     * @return true if this is another network than before, one after a loss, or the
+     *     same one with a change in metering
+     */
+    public synchronized boolean onNetworkAvailable(Object network, boolean metered, long upstreamKbps) {
+        boolean changed = !available || this.network == null || !this.network.equals(network);
+        boolean meteringChanged = metered != this.metered;
+        this.network = network;
+        this.available = true;
+        this.metered = metered;
+        if (changed) {
+            samples = 0;
+            bytesPerSecond = 0;
+        }
+        if (samples == 0) {
+            bytesPerSecond = upstreamKbps > 0 ? upstreamKbps * 1000 / 8 * LINK_ESTIMATE_SHARE : 0;
+        }
+        return changed || meteringChanged;
+    }
+
+    /** The default network went away and no other took over. */
+    public synchronized void onNetworkLost() {
+        available = false;
+        network = null;
+        samples = 0;
+        bytesPerSecond = 0;
+    }
+
+    /** One transfer of the given size took this long, end to end. */
+    public synchronized void recordTransfer(long bytes, long elapsedNanos) {
+        if (bytes < MIN_SAMPLE_BYTES || elapsedNanos <= 0) {
+            return;
+        }
+        double measured = bytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        bytesPerSecond = samples == 0 ? measured : SMOOTHING * measured + (1 - SMOOTHING) * bytesPerSecond;
+        samples++;
+    }
+
+    public synchronized boolean isAvailable() {
+        return available;
+    }
+
+    public synchronized boolean isMetered() {
+        return metered;
+    }
+
+    /** @return 0 if nothing is known about the current network yet */
+    public synchronized long estimatedBytesPerSecond() {
+        return (long) bytesPerSecond;
+    }
+
+    /** NORMAL while the speed is unknown. */
+    public synchronized Tier tier() {
+        if (bytesPerSecond <= 0) {
+            return Tier.NORMAL;
+        }
+        if (bytesPerSecond >= FAST_BYTES_PER_SECOND) {
+            return Tier.FAST;
+        }
+        return bytesPerSecond < SLOW_BYTES_PER_SECOND ? Tier.SLOW : Tier.NORMAL;
+    }
+}
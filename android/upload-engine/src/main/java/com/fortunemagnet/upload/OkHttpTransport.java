@@ -0,0 +1,125 @@
+package com.fortunemagnet.upload;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport over OkHttp clients shared by every uploader call. All of them share
+ * one connection pool, so the ticket, upload, verify and finalize requests of an
+ * upload reuse a single HTTP/2 connection (and its resumed TLS session) to the
+ * Supabase host instead of handshaking for each call. The variants only differ
+ * in timeouts.
+ *
+ * A transfer tagged with a {@link NetworkPolicy} uses the timeouts of the
+ * policy's current tier and reports its duration back to the policy.
+ */
+public final class OkHttpTransport implements Transport {
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private static volatile OkHttpTransport shared;
+
+    /** Short JSON calls: ticket, verify, finalize. */
+    final OkHttpClient control;
+    /** Image bytes: longer read and write timeouts for slow uplinks. */
+    final OkHttpClient transfer;
+    /** Image bytes on a network of a known tier, by NetworkPolicy.Tier ordinal. */
+    private final OkHttpClient[] transferByTier;
+
+    public OkHttpTransport() {
+        this.control = new OkHttpClient.Builder()
+            .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+            .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+            .connectTimeout(10, TimeUnit.SECONDS)
+            .readTimeout(30, TimeUnit.SECONDS)
+            .writeTimeout(30, TimeUnit.SECONDS)
+            // Keeps an idle HTTP/2 connection alive between the stages of an upload
+            .pingInterval(20, TimeUnit.SECONDS)
+            .build();
+        // newBuilder() shares the pool, dispatcher and TLS state with the base client
+        this.transfer = control.newBuilder()
+            .readTimeout(60, TimeUnit.SECONDS)
+            .writeTimeout(60, TimeUnit.SECONDS)
+            .build();
+        NetworkPolicy.Tier[] tiers = NetworkPolicy.Tier.values();
+        this.transferByTier = new OkHttpClient[tiers.length];
+        for (NetworkPolicy.Tier tier : tiers) {
+            transferByTier[tier.ordinal()] = control.newBuilder()
+                .readTimeout(tier.transferTimeoutSeconds, TimeUnit.SECONDS)
+                .writeTimeout(tier.transferTimeoutSeconds, TimeUnit.SECONDS)
+                .build();
+        }
+    }
+
+    public static OkHttpTransport shared() {
+        OkHttpTransport transport = shared;
+        if (transport == null) {
+            synchronized (OkHttpTransport.class) {
+                transport = shared;
+                if (transport == null) {
+                    transport = new OkHttpTransport();
+                    shared = transport;
+                }
+            }
+        }
+        return transport;
+    }
+
+    @Override
+    public Response control(Request request) throws IOException {
+        return control.newCall(request).execute();
+    }
+
+    @Override
+    public Response transfer(Request request) throws IOException {
+        NetworkPolicy policy = request.tag(NetworkPolicy.class);
+        if (policy == null) {
+            return transfer.newCall(request).execute();
+        }
+        long started = System.nanoTime();
+        Response response = transferByTier[policy.tier().ordinal()].newCall(request).execute();
+        // The server answers once it has read the whole body
+        if (response.isSuccessful() && request.body() != null) {
+            policy.recordTransfer(request.body().contentLength(), System.nanoTime() - started);
+        }
+        return response;
+    }
+
+    @Override
+    public void cancel(UploadTask task) {
+        Dispatcher dispatcher = control.dispatcher(); // shared with the transfer client
+        for (Call call : dispatcher.runningCalls()) {
+            if (call.request().tag() == task) {
+                call.cancel();
+            }
+        }
+        for (Call call : dispatcher.queuedCalls()) {
+            if (call.request().tag() == task) {
+                call.cancel();
+            }
+        }
+    }
+
+    /**
+     * Drops idle pooled connections, e.g. when the default network changed and
+     * they are bound to the old one. Calls in flight are left alone.
+     */
+    public void evictIdleConnections() {
+        control.connectionPool().evictAll();
+    }
+
+    /** Closes idle connections and stops the dispatcher threads, e.g. at the end of a load test. */
+    public void shutdown() {
+        control.dispatcher().executorService().shutdown();
+        control.connectionPool().evictAll();
+    }
+}
@@ -0,0 +1,62 @@
+package com.fortunemagnet.upload;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from an upload source. The uploaders read the source
+ * only as fast as the connection accepts it, so this tracks bytes sent to within
+ * one buffer, for either transport.
+ */
+final class ProgressInputStream extends FilterInputStream {
+    interface Callback {
+        void onProgress(long bytesRead);
+    }
+
+    private final Callback callback;
+    private long bytesRead;
+
+    ProgressInputStream(InputStream in, Callback callback) {
+        super(in);
+        this.callback = callback;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            advance(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int n = super.read(buffer, offset, length);
+        if (n > 0) {
+            advance(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes were sent by an earlier attempt (resumed upload)
+        long skipped = super.skip(n);
+        if (skipped > 0) {
+            advance(skipped);
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void advance(long n) {
+        bytesRead += n;
+        callback.onProgress(bytesRead);
+    }
+}
@@ -0,0 +1,14 @@
+package com.fortunemagnet.upload;
+
+/**
+ * Decides whether and when a failed pipeline stage is attempted again.
+ */
+public interface RetryPolicy {
+    /**
+     * @param attempt        number of attempts that have failed so far (1 after the first failure)
+     * @param elapsedMillis  time spent on this stage since its first attempt started
+     * @param failure        the failure of the latest attempt
+     * @return delay before the next attempt in milliseconds, or -1 to give up
+     */
+    long delayBeforeRetry(int attempt, long elapsedMillis, StageException failure);
+}
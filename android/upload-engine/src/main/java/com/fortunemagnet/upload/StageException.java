@@ -0,0 +1,45 @@
+package com.fortunemagnet.upload;
+
+/**
+ * Failure of one pipeline stage attempt, classified so the retry policy can
+ * decide between retrying and failing fast.
+ */
+public final class StageException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public enum Kind {
+        /** Connection-level failure (timeout, reset, DNS). */
+        NETWORK,
+        /** Server answered with a non-success status; see statusCode. */
+        HTTP,
+        /** Server is fine but the result is not visible yet (e.g. upload not persisted). */
+        NOT_READY,
+        /** Cannot succeed by trying again (bad input, missing token, 4xx). */
+        FATAL
+    }
+
+    public final Kind kind;
+    public final int statusCode; // -1 when there is no HTTP status
+
+    private StageException(Kind kind, int statusCode, String message, Throwable cause) {
+        super(message, cause);
+        this.kind = kind;
+        this.statusCode = statusCode;
+    }
+
+    public static StageException network(String message, Throwable cause) {
+        return new StageException(Kind.NETWORK, -1, message, cause);
+    }
+
+    public static StageException http(String message, int statusCode) {
+        return new StageException(Kind.HTTP, statusCode, message, null);
+    }
+
+    public static StageException notReady(String message, int statusCode) {
+        return new StageException(Kind.NOT_READY, statusCode, message, null);
+    }
+
+    public static StageException fatal(String message, Throwable cause) {
+        return new StageException(Kind.FATAL, -1, message, cause);
+    }
+}
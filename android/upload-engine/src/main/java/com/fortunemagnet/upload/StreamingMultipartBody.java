@@ -0,0 +1,66 @@
+package com.fortunemagnet.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single-part multipart/form-data body that streams the file part straight
+ * from an InputStream instead of holding it in memory.
+ * The framing around the file is precomputed so the total length can be
+ * handed to setFixedLengthStreamingMode before any byte is written.
+ */
+final class StreamingMultipartBody {
+    private static final String LINE_END = "\r\n";
+    private static final String TWO_HYPHENS = "--";
+
+    private final String boundary;
+    private final byte[] preamble;
+    private final byte[] epilogue;
+
+    StreamingMultipartBody(String formFieldName, String fileName, String contentType) {
+        this.boundary = "----WebKitFormBoundary" + Long.toString(System.currentTimeMillis());
+        this.preamble = (TWO_HYPHENS + boundary + LINE_END
+            + "Content-Disposition: form-data; name=\"" + formFieldName + "\"; filename=\"" + fileName + "\"" + LINE_END
+            + "Content-Type: " + contentType + LINE_END
+            + LINE_END).getBytes(StandardCharsets.UTF_8);
+        this.epilogue = (LINE_END + TWO_HYPHENS + boundary + TWO_HYPHENS + LINE_END).getBytes(StandardCharsets.UTF_8);
+    }
+
+    String getContentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    /**
+     * Total body length for a file part of the given size, or -1 when the
+     * file size is unknown and the body has to be sent chunked.
+     */
+    long contentLength(long partLength) {
+        if (partLength < 0) {
+            return -1;
+        }
+        return preamble.length + partLength + epilogue.length;
+    }
+
+    /**
+     * Writes the whole body, copying the file part through a bounded buffer.
+     *
+     * @return number of file bytes written (excluding multipart framing)
+     */
+    long writeTo(OutputStream out, InputStream part) throws IOException {
+        byte[] buffer = IoBuffers.get();
+        long partBytes = 0;
+
+        out.write(preamble);
+        int bytesRead;
+        while ((bytesRead = part.read(buffer)) != -1) {
+            out.write(buffer, 0, bytesRead);
+            partBytes += bytesRead;
+        }
+        out.write(epilogue);
+        out.flush();
+
+        return partBytes;
+    }
+}
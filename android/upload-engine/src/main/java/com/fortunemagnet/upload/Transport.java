@@ -0,0 +1,21 @@
+package com.fortunemagnet.upload;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+
+/**
+ * Executes the engine's HTTP calls. Requests carry the UploadTask they belong
+ * to as their tag, so a cancelled task can have its calls aborted.
+ */
+public interface Transport {
+    /** Short JSON calls: ticket, verify, finalize. */
+    Response control(Request request) throws IOException;
+
+    /** Image bytes: may take much longer than control calls. */
+    Response transfer(Request request) throws IOException;
+
+    /** Aborts running calls whose request is tagged with the task. */
+    void cancel(UploadTask task);
+}
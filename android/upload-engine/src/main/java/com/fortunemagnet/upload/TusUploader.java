@@ -0,0 +1,302 @@
+package com.fortunemagnet.upload;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Resumable uploads over the TUS 1.0.0 protocol (Supabase Storage
+ * /storage/v1/upload/resumable). Every acknowledged chunk is checkpointed, so
+ * a dropped connection only costs the chunk in flight and an upload can
+ * continue after a network change or a process restart. Retrying is left to
+ * the caller's retry policy.
+ */
+final class TusUploader {
+    static final String TUS_VERSION = "1.0.0";
+    static final int DEFAULT_CHUNK_SIZE = 6 * 1024 * 1024; // Supabase requires 6 MB chunks
+    // java.util.Base64 needs API 26 and android.util.Base64 is unavailable on the JVM
+    private static final MediaType OFFSET_OCTET_STREAM = MediaType.get("application/offset+octet-stream");
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /** Opens a fresh stream over the bytes being uploaded, positioned at 0. */
+    interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    /** Server refused the upload with a status that resuming cannot fix. */
+    static final class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int statusCode;
+
+        RejectedException(String message, int statusCode) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+    }
+
+    private final Transport transport;
+    private final UploadCheckpointStore checkpointStore;
+    private final Logger logger;
+    private final EventLog events;
+    private final NetworkPolicy networkPolicy; // null: chunks are sent with fixed timeouts
+    private final int chunkSize;
+    private final UploadTask tag; // set on every request, so the owner can cancel them
+
+    TusUploader(Transport transport, UploadCheckpointStore checkpointStore, Logger logger, int chunkSize) {
+        this(transport, checkpointStore, logger, EventLog.NONE, null, chunkSize, null);
+    }
+
+    /** @param tag the task being uploaded; its label is the subject of the recorded events */
+    TusUploader(Transport transport, UploadCheckpointStore checkpointStore, Logger logger, EventLog events,
+                NetworkPolicy networkPolicy, int chunkSize, UploadTask tag) {
+        this.transport = transport;
+        this.checkpointStore = checkpointStore;
+        this.logger = logger;
+        this.events = events;
+        this.networkPolicy = networkPolicy;
+        this.chunkSize = chunkSize;
+        this.tag = tag;
+    }
+
+    /**
+     * Uploads (or resumes) the given bytes. When a checkpoint for the fingerprint
+     * exists, the upload continues under the object name it was started with.
+     * A dropped connection is thrown to the caller, whose next call resumes
+     * from the last acknowledged chunk.
+     *
+     * @return the completed checkpoint; its objectName is the path actually written
+     */
+    UploadCheckpointStore.Checkpoint upload(URL endpoint, Map<String, String> headers, String fingerprint,
+                                            long length, String bucket, String objectName, String contentType,
+                                            StreamOpener source) throws IOException {
+        UploadCheckpointStore.Checkpoint checkpoint = checkpointStore.load(fingerprint);
+        if (checkpoint != null && checkpoint.length != length) {
+            logger.w("TUS checkpoint length mismatch, starting over", null);
+            checkpointStore.delete(fingerprint);
+            checkpoint = null;
+        }
+
+        if (checkpoint != null) {
+            long serverOffset = fetchOffset(checkpoint, headers);
+            if (serverOffset < 0) {
+                logger.w("TUS upload expired on server, starting over", null);
+                checkpointStore.delete(fingerprint);
+                checkpoint = null;
+            } else {
+                checkpoint.offset = serverOffset;
+                events.record(UploadEvent.TUS_RESUME, subject(), serverOffset, length);
+            }
+        }
+        if (checkpoint == null) {
+            checkpoint = create(endpoint, headers, fingerprint, length, bucket, objectName, contentType);
+            checkpointStore.save(checkpoint);
+            events.record(UploadEvent.TUS_CREATED, subject(), length, 0);
+        }
+
+        sendChunks(checkpoint, headers, source);
+        checkpointStore.delete(fingerprint);
+        events.record(UploadEvent.TUS_OK, subject(), length, 0);
+        return checkpoint;
+    }
+
+    private String subject() {
+        return tag != null ? tag.label() : null;
+    }
+
+    private UploadCheckpointStore.Checkpoint create(URL endpoint, Map<String, String> headers, String fingerprint,
+                                                    long length, String bucket, String objectName,
+                                                    String contentType) throws IOException {
+        Request request = newRequest(endpoint, headers)
+            .header("Upload-Length", Long.toString(length))
+            .header("Upload-Metadata",
+                "bucketName " + base64(bucket)
+                + ",objectName " + base64(objectName)
+                + ",contentType " + base64(contentType)
+                + ",cacheControl " + base64("3600"))
+            .post(RequestBody.create(new byte[0], null))
+            .build();
+
+        try (Response response = transport.transfer(request)) {
+            if (response.code() != HttpURLConnection.HTTP_CREATED) {
+                throw failure("TUS create failed", response.code());
+            }
+            String location = response.header("Location");
+            if (location == null || location.isEmpty()) {
+                throw new IOException("TUS create response has no Location");
+            }
+            String uploadUrl = new URL(endpoint, location).toString();
+            return new UploadCheckpointStore.Checkpoint(fingerprint, uploadUrl, length, bucket, objectName, 0);
+        }
+    }
+
+    /** @return the server's current offset, or -1 if the upload no longer exists */
+    private long fetchOffset(UploadCheckpointStore.Checkpoint checkpoint, Map<String, String> headers) throws IOException {
+        Request request = newRequest(new URL(checkpoint.uploadUrl), headers).head().build();
+
+        try (Response response = transport.transfer(request)) {
+            int responseCode = response.code();
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND || responseCode == HttpURLConnection.HTTP_GONE) {
+                return -1;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_NO_CONTENT) {
+                throw failure("TUS offset check failed", responseCode);
+            }
+            return parseOffset(response);
+        }
+    }
+
+    private void sendChunks(UploadCheckpointStore.Checkpoint checkpoint, Map<String, String> headers,
+                            StreamOpener source) throws IOException {
+        try (InputStream in = source.open()) {
+            skipFully(in, checkpoint.offset);
+            while (checkpoint.offset < checkpoint.length) {
+                int chunk = (int) Math.min(chunkSize, checkpoint.length - checkpoint.offset);
+                long newOffset = patch(checkpoint, headers, in, chunk);
+                if (newOffset != checkpoint.offset + chunk) {
+                    // Server kept a different amount than we sent: resync through HEAD
+                    checkpoint.offset = newOffset;
+                    checkpointStore.save(checkpoint);
+                    throw new IOException("TUS offset mismatch after chunk");
+                }
+                checkpoint.offset = newOffset;
+                checkpointStore.save(checkpoint);
+            }
+        }
+    }
+
+    private long patch(UploadCheckpointStore.Checkpoint checkpoint, Map<String, String> headers,
+                       InputStream in, int chunk) throws IOException {
+        Request request = newRequest(new URL(checkpoint.uploadUrl), headers)
+            .header("Upload-Offset", Long.toString(checkpoint.offset))
+            .patch(new ChunkBody(in, chunk))
+            .build();
+
+        try (Response response = transport.transfer(request)) {
+            int responseCode = response.code();
+            if (responseCode == HttpURLConnection.HTTP_CONFLICT) {
+                throw new IOException("TUS offset conflict");
+            }
+            if (responseCode != HttpURLConnection.HTTP_NO_CONTENT && responseCode != HttpURLConnection.HTTP_OK) {
+                throw failure("TUS chunk failed", responseCode);
+            }
+            return parseOffset(response);
+        }
+    }
+
+    /**
+     * Streams the next chunk of the shared image stream. The stream cannot be
+     * rewound, so the body is one-shot and OkHttp never replays it on its own.
+     */
+    private static final class ChunkBody extends RequestBody {
+        private final InputStream in;
+        private final int chunk;
+
+        ChunkBody(InputStream in, int chunk) {
+            this.in = in;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return OFFSET_OCTET_STREAM;
+        }
+
+        @Override
+        public long contentLength() {
+            return chunk;
+        }
+
+        @Override
+        public boolean isOneShot() {
+            return true;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            byte[] buffer = IoBuffers.get();
+            int remaining = chunk;
+            while (remaining > 0) {
+                int bytesRead = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("Image ended before upload length");
+                }
+                sink.write(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        }
+    }
+
+    private Request.Builder newRequest(URL url, Map<String, String> headers) {
+        Request.Builder builder = new Request.Builder().url(url).tag(tag);
+        if (networkPolicy != null) {
+            builder.tag(NetworkPolicy.class, networkPolicy);
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        return builder.header("Tus-Resumable", TUS_VERSION);
+    }
+
+    private static long parseOffset(Response response) throws IOException {
+        String offset = response.header("Upload-Offset");
+        if (offset == null) {
+            throw new IOException("TUS response has no Upload-Offset");
+        }
+        try {
+            return Long.parseLong(offset.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Upload-Offset: " + offset);
+        }
+    }
+
+    private static IOException failure(String message, int responseCode) {
+        // 4xx (other than timeouts and rate limiting) will not succeed on resume
+        if (responseCode >= 400 && responseCode < 500 && responseCode != 408 && responseCode != 429) {
+            return new RejectedException(message + ": " + responseCode, responseCode);
+        }
+        return new IOException(message + ": " + responseCode);
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        long remaining = count;
+        byte[] buffer = IoBuffers.get();
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped > 0) {
+                remaining -= skipped;
+                continue;
+            }
+            // Some content providers do not support skip; fall back to reading
+            int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (bytesRead == -1) {
+                throw new EOFException("Image shorter than checkpoint offset");
+            }
+            remaining -= bytesRead;
+        }
+    }
+
+    static String base64(String value) {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xFF) << 16;
+            if (i + 1 < data.length) b |= (data[i + 1] & 0xFF) << 8;
+            if (i + 2 < data.length) b |= data[i + 2] & 0xFF;
+            sb.append(BASE64[(b >> 18) & 0x3F]).append(BASE64[(b >> 12) & 0x3F]);
+            sb.append(i + 1 < data.length ? BASE64[(b >> 6) & 0x3F] : '=');
+            sb.append(i + 2 < data.length ? BASE64[b & 0x3F] : '=');
+        }
+        return sb.toString();
+    }
+}
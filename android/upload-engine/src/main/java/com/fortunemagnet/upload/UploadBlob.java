@@ -0,0 +1,36 @@
+package com.fortunemagnet.upload;
+
+/**
+ * Image to upload, addressed by a reference the BlobStore understands (a
+ * content Uri on Android, a file path on a desktop JVM).
+ */
+public final class UploadBlob {
+    public final String ref;      // null for an object that is already in storage
+    public final long length;     // -1 when unknown
+    public final String mimeType;
+
+    public UploadBlob(String ref, long length, String mimeType) {
+        this.ref = ref;
+        this.length = length;
+        this.mimeType = mimeType;
+    }
+
+    /** File name sent in the multipart part, with an extension matching the MIME type. */
+    public String fileName() {
+        return fileNameFor(mimeType);
+    }
+
+    public static String fileNameFor(String mimeType) {
+        switch (mimeType) {
+            case "image/png":
+                return "photo.png";
+            case "image/webp":
+                return "photo.webp";
+            case "image/heic":
+            case "image/heif":
+                return "photo.heic";
+            default:
+                return "photo.jpg";
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.fortunemagnet.upload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Persists resumable upload progress in app-private storage so an interrupted
+ * upload can continue from the last acknowledged offset, even after the
+ * process has been killed. One small properties file per upload fingerprint.
+ */
+public final class UploadCheckpointStore {
+    static final class Checkpoint {
+        final String fingerprint;
+        final String uploadUrl;
+        final long length;
+        final String bucket;
+        final String objectName;
+        long offset;
+
+        Checkpoint(String fingerprint, String uploadUrl, long length, String bucket, String objectName, long offset) {
+            this.fingerprint = fingerprint;
+            this.uploadUrl = uploadUrl;
+            this.length = length;
+            this.bucket = bucket;
+            this.objectName = objectName;
+            this.offset = offset;
+        }
+    }
+
+    private final File dir;
+    private final Logger logger;
+
+    public UploadCheckpointStore(File dir, Logger logger) {
+        this.dir = dir;
+        this.logger = logger;
+    }
+
+    synchronized Checkpoint load(String fingerprint) {
+        File file = fileFor(fingerprint);
+        if (!file.exists()) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+            return new Checkpoint(
+                fingerprint,
+                props.getProperty("uploadUrl"),
+                Long.parseLong(props.getProperty("length")),
+                props.getProperty("bucket"),
+                props.getProperty("objectName"),
+                Long.parseLong(props.getProperty("offset"))
+            );
+        } catch (IOException | RuntimeException e) {
+            logger.w("Discarding unreadable upload checkpoint", e);
+            file.delete();
+            return null;
+        }
+    }
+
+    synchronized void save(Checkpoint checkpoint) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create checkpoint directory");
+        }
+        Properties props = new Properties();
+        props.setProperty("uploadUrl", checkpoint.uploadUrl);
+        props.setProperty("length", Long.toString(checkpoint.length));
+        props.setProperty("bucket", checkpoint.bucket);
+        props.setProperty("objectName", checkpoint.objectName);
+        props.setProperty("offset", Long.toString(checkpoint.offset));
+
+        // Write to a temp file and rename so a crash never leaves a torn checkpoint
+        File file = fileFor(checkpoint.fingerprint);
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, null);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not write upload checkpoint");
+        }
+    }
+
+    synchronized void delete(String fingerprint) {
+        File file = fileFor(fingerprint);
+        if (file.exists() && !file.delete()) {
+            logger.w("Could not delete upload checkpoint", null);
+        }
+    }
+
+    private File fileFor(String fingerprint) {
+        return new File(dir, sha256Hex(fingerprint) + ".properties");
+    }
+
+    private static String sha256Hex(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
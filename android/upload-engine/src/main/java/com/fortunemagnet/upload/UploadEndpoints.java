@@ -0,0 +1,159 @@
+package com.fortunemagnet.upload;
+
+import okhttp3.HttpUrl;
+
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Where the engine sends its calls: the Supabase project, its two edge functions
+ * and the storage API. Immutable and built once, so a stage only appends the
+ * object path to a prebuilt HttpUrl instead of re-resolving the server.
+ *
+ * A request can point elsewhere with options.endpoints, e.g. a local stand-in:
+ *   { endpoints: { supabaseUrl: "http://10.0.2.2:54321" } }
+ * ticketUrl, finalizeUrl and storageUrl override single endpoints.
+ */
+public final class UploadEndpoints {
+    public static final String DEFAULT_SUPABASE_URL = "https://pegiensgnptpdnfopnoj.supabase.co";
+    static final String TICKET_PATH = "functions/v1/issue-fortune-upload-ticket";
+    static final String FINALIZE_PATH = "functions/v1/finalize-fortune-photo";
+    static final String STORAGE_PATH = "storage/v1/";
+
+    public final String supabaseUrl;
+    final HttpUrl ticketUrl;
+    final HttpUrl finalizeUrl;
+    final HttpUrl storageUrl; // ends with a slash
+
+    private UploadEndpoints(String supabaseUrl, HttpUrl ticketUrl, HttpUrl finalizeUrl, HttpUrl storageUrl) {
+        this.supabaseUrl = supabaseUrl;
+        this.ticketUrl = ticketUrl;
+        this.finalizeUrl = finalizeUrl;
+        this.storageUrl = storageUrl;
+    }
+
+    /**
+     * Endpoints of the Supabase project (or stand-in) at the given base URL.
+     *
+     * @throws IllegalArgumentException if the URL is not http(s)
+     */
+    public static UploadEndpoints forSupabase(String supabaseUrl) {
+        HttpUrl base = parse(supabaseUrl.endsWith("/") ? supabaseUrl : supabaseUrl + "/");
+        String normalized = supabaseUrl.endsWith("/") ? supabaseUrl.substring(0, supabaseUrl.length() - 1) : supabaseUrl;
+        return new UploadEndpoints(normalized, base.resolve(TICKET_PATH), base.resolve(FINALIZE_PATH),
+            base.resolve(STORAGE_PATH));
+    }
+
+    /**
+     * Endpoints for the app's server URL: a Supabase URL is used as is, anything
+     * else (the web app's own host) means the default project.
+     */
+    public static UploadEndpoints forServerUrl(String serverUrl) {
+        if (serverUrl != null && serverUrl.contains("supabase.co")) {
+            try {
+                return forSupabase(serverUrl);
+            } catch (IllegalArgumentException e) {
+                // Fall back to the default project
+            }
+        }
+        return forSupabase(DEFAULT_SUPABASE_URL);
+    }
+
+    static boolean hasOverrides(JSONObject options) {
+        return options != null && options.optJSONObject("endpoints") != null;
+    }
+
+    /**
+     * These endpoints with the request's options.endpoints applied; this instance
+     * when the options override nothing.
+     *
+     * @throws IllegalArgumentException if an override is not an http(s) URL
+     */
+    public UploadEndpoints withOverrides(JSONObject options) {
+        JSONObject overrides = options != null ? options.optJSONObject("endpoints") : null;
+        if (overrides == null) {
+            return this;
+        }
+        String supabase = overrides.optString("supabaseUrl", "");
+        UploadEndpoints base = supabase.isEmpty() ? this : forSupabase(supabase);
+        String ticket = overrides.optString("ticketUrl", "");
+        String finalize = overrides.optString("finalizeUrl", "");
+        String storage = overrides.optString("storageUrl", "");
+        if (ticket.isEmpty() && finalize.isEmpty() && storage.isEmpty()) {
+            return base;
+        }
+        return new UploadEndpoints(base.supabaseUrl,
+            ticket.isEmpty() ? base.ticketUrl : parse(ticket),
+            finalize.isEmpty() ? base.finalizeUrl : parse(finalize),
+            storage.isEmpty() ? base.storageUrl : parse(storage.endsWith("/") ? storage : storage + "/"));
+    }
+
+    /** /object/authenticated/{bucket}/{path} under the storage API. */
+    HttpUrl authenticatedObject(String bucket, String bucketRelativePath) {
+        return storageUrl.newBuilder()
+            .addPathSegments("object/authenticated")
+            .addPathSegment(bucket)
+            .addPathSegments(bucketRelativePath)
+            .build();
+    }
+
+    /** /object/list/{bucket}/{folder}?search={filename} under the storage API. */
+    HttpUrl listObjects(String bucket, String folder, String search) {
+        HttpUrl.Builder builder = storageUrl.newBuilder()
+            .addPathSegments("object/list")
+            .addPathSegment(bucket);
+        if (!folder.isEmpty()) {
+            builder.addPathSegments(folder);
+        }
+        return builder.addQueryParameter("search", search).build();
+    }
+
+    /**
+     * The object a storage download URL points at, as "{bucket}/{path}", for
+     * /object/sign/ and /object/public/ URLs under the storage API. Every signed URL
+     * of an object has its own token, so this is what identifies the bytes.
+     *
+     * @return null for any other URL, including transformed renders
+     */
+    public String downloadedObjectKey(String url) {
+        HttpUrl parsed = HttpUrl.parse(url);
+        if (parsed == null || !parsed.scheme().equals(storageUrl.scheme()) || !parsed.host().equals(storageUrl.host())
+            || parsed.port() != storageUrl.port()) {
+            return null;
+        }
+        List<String> base = storageUrl.pathSegments(); // ends with "" for the trailing slash
+        List<String> segments = parsed.pathSegments();
+        int prefix = base.size() - 1;
+        // object, sign|public, bucket and at least one path segment
+        if (segments.size() < prefix + 4 || !segments.subList(0, prefix).equals(base.subList(0, prefix))
+            || !segments.get(prefix).equals("object")
+            || !(segments.get(prefix + 1).equals("sign") || segments.get(prefix + 1).equals("public"))) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder();
+        for (String segment : segments.subList(prefix + 2, segments.size())) {
+            if (segment.isEmpty()) {
+                return null;
+            }
+            if (key.length() > 0) {
+                key.append('/');
+            }
+            key.append(segment);
+        }
+        return key.toString();
+    }
+
+    private static HttpUrl parse(String url) {
+        HttpUrl parsed = HttpUrl.parse(url);
+        if (parsed == null) {
+            throw new IllegalArgumentException("Not an http(s) URL: " + url);
+        }
+        return parsed;
+    }
+
+    @Override
+    public String toString() {
+        return supabaseUrl;
+    }
+}
@@ -0,0 +1,893 @@
+package com.fortunemagnet.upload;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The network stages of an upload (ticket, upload, verify, finalize) against
+ * Supabase, with no Android dependencies. HTTP, time, image bytes, checkpoints
+ * and logging come from the builder, so the same code runs in the app and on a
+ * plain JVM against a fake backend.
+ *
+ * The stage methods run one attempt and throw a classified StageException;
+ * {@link #run} drives a task to the end with the retry policy, blocking the
+ * calling thread between attempts. The app schedules retries itself instead.
+ */
+public final class UploadEngine {
+    static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+    private static final String VERIFY_AUTO = "auto";
+    private static final String VERIFY_RESPONSE = "response";
+    private static final String VERIFY_LIST = "list";
+    private static final String VERIFY_NONE = "none";
+
+    /** Supplies the current access token; it may change between calls. */
+    public interface TokenSource {
+        String accessToken();
+    }
+
+    /** Called for every buffer an upload sends; called on the uploading thread. */
+    public interface ProgressListener {
+        void onProgress(UploadTask task, long bytesSent);
+    }
+
+    public static final class Builder {
+        private UploadEndpoints endpoints;
+        private Transport transport;
+        private Clock clock = Clock.SYSTEM;
+        private BlobStore blobStore;
+        private UploadCheckpointStore checkpointStore;
+        private Logger logger = Logger.NONE;
+        private EventLog events = EventLog.NONE;
+        private NetworkPolicy networkPolicy;
+        private TokenSource tokens;
+        private ProgressListener progress;
+        private RetryPolicy retryPolicy;
+        private UploadMetrics metrics;
+        private long finalizeBatchWindowMs;
+        private int finalizeBatchMaxItems;
+
+        /** Default endpoints; a task's options.endpoints can override them. */
+        public Builder endpoints(UploadEndpoints endpoints) {
+            this.endpoints = endpoints;
+            return this;
+        }
+
+        public Builder transport(Transport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        public Builder clock(Clock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        public Builder blobStore(BlobStore blobStore) {
+            this.blobStore = blobStore;
+            return this;
+        }
+
+        /** Enables resumable (TUS) uploads when tickets offer them; multipart only without it. */
+        public Builder checkpointStore(UploadCheckpointStore checkpointStore) {
+            this.checkpointStore = checkpointStore;
+            return this;
+        }
+
+        public Builder logger(Logger logger) {
+            this.logger = logger;
+            return this;
+        }
+
+        /**
+         * Where the stages record what they did, failed responses included (status and
+         * body size, never the body). Only fixed messages and exceptions go to the logger.
+         */
+        public Builder events(EventLog events) {
+            this.events = events;
+            return this;
+        }
+
+        /**
+         * Tags image transfers with the policy, so the transport picks timeouts for the
+         * network's speed and measures them. Fixed timeouts without it.
+         */
+        public Builder networkPolicy(NetworkPolicy networkPolicy) {
+            this.networkPolicy = networkPolicy;
+            return this;
+        }
+
+        public Builder tokens(TokenSource tokens) {
+            this.tokens = tokens;
+            return this;
+        }
+
+        public Builder progress(ProgressListener progress) {
+            this.progress = progress;
+            return this;
+        }
+
+        /** Used by {@link #run}; defaults to ExponentialBackoffPolicy.fromOptions of each task. */
+        public Builder retryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /** Where {@link #run} records stage latencies; defaults to a private instance. */
+        public Builder metrics(UploadMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Finalizes photos picked together (see {@link UploadTask#batchSiblings}) in
+         * one request: the first waits up to windowMs for the others. Off by default.
+         */
+        public Builder finalizeBatching(long windowMs, int maxItems) {
+            this.finalizeBatchWindowMs = windowMs;
+            this.finalizeBatchMaxItems = maxItems;
+            return this;
+        }
+
+        public UploadEngine build() {
+            if (endpoints == null || transport == null || blobStore == null || tokens == null) {
+                throw new IllegalStateException("endpoints, transport, blobStore and tokens are required");
+            }
+            return new UploadEngine(this);
+        }
+    }
+
+    private final UploadEndpoints endpoints;
+    private final Transport transport;
+    private final Clock clock;
+    private final BlobStore blobStore;
+    private final UploadCheckpointStore checkpointStore;
+    private final Logger logger;
+    private final EventLog events;
+    private final NetworkPolicy networkPolicy; // null when transfers are not adapted to the network
+    private final TokenSource tokens;
+    private final ProgressListener progress;
+    private final RetryPolicy retryPolicy;
+    private final UploadMetrics metrics;
+    private final FinalizeBatcher finalizeBatcher; // null when batching is off
+
+    private UploadEngine(Builder builder) {
+        this.endpoints = builder.endpoints;
+        this.transport = builder.transport;
+        this.clock = builder.clock;
+        this.blobStore = builder.blobStore;
+        this.checkpointStore = builder.checkpointStore;
+        this.logger = builder.logger;
+        this.events = builder.events;
+        this.networkPolicy = builder.networkPolicy;
+        this.tokens = builder.tokens;
+        this.progress = builder.progress;
+        this.retryPolicy = builder.retryPolicy;
+        this.metrics = builder.metrics != null ? builder.metrics : new UploadMetrics();
+        this.finalizeBatcher = builder.finalizeBatchWindowMs > 0 && builder.finalizeBatchMaxItems > 1
+            ? new FinalizeBatcher(builder.finalizeBatchWindowMs, builder.finalizeBatchMaxItems,
+                this::sendFinalizeBatch, builder.logger, builder.events)
+            : null;
+    }
+
+    public Transport transport() {
+        return transport;
+    }
+
+    public UploadEndpoints endpoints() {
+        return endpoints;
+    }
+
+    /**
+     * The endpoints a request with these options talks to.
+     *
+     * @throws StageException (FATAL) if options.endpoints holds an invalid URL
+     */
+    public UploadEndpoints endpointsFor(JSONObject options) throws StageException {
+        try {
+            return endpoints.withOverrides(options);
+        } catch (IllegalArgumentException e) {
+            throw StageException.fatal("Invalid endpoint override: " + e.getMessage(), e);
+        }
+    }
+
+    private UploadEndpoints endpointsFor(UploadTask task) throws StageException {
+        if (task.endpoints == null) {
+            task.endpoints = endpointsFor(task.options);
+        }
+        return task.endpoints;
+    }
+
+    public UploadMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Runs the task's remaining network stages on this thread, sleeping on the
+     * clock between attempts. The task must have reached TICKET or later.
+     *
+     * @throws StageException the failure of the last attempt once the retry policy gives up
+     */
+    public void run(UploadTask task) throws StageException, InterruptedException {
+        RetryPolicy policy = retryPolicy != null ? retryPolicy : ExponentialBackoffPolicy.fromOptions(task.options);
+        long stageStartedAt = clock.currentTimeMillis();
+        while (task.stage != UploadTask.Stage.DONE && !task.isCancelled()) {
+            UploadTask.Stage stage = task.stage;
+            long started = clock.nanoTime();
+            try {
+                runStage(task);
+            } catch (StageException e) {
+                metrics.stageFailed(stage, e.kind);
+                task.attempt++;
+                long delay = policy.delayBeforeRetry(task.attempt, clock.currentTimeMillis() - stageStartedAt, e);
+                if (delay < 0 || task.isCancelled()) {
+                    events.record(UploadEvent.STAGE_FAIL, task.label(), e.getMessage(), task.attempt, 0);
+                    throw e;
+                }
+                events.record(UploadEvent.STAGE_RETRY, task.label(), e.getMessage(), task.attempt, delay);
+                metrics.stageRetried(stage);
+                clock.sleep(delay);
+                continue;
+            }
+            long elapsed = clock.nanoTime() - started;
+            metrics.stageSucceeded(stage, elapsed);
+            if (stage == UploadTask.Stage.UPLOAD) {
+                metrics.uploaded(task.uploadedBytes, elapsed);
+            }
+            stageStartedAt = clock.currentTimeMillis();
+        }
+    }
+
+    /** Runs one attempt of the task's current network stage and advances it on success. */
+    public void runStage(UploadTask task) throws StageException {
+        switch (task.stage) {
+            case TICKET:
+                task.ticket = issueTicket(tokens.accessToken(), endpointsFor(task), task.label());
+                if (!task.ticket.isValid()) {
+                    logger.e("Invalid ticket response: missing url or path", null);
+                    throw StageException.fatal("Invalid upload ticket response: missing url or path", null);
+                }
+                task.advance(UploadTask.Stage.UPLOAD);
+                break;
+            case UPLOAD:
+                upload(task);
+                task.advance(UploadTask.Stage.VERIFY);
+                break;
+            case VERIFY:
+                verify(task);
+                task.advance(UploadTask.Stage.FINALIZE);
+                break;
+            case FINALIZE:
+                task.finalizeResponse = finalizePhoto(task);
+                task.advance(UploadTask.Stage.DONE);
+                break;
+            default:
+                throw new IllegalStateException("Not a network stage: " + task.stage);
+        }
+    }
+
+    /** Requests an upload ticket from the default endpoints. */
+    public UploadTicket issueTicket(String token) throws StageException {
+        return issueTicket(token, endpoints);
+    }
+
+    /**
+     * Requests an upload ticket. May run ahead of the task it is for (e.g. while
+     * the picker is still open), so it takes the token instead of a task.
+     */
+    public UploadTicket issueTicket(String token, UploadEndpoints endpoints) throws StageException {
+        return issueTicket(token, endpoints, null);
+    }
+
+    private UploadTicket issueTicket(String token, UploadEndpoints endpoints, String subject) throws StageException {
+        boolean hasToken = token != null && !token.isEmpty();
+        events.record(UploadEvent.TICKET_REQUEST, subject, hasToken ? 1 : 0, 0);
+        long started = clock.nanoTime();
+
+        try {
+            Request.Builder builder = new Request.Builder()
+                .url(endpoints.ticketUrl)
+                .header("Accept", "application/json");
+
+            // Add Authorization header if token is available
+            if (hasToken) {
+                builder.header("Authorization", "Bearer " + token);
+            } else {
+                logger.w("No access token available for ticket request", null);
+            }
+
+            // Send request body (empty or with metadata if needed)
+            JSONObject requestBody = new JSONObject();
+            builder.post(RequestBody.create(requestBody.toString(), JSON));
+
+            try (Response response = transport.control(builder.build())) {
+                int responseCode = response.code();
+                String responseText = responseText(response);
+
+                if (responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_CREATED) {
+                    // The response carries a signed upload URL: never log it
+                    events.record(UploadEvent.TICKET_OK, subject, responseCode, millisSince(started));
+                    return UploadTicket.parse(new JSONObject(responseText), token, clock.currentTimeMillis());
+                }
+
+                // Only the size of the body: error responses may echo the request
+                events.record(UploadEvent.TICKET_FAIL, subject, responseCode, responseText.length());
+                throw StageException.http("Failed to issue upload ticket: " + responseCode, responseCode);
+            }
+        } catch (IOException e) {
+            logger.e("Error issuing upload ticket", e);
+            throw StageException.network("Error issuing upload ticket: " + e.getMessage(), e);
+        } catch (JSONException e) {
+            logger.e("Error issuing upload ticket", e);
+            throw StageException.fatal("Error issuing upload ticket: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Uploads the task's blob to Supabase, resumable when the ticket allows it,
+     * else POST multipart/form-data. Sets bucketRelativePath, uploadedBytes and,
+     * when the server echoed one, uploadConfirmation.
+     */
+    public void upload(UploadTask task) throws StageException {
+        UploadTicket ticket = task.ticket;
+        UploadBlob blob = task.blob();
+        String uploadUrl = ticket.uploadUrl;
+
+        if (ticket.requiredHeaders == null) {
+            logger.w("No headers/requiredHeaders in ticket, using default x-upsert:true", null);
+        }
+
+        if (checkpointStore != null && !ticket.resumableUrl.isEmpty() && blob.length >= 0) {
+            UploadCheckpointStore.Checkpoint completed = uploadResumable(task, ticket, blob);
+            // A resumed upload keeps the object name it was started with
+            task.bucketRelativePath = completed.objectName;
+            task.uploadedBytes = completed.length;
+            // The server acknowledged the final offset, so the object is complete
+            task.uploadConfirmation = "tus:" + completed.offset;
+        } else {
+            task.bucketRelativePath = ticket.bucketRelativePath;
+            task.uploadedBytes = uploadMultipart(task, task, progressOf(task), uploadUrl, blob, ticket.formFieldName,
+                ticket.requiredHeaders);
+        }
+    }
+
+    /**
+     * Uploads a smaller rendition of the task's photo (its thumbnail) under a ticket
+     * of its own, as one multipart POST without progress reports. Runs alongside
+     * {@link #upload} on another thread; cancelling the task cancels it too.
+     *
+     * @return bucket-relative path of the stored rendition
+     */
+    public String uploadRendition(UploadTask task, UploadBlob rendition) throws StageException {
+        UploadTicket ticket = issueTicket(tokens.accessToken(), endpointsFor(task), task.label());
+        if (!ticket.isValid()) {
+            throw StageException.fatal("Invalid upload ticket response: missing url or path", null);
+        }
+        RenditionTask renditionTask = new RenditionTask(task, rendition, ticket);
+        renditionTask.bucketRelativePath = ticket.bucketRelativePath;
+        long sent = uploadMultipart(renditionTask, task, sentBytes -> { }, ticket.uploadUrl, rendition,
+            ticket.formFieldName, ticket.requiredHeaders);
+        events.record(UploadEvent.RENDITION_OK, task.label(), sent, 0);
+        return ticket.bucketRelativePath;
+    }
+
+    /** A rendition on its way to storage; only lives for one uploadRendition call. */
+    private static final class RenditionTask extends UploadTask {
+        private final UploadTask photo;
+        private final UploadBlob blob;
+
+        RenditionTask(UploadTask photo, UploadBlob blob, UploadTicket ticket) {
+            super(photo.options);
+            this.photo = photo;
+            this.blob = blob;
+            this.ticket = ticket;
+        }
+
+        @Override
+        public UploadBlob blob() {
+            return blob;
+        }
+
+        @Override
+        public int width() {
+            return 0;
+        }
+
+        @Override
+        public int height() {
+            return 0;
+        }
+
+        @Override
+        public String label() {
+            return photo.label() + "/rendition";
+        }
+    }
+
+    /**
+     * Streams the image into a multipart POST and records any key/ETag the
+     * server echoes on the task, so verification can skip a round trip.
+     *
+     * @param tag what Transport.cancel finds the call by
+     * @return number of image bytes sent
+     */
+    private long uploadMultipart(UploadTask task, UploadTask tag, ProgressInputStream.Callback progress, String uploadUrl,
+                                 UploadBlob blob, String formFieldName, JSONObject requiredHeaders) throws StageException {
+        try {
+            // Use POST multipart/form-data (required by createSignedUploadUrl)
+            StreamingMultipartBody body = new StreamingMultipartBody(formFieldName, blob.fileName(), blob.mimeType);
+            MultipartRequestBody requestBody = new MultipartRequestBody(body, blob, blobStore, progress);
+            Request.Builder builder = new Request.Builder().tag(tag).url(uploadUrl).post(requestBody);
+            if (networkPolicy != null) {
+                builder.tag(NetworkPolicy.class, networkPolicy);
+            }
+
+            // Apply required headers from ticket (e.g., x-upsert: true); their values may be secrets
+            int headers = 0;
+            if (requiredHeaders != null) {
+                Iterator<String> keys = requiredHeaders.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    String value = requiredHeaders.optString(key, "");
+                    if (!value.isEmpty()) {
+                        builder.header(key, value);
+                        headers++;
+                    }
+                }
+            } else {
+                // Fallback: always include x-upsert if not provided
+                builder.header("x-upsert", "true");
+            }
+            events.record(UploadEvent.UPLOAD_START, tag.label(), blob.length, headers);
+
+            try (Response response = transport.transfer(builder.build())) {
+                int responseCode = response.code();
+
+                String uploadResponseText = "";
+                try {
+                    uploadResponseText = responseText(response);
+                } catch (IOException e) {
+                    logger.w("Could not read upload response", e);
+                }
+
+                // Accept 200, 201, or 204 as success
+                if (responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_CREATED || responseCode == HttpURLConnection.HTTP_NO_CONTENT) {
+                    events.record(UploadEvent.UPLOAD_OK, tag.label(), response.protocol().toString(), responseCode,
+                        requestBody.bytesWritten);
+                    task.uploadConfirmation = uploadConfirmation(uploadResponseText, response.header("ETag"),
+                        task.ticket.bucket, task.bucketRelativePath, logger);
+                } else {
+                    events.record(UploadEvent.UPLOAD_FAIL, tag.label(), responseCode, uploadResponseText.length());
+                    throw StageException.http("Failed to upload image: " + responseCode, responseCode);
+                }
+            }
+
+            return requestBody.bytesWritten;
+
+        } catch (IOException e) {
+            logger.e("Error uploading to Supabase", e);
+            throw StageException.network("Error uploading image: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Multipart body that streams the image from its store on every write, so the
+     * image is never buffered and OkHttp can replay the body on a retried connection.
+     */
+    private static final class MultipartRequestBody extends RequestBody {
+        private final StreamingMultipartBody body;
+        private final UploadBlob blob;
+        private final BlobStore blobStore;
+        private final MediaType contentType;
+        private final ProgressInputStream.Callback progress;
+        volatile long bytesWritten;
+
+        MultipartRequestBody(StreamingMultipartBody body, UploadBlob blob, BlobStore blobStore,
+                             ProgressInputStream.Callback progress) {
+            this.body = body;
+            this.blob = blob;
+            this.blobStore = blobStore;
+            this.progress = progress;
+            this.contentType = MediaType.get(body.getContentType());
+        }
+
+        @Override
+        public MediaType contentType() {
+            return contentType;
+        }
+
+        @Override
+        public long contentLength() {
+            // -1 makes OkHttp use chunked encoding
+            return body.contentLength(blob.length);
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            try (InputStream imageStream = new ProgressInputStream(blobStore.open(blob), progress)) {
+                bytesWritten = body.writeTo(sink.outputStream(), imageStream);
+            }
+        }
+    }
+
+    /**
+     * Uploads through the TUS endpoint, resuming from a saved checkpoint when one matches.
+     * A retried attempt picks up from the last chunk the server acknowledged.
+     *
+     * @return the completed checkpoint
+     */
+    private UploadCheckpointStore.Checkpoint uploadResumable(UploadTask task, UploadTicket ticket, UploadBlob blob) throws StageException {
+        Map<String, String> headers = new HashMap<>();
+        copyHeaders(ticket.requiredHeaders, headers);
+        copyHeaders(ticket.resumableHeaders, headers);
+        if (!headers.containsKey("x-upsert")) {
+            headers.put("x-upsert", "true");
+        }
+        String token = tokens.accessToken();
+        if (token != null && !token.isEmpty() && !headers.containsKey("Authorization")) {
+            headers.put("Authorization", "Bearer " + token);
+        }
+
+        try {
+            TusUploader uploader = new TusUploader(transport, checkpointStore, logger, events, networkPolicy,
+                ticket.chunkSize, task);
+            ProgressInputStream.Callback callback = progressOf(task);
+            return uploader.upload(new URL(ticket.resumableUrl), headers, task.fingerprint, blob.length, ticket.bucket,
+                ticket.bucketRelativePath, blob.mimeType,
+                () -> new ProgressInputStream(blobStore.open(blob), callback));
+        } catch (TusUploader.RejectedException e) {
+            logger.e("Resumable upload rejected", e);
+            throw StageException.http("Error uploading image: " + e.getMessage(), e.statusCode);
+        } catch (IOException e) {
+            logger.e("Error in resumable upload", e);
+            throw StageException.network("Error uploading image: " + e.getMessage(), e);
+        }
+    }
+
+    private ProgressInputStream.Callback progressOf(UploadTask task) {
+        ProgressListener listener = progress;
+        if (listener == null) {
+            return sent -> { };
+        }
+        return sent -> listener.onProgress(task, sent);
+    }
+
+    private static void copyHeaders(JSONObject from, Map<String, String> to) {
+        if (from == null) {
+            return;
+        }
+        Iterator<String> keys = from.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            String value = from.optString(key, "");
+            if (!value.isEmpty()) {
+                to.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * Confirms the object is in Storage, using the cheapest strategy the task's
+     * options allow (options.verify):
+     *   "auto" (default) - trust the key/ETag echoed by the upload, else a HEAD on the object
+     *   "response"       - same as auto
+     *   "head"           - always HEAD the object
+     *   "list"           - list the folder and search for the file (legacy behaviour)
+     *   "none"           - skip verification and let finalize check persistence
+     * A HEAD the server does not support falls back to listing. An object that is not
+     * visible yet is reported as NOT_READY, for the retry policy to try again.
+     */
+    public void verify(UploadTask task) throws StageException {
+        String mode = task.options.optString("verify", VERIFY_AUTO);
+        long started = clock.nanoTime();
+        if (VERIFY_NONE.equals(mode)) {
+            events.record(UploadEvent.VERIFY_SKIPPED, task.label());
+            return;
+        }
+        if ((VERIFY_AUTO.equals(mode) || VERIFY_RESPONSE.equals(mode)) && task.uploadConfirmation != null) {
+            events.record(UploadEvent.VERIFY_OK, task.label(), VERIFY_RESPONSE, millisSince(started), 0);
+            return;
+        }
+
+        String token = tokens.accessToken();
+        if (token == null || token.isEmpty()) {
+            logger.w("No access token for verification", null);
+            throw StageException.fatal("Upload verification failed: no access token", null);
+        }
+        UploadEndpoints endpoints = endpointsFor(task);
+        String bucket = task.ticket.bucket;
+        String bucketRelativePath = task.bucketRelativePath;
+
+        String strategy = "list";
+        boolean found;
+        try {
+            Boolean headResult = VERIFY_LIST.equals(mode) ? null : headObject(task, endpoints, bucket, bucketRelativePath, token);
+            if (headResult != null) {
+                strategy = "head";
+                found = headResult;
+            } else {
+                found = listObject(task, endpoints, bucket, bucketRelativePath, token) > 0;
+            }
+        } catch (IOException e) {
+            logger.e("Error verifying upload in storage", e);
+            throw StageException.network("Error verifying upload: " + e.getMessage(), e);
+        }
+
+        long elapsed = millisSince(started);
+        if (!found) {
+            events.record(UploadEvent.VERIFY_NOT_FOUND, task.label(), strategy, elapsed, 0);
+            throw StageException.notReady("Upload verification failed: file not found in storage", HttpURLConnection.HTTP_NOT_FOUND);
+        }
+        events.record(UploadEvent.VERIFY_OK, task.label(), strategy, elapsed, 0);
+    }
+
+    /**
+     * HEAD /storage/v1/object/authenticated/{bucket}/{path}.
+     *
+     * @return whether the object exists, or null if the server does not support HEAD here
+     */
+    private Boolean headObject(UploadTask task, UploadEndpoints endpoints, String bucket, String bucketRelativePath,
+                               String token) throws IOException, StageException {
+        Request request = new Request.Builder()
+            .tag(task)
+            .url(endpoints.authenticatedObject(bucket, bucketRelativePath))
+            .header("Authorization", "Bearer " + token)
+            .head()
+            .build();
+
+        int responseCode;
+        try (Response response = transport.control(request)) {
+            responseCode = response.code();
+        }
+        if (responseCode >= 200 && responseCode < 300) {
+            return true;
+        }
+        // Storage answers 400 with an empty body for missing objects on some versions
+        if (responseCode == HttpURLConnection.HTTP_NOT_FOUND || responseCode == HttpURLConnection.HTTP_BAD_REQUEST) {
+            return false;
+        }
+        if (responseCode == HttpURLConnection.HTTP_BAD_METHOD || responseCode == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+            events.record(UploadEvent.VERIFY_HEAD_UNSUPPORTED, task.label(), responseCode, 0);
+            return null;
+        }
+        events.record(UploadEvent.VERIFY_FAIL, task.label(), "head", responseCode, 0);
+        throw StageException.http("Upload verification failed: " + responseCode, responseCode);
+    }
+
+    /** Lists /storage/v1/object/list/{bucket}/{folder}?search={filename} and returns the match count. */
+    private int listObject(UploadTask task, UploadEndpoints endpoints, String bucket, String bucketRelativePath,
+                           String token) throws IOException, StageException {
+        // Extract folder and filename from bucketRelativePath
+        int lastSlash = bucketRelativePath.lastIndexOf('/');
+        String folder = lastSlash >= 0 ? bucketRelativePath.substring(0, lastSlash) : "";
+        String filename = lastSlash >= 0 ? bucketRelativePath.substring(lastSlash + 1) : bucketRelativePath;
+
+        Request request = new Request.Builder()
+            .tag(task)
+            .url(endpoints.listObjects(bucket, folder, filename))
+            .header("Accept", "application/json")
+            .header("Authorization", "Bearer " + token)
+            .build();
+
+        String response;
+        try (Response listResponse = transport.control(request)) {
+            int responseCode = listResponse.code();
+            response = responseText(listResponse);
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                events.record(UploadEvent.VERIFY_FAIL, task.label(), "list", responseCode, 0);
+                throw StageException.http("Upload verification failed: " + responseCode, responseCode);
+            }
+        }
+        try {
+            return new JSONArray(response).length();
+        } catch (JSONException e) {
+            logger.e("Failed to parse verification response", e);
+            throw StageException.fatal("Upload verification failed: invalid response", e);
+        }
+    }
+
+    /**
+     * Registers the photo with the fortune. The backend answers
+     * UPLOAD_NOT_PERSISTED while Storage has not caught up yet; that is
+     * reported as NOT_READY and retried like any other not-ready result.
+     *
+     * With finalizeBatching on, the first attempt of a task with siblings
+     * (batchFinalize: false in the options opts out) goes through the batcher.
+     *
+     * @return the finalize response ({ signedUrl, replaced, ... })
+     */
+    public JSONObject finalizePhoto(UploadTask task) throws StageException {
+        UploadEndpoints endpoints = endpointsFor(task);
+        events.record(UploadEvent.FINALIZE_START, task.label(), task.attempt + 1, 0);
+        try {
+            JSONObject requestBody = finalizePayload(task);
+            if (finalizeBatcher != null && task.attempt == 0 && task.batchSiblings() > 0
+                    && task.options.optBoolean("batchFinalize", true)) {
+                JSONObject batched = finalizeBatcher.finalizePhoto(task, endpoints.finalizeUrl, requestBody);
+                if (batched != null) {
+                    events.record(UploadEvent.FINALIZE_OK, task.label(), HttpURLConnection.HTTP_OK, 1);
+                    return batched;
+                }
+            }
+
+            Request.Builder builder = new Request.Builder()
+                .tag(task)
+                .url(endpoints.finalizeUrl)
+                .header("Accept", "application/json");
+            authorizeFinalize(builder);
+            builder.post(RequestBody.create(requestBody.toString(), JSON));
+
+            int responseCode;
+            String responseBody;
+            try (Response response = transport.control(builder.build())) {
+                responseCode = response.code();
+                responseBody = responseText(response);
+            }
+            if (responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_CREATED) {
+                // The response carries a signed download URL: never log it
+                events.record(UploadEvent.FINALIZE_OK, task.label(), responseCode, 0);
+                return new JSONObject(responseBody);
+            }
+
+            events.record(UploadEvent.FINALIZE_FAIL, task.label(), responseCode, responseBody.length());
+            if (responseBody.contains("UPLOAD_NOT_PERSISTED")) {
+                throw StageException.notReady("Failed to finalize photo: upload not persisted", responseCode);
+            }
+            throw StageException.http("Failed to finalize photo: " + responseCode, responseCode);
+        } catch (IOException e) {
+            logger.e("Error finalizing photo", e);
+            throw StageException.network("Error finalizing photo: " + e.getMessage(), e);
+        } catch (JSONException e) {
+            logger.e("Error finalizing photo", e);
+            throw StageException.fatal("Error finalizing photo: " + e.getMessage(), e);
+        }
+    }
+
+    /** Backend expects: fortune_id, bucket, path (bucket-relative, NO prefix). */
+    private static JSONObject finalizePayload(UploadTask task) throws JSONException {
+        // A task may skip the ticket when the fortune id is in the options
+        String fortuneId = task.ticket != null
+            ? task.ticket.resolveFortuneId(task.options)
+            : task.options.optString("fortuneId", "");
+        JSONObject payload = new JSONObject();
+        payload.put("fortune_id", fortuneId);
+        payload.put("bucket", task.bucket());
+        payload.put("path", task.bucketRelativePath); // bucket-relative: userId/file.jpg (NO "photos/" prefix)
+        payload.put("mime", task.blob().mimeType);
+        if (task.width() > 0) payload.put("width", task.width());
+        if (task.height() > 0) payload.put("height", task.height());
+        if (task.uploadedBytes > 0) payload.put("size_bytes", task.uploadedBytes);
+        if (task.thumbnailPath != null) payload.put("thumbnail_path", task.thumbnailPath); // same bucket as the photo
+        if (task.blurHash != null) payload.put("blurhash", task.blurHash);
+        return payload;
+    }
+
+    /**
+     * Sends { items: [payload, ...] } and reads { results: [...] }, one result per
+     * item in the same order, each with its own status (200 when absent) and the
+     * fields of a single finalize response. A finalize function without batch
+     * support answers 404/405/501, says BATCH_UNSUPPORTED or answers without
+     * results. A 400 is a bad batch, not a missing feature: it fails the batch's
+     * tasks like any other error, and the next pick is batched again.
+     */
+    private boolean sendFinalizeBatch(HttpUrl url, List<FinalizeBatcher.Item> items) throws StageException {
+        try {
+            JSONArray payloads = new JSONArray();
+            for (FinalizeBatcher.Item item : items) {
+                payloads.put(item.payload);
+            }
+            Request.Builder builder = new Request.Builder()
+                .tag(items) // not one task's call: cancelling a task leaves the batch alone
+                .url(url)
+                .header("Accept", "application/json");
+            authorizeFinalize(builder);
+            builder.post(RequestBody.create(new JSONObject().put("items", payloads).toString(), JSON));
+
+            int responseCode;
+            String responseBody;
+            try (Response response = transport.control(builder.build())) {
+                responseCode = response.code();
+                responseBody = responseText(response);
+            }
+            if (isBatchUnsupported(responseCode, responseBody)) {
+                return false;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_CREATED) {
+                events.record(UploadEvent.FINALIZE_BATCH_FAIL, items.get(0).task.label(), responseCode, responseBody.length());
+                throw StageException.http("Failed to finalize photos: " + responseCode, responseCode);
+            }
+            JSONArray results = new JSONObject(responseBody).optJSONArray("results");
+            if (results == null) {
+                return false;
+            }
+            for (int i = 0; i < items.size(); i++) {
+                FinalizeBatcher.Item item = items.get(i);
+                JSONObject result = results.optJSONObject(i);
+                int status = result != null ? result.optInt("status", HttpURLConnection.HTTP_OK) : HttpURLConnection.HTTP_BAD_GATEWAY;
+                if (status == HttpURLConnection.HTTP_OK || status == HttpURLConnection.HTTP_CREATED) {
+                    item.response = result;
+                } else if (result != null && result.toString().contains("UPLOAD_NOT_PERSISTED")) {
+                    item.failure = StageException.notReady("Failed to finalize photo: upload not persisted", status);
+                } else {
+                    events.record(UploadEvent.FINALIZE_FAIL, item.task.label(), "batched", status, 0);
+                    item.failure = StageException.http("Failed to finalize photo: " + status, status);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            logger.e("Error finalizing photos", e);
+            throw StageException.network("Error finalizing photos: " + e.getMessage(), e);
+        } catch (JSONException e) {
+            logger.e("Error finalizing photos", e);
+            throw StageException.fatal("Error finalizing photos: " + e.getMessage(), e);
+        }
+    }
+
+    private static boolean isBatchUnsupported(int responseCode, String responseBody) {
+        return responseCode == HttpURLConnection.HTTP_NOT_FOUND
+            || responseCode == HttpURLConnection.HTTP_BAD_METHOD
+            || responseCode == HttpURLConnection.HTTP_NOT_IMPLEMENTED
+            || responseBody.contains("BATCH_UNSUPPORTED");
+    }
+
+    /** Adds the bearer token if there is one. */
+    private void authorizeFinalize(Request.Builder builder) {
+        String token = tokens.accessToken();
+        if (token != null && !token.isEmpty()) {
+            builder.header("Authorization", "Bearer " + token);
+        } else {
+            logger.w("No access token available for finalize request", null);
+        }
+    }
+
+    private long millisSince(long startedNanos) {
+        return (clock.nanoTime() - startedNanos) / 1000000;
+    }
+
+    /**
+     * Reads what the storage server echoed for a multipart upload: the object key
+     * from the JSON body if it names our object, else the ETag header.
+     *
+     * @return confirmation string, or null if the response confirms nothing
+     */
+    static String uploadConfirmation(String responseBody, String etag, String bucket, String bucketRelativePath, Logger logger) {
+        if (responseBody != null && !responseBody.isEmpty()) {
+            try {
+                String key = new JSONObject(responseBody).optString("Key", "");
+                if (key.equals(bucketRelativePath) || key.equals(bucket + "/" + bucketRelativePath)) {
+                    return key;
+                }
+                if (!key.isEmpty()) {
+                    logger.w("Upload response key does not match the expected path", null);
+                    return null;
+                }
+            } catch (JSONException e) {
+                // Not JSON: fall through to the ETag
+            }
+        }
+        return etag != null && !etag.isEmpty() ? "etag:" + etag : null;
+    }
+
+    /** Reads the whole body, which also returns the connection to the pool. */
+    static String responseText(Response response) throws IOException {
+        ResponseBody body = response.body();
+        return body != null ? body.string() : "";
+    }
+}
@@ -0,0 +1,53 @@
+package com.fortunemagnet.upload;
+
+/** What the engine records in its {@link EventLog}. */
+public enum UploadEvent implements EventLog.Type {
+    TICKET_REQUEST(EventLog.Level.DEBUG, "hasToken", null),
+    TICKET_OK(EventLog.Level.INFO, "status", "ms"),
+    TICKET_FAIL(EventLog.Level.WARN, "status", "bodyChars"),
+    UPLOAD_START(EventLog.Level.DEBUG, "bytes", "headers"),
+    UPLOAD_OK(EventLog.Level.INFO, "status", "bytes"),
+    UPLOAD_FAIL(EventLog.Level.WARN, "status", "bodyChars"),
+    RENDITION_OK(EventLog.Level.INFO, "bytes", null),
+    TUS_CREATED(EventLog.Level.DEBUG, "length", null),
+    TUS_RESUME(EventLog.Level.DEBUG, "offset", "length"),
+    TUS_OK(EventLog.Level.INFO, "bytes", null),
+    VERIFY_SKIPPED(EventLog.Level.INFO, null, null),
+    VERIFY_OK(EventLog.Level.INFO, "ms", null),           // detail: strategy
+    VERIFY_NOT_FOUND(EventLog.Level.WARN, "ms", null),    // detail: strategy
+    VERIFY_HEAD_UNSUPPORTED(EventLog.Level.INFO, "status", null),
+    VERIFY_FAIL(EventLog.Level.WARN, "status", null),     // detail: strategy
+    FINALIZE_START(EventLog.Level.DEBUG, "attempt", null),
+    FINALIZE_OK(EventLog.Level.INFO, "status", "batched"),
+    FINALIZE_FAIL(EventLog.Level.WARN, "status", "bodyChars"), // detail: "batched" for one photo of a batch
+    FINALIZE_BATCH(EventLog.Level.INFO, "items", null),
+    FINALIZE_BATCH_UNSUPPORTED(EventLog.Level.INFO, "items", null),
+    FINALIZE_BATCH_FAIL(EventLog.Level.WARN, "status", "bodyChars"),
+    STAGE_RETRY(EventLog.Level.WARN, "attempt", "delayMs"), // detail: the failure
+    STAGE_FAIL(EventLog.Level.ERROR, "attempts", null);     // detail: the failure
+
+    private final EventLog.Level level;
+    private final String firstArgument;
+    private final String secondArgument;
+
+    UploadEvent(EventLog.Level level, String firstArgument, String secondArgument) {
+        this.level = level;
+        this.firstArgument = firstArgument;
+        this.secondArgument = secondArgument;
+    }
+
+    @Override
+    public EventLog.Level level() {
+        return level;
+    }
+
+    @Override
+    public String firstArgument() {
+        return firstArgument;
+    }
+
+    @Override
+    public String secondArgument() {
+        return secondArgument;
+    }
+}
@@ -0,0 +1,214 @@
+package com.fortunemagnet.upload;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the upload pipeline. Workers record into
+ * preallocated atomic arrays only, so recording takes no lock and allocates
+ * nothing; a snapshot for JS is built on demand. Durations come from
+ * System.nanoTime(), which is monotonic.
+ */
+public final class UploadMetrics {
+    private static final UploadTask.Stage[] STAGES = UploadTask.Stage.values();
+    private static final StageException.Kind[] KINDS = StageException.Kind.values();
+
+    /**
+     * Log-linear histogram: values below 4 are exact, above that every power of two
+     * is split into 4 buckets, so a bucket is at most 25% wide.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKETS = 4;
+        static final int BUCKETS = 40 * SUB_BUCKETS; // up to 2^40 (12 days in microseconds)
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(bucketFor(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // Another thread moved max first: compare again
+            }
+        }
+
+        static int bucketFor(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int octave = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) ((value >>> (octave - 2)) & (SUB_BUCKETS - 1));
+            return Math.min(BUCKETS - 1, (octave - 1) * SUB_BUCKETS + sub);
+        }
+
+        /** Smallest value that falls into the bucket. */
+        static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int octave = bucket / SUB_BUCKETS + 1;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (octave - 2);
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        /**
+         * @return an upper estimate of the p-th percentile (0 < p <= 1), never above the
+         * largest value recorded; 0 when empty
+         */
+        long percentile(double p) {
+            long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    long upper = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                    return Math.min(upper, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        JSONObject toJson() throws JSONException {
+            long n = count.get();
+            JSONObject json = new JSONObject();
+            json.put("count", n);
+            json.put("mean", n > 0 ? sum.get() / n : 0);
+            json.put("p50", percentile(0.50));
+            json.put("p95", percentile(0.95));
+            json.put("p99", percentile(0.99));
+            json.put("max", max.get());
+            return json;
+        }
+    }
+
+    private final Histogram[] stageMicros = new Histogram[STAGES.length];
+    private final AtomicLongArray stageRetries = new AtomicLongArray(STAGES.length);
+    private final AtomicLongArray stageParked = new AtomicLongArray(STAGES.length);
+    // Failed attempts, indexed by stage * KINDS.length + kind
+    private final AtomicLongArray stageFailures = new AtomicLongArray(STAGES.length * KINDS.length);
+    private final Histogram uploadBytesPerSecond = new Histogram();
+    private final Histogram jobMillis = new Histogram();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong jobsSucceeded = new AtomicLong();
+    private final AtomicLong jobsDeduplicated = new AtomicLong();
+    private final AtomicLong jobsFailed = new AtomicLong();
+    private final AtomicLong jobsCancelled = new AtomicLong();
+    private final AtomicLong version = new AtomicLong(); // bumped by every record, for exports
+    private final long startedAtNanos = System.nanoTime();
+
+    public UploadMetrics() {
+        for (int i = 0; i < stageMicros.length; i++) {
+            stageMicros[i] = new Histogram();
+        }
+    }
+
+    public void stageSucceeded(UploadTask.Stage stage, long elapsedNanos) {
+        stageMicros[stage.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+        version.incrementAndGet();
+    }
+
+    public void stageFailed(UploadTask.Stage stage, StageException.Kind kind) {
+        stageFailures.incrementAndGet(stage.ordinal() * KINDS.length + kind.ordinal());
+        version.incrementAndGet();
+    }
+
+    public void stageRetried(UploadTask.Stage stage) {
+        stageRetries.incrementAndGet(stage.ordinal());
+        version.incrementAndGet();
+    }
+
+    public void stageParked(UploadTask.Stage stage) {
+        stageParked.incrementAndGet(stage.ordinal());
+        version.incrementAndGet();
+    }
+
+    public void uploaded(long bytes, long elapsedNanos) {
+        uploadedBytes.addAndGet(bytes);
+        if (bytes > 0 && elapsedNanos > 0) {
+            uploadBytesPerSecond.record(bytes * 1000 / Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsedNanos)));
+        }
+        version.incrementAndGet();
+    }
+
+    /** @param elapsedNanos time since the photo was picked in this process, or -1 if unknown */
+    public void jobFinished(boolean success, boolean deduplicated, boolean cancelled, long elapsedNanos) {
+        if (cancelled) {
+            jobsCancelled.incrementAndGet();
+        } else if (!success) {
+            jobsFailed.incrementAndGet();
+        } else if (deduplicated) {
+            jobsDeduplicated.incrementAndGet();
+        } else {
+            jobsSucceeded.incrementAndGet();
+        }
+        if (elapsedNanos >= 0 && !cancelled) {
+            jobMillis.record(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        }
+        version.incrementAndGet();
+    }
+
+    /** Changes whenever something was recorded; lets exports skip unchanged snapshots. */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * Everything recorded since the process started. Stage latencies are in
+     * microseconds and cover successful attempts; job latencies are in milliseconds.
+     */
+    public JSONObject snapshot() throws JSONException {
+        JSONObject stages = new JSONObject();
+        for (UploadTask.Stage stage : STAGES) {
+            if (stage == UploadTask.Stage.DONE) {
+                continue;
+            }
+            int s = stage.ordinal();
+            JSONObject failures = new JSONObject();
+            for (StageException.Kind kind : KINDS) {
+                failures.put(kind.name(), stageFailures.get(s * KINDS.length + kind.ordinal()));
+            }
+            JSONObject json = new JSONObject();
+            json.put("latencyMicros", stageMicros[s].toJson());
+            json.put("retries", stageRetries.get(s));
+            json.put("parked", stageParked.get(s));
+            json.put("failures", failures);
+            stages.put(stage.name(), json);
+        }
+        JSONObject jobs = new JSONObject();
+        jobs.put("succeeded", jobsSucceeded.get());
+        jobs.put("deduplicated", jobsDeduplicated.get());
+        jobs.put("failed", jobsFailed.get());
+        jobs.put("cancelled", jobsCancelled.get());
+        jobs.put("latencyMillis", jobMillis.toJson());
+
+        JSONObject upload = new JSONObject();
+        upload.put("bytes", uploadedBytes.get());
+        upload.put("bytesPerSecond", uploadBytesPerSecond.toJson());
+
+        JSONObject snapshot = new JSONObject();
+        snapshot.put("version", version.get());
+        snapshot.put("uptimeMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAtNanos));
+        snapshot.put("stages", stages);
+        snapshot.put("jobs", jobs);
+        snapshot.put("upload", upload);
+        return snapshot;
+    }
+}
@@ -0,0 +1,69 @@
+package com.fortunemagnet.upload;
+
+import org.json.JSONObject;
+
+/**
+ * One image moving through the upload stages. The task remembers the stage it
+ * reached and what earlier stages produced, so a failed stage can be retried
+ * later without repeating the stages before it. Subclasses describe the image
+ * and add whatever their platform needs (processing, dedup, persistence).
+ */
+public abstract class UploadTask {
+    public enum Stage { PROCESS, TICKET, UPLOAD, VERIFY, FINALIZE, DONE }
+
+    public final JSONObject options;
+
+    // Only touched by the thread currently running the task
+    public Stage stage = Stage.PROCESS;
+    public int attempt;              // failed attempts of the current stage
+    public long stageStartedAt;      // first attempt of the current stage, for the deadline
+    public String fingerprint;       // identifies the bytes, so a resumable upload can continue
+    public UploadTicket ticket;
+    public String bucketRelativePath;
+    public long uploadedBytes;
+    public String uploadConfirmation; // key/ETag/final offset acknowledged by the upload, null if none
+    public JSONObject finalizeResponse;
+    public String thumbnailPath;      // bucket-relative path of the uploaded thumbnail, null without one
+    public String blurHash;           // placeholder for the photo until it loads, null without one
+    UploadEndpoints endpoints;        // the options' endpoints, resolved by the engine on first use
+
+    protected UploadTask(JSONObject options) {
+        this.options = options != null ? options : new JSONObject();
+    }
+
+    public void advance(Stage next) {
+        stage = next;
+        attempt = 0;
+        stageStartedAt = System.currentTimeMillis();
+    }
+
+    /** The image to upload, or null before it is known. */
+    public abstract UploadBlob blob();
+
+    public abstract int width();
+
+    public abstract int height();
+
+    /** Bucket the object lives in; the ticket's unless the object was uploaded earlier. */
+    public String bucket() {
+        return ticket.bucket;
+    }
+
+    /**
+     * Other tasks started together with this one (the rest of a multi-select pick),
+     * which will likely finalize around the same time; see UploadEngine.Builder#finalizeBatching.
+     */
+    public int batchSiblings() {
+        return 0;
+    }
+
+    /** Cancelled tasks stop between stages and are not retried. */
+    public boolean isCancelled() {
+        return false;
+    }
+
+    /** Name for logs. */
+    public String label() {
+        return fingerprint != null ? fingerprint : Integer.toHexString(System.identityHashCode(this));
+    }
+}
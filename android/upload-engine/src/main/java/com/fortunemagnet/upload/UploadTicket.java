@@ -0,0 +1,95 @@
+package com.fortunemagnet.upload;
+
+import org.json.JSONObject;
+
+/**
+ * Parsed response of the issue-fortune-upload-ticket edge function.
+ * Supports both the legacy ({ url, path, headers }) and the new
+ * ({ url, bucketRelativePath, requiredHeaders, formFieldName }) formats.
+ */
+public final class UploadTicket {
+    // Signed upload URLs live for hours; a spare ticket is only reused well within that
+    static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+    private static final long EXPIRY_MARGIN_MS = 60 * 1000;
+
+    public final JSONObject raw;
+    public final String uploadUrl;
+    public final String ticketId;
+    public final String bucket;
+    public final String bucketRelativePath;
+    public final String formFieldName;
+    public final JSONObject requiredHeaders;
+    public final String resumableUrl; // empty when the backend has no resumable endpoint
+    public final JSONObject resumableHeaders;
+    public final int chunkSize;
+    public final String accessToken; // token the ticket was issued for
+    public final long issuedAtMillis;
+    public final long expiresAtMillis;
+
+    private UploadTicket(JSONObject raw, String accessToken, long issuedAtMillis) {
+        this.raw = raw;
+        this.accessToken = accessToken;
+        this.issuedAtMillis = issuedAtMillis;
+
+        this.uploadUrl = raw.optString("url", "");
+        this.ticketId = raw.optString("ticketId", "");
+        this.bucket = raw.optString("bucket", "photos");
+
+        // Handle bucketRelativePath: new format has it, legacy format has "path"
+        String path = raw.optString("bucketRelativePath", "");
+        this.bucketRelativePath = path.isEmpty() ? raw.optString("path", "") : path;
+
+        // Handle formFieldName: default to "file"
+        this.formFieldName = raw.optString("formFieldName", "file");
+
+        // Handle headers: new format has "requiredHeaders", legacy has "headers"
+        JSONObject headers = raw.optJSONObject("requiredHeaders");
+        this.requiredHeaders = headers != null ? headers : raw.optJSONObject("headers");
+
+        // Resumable (TUS) endpoint, only present when the backend supports it
+        String resumable = raw.optString("resumableUrl", "");
+        this.resumableUrl = resumable.isEmpty() ? raw.optString("tusEndpoint", "") : resumable;
+        this.resumableHeaders = raw.optJSONObject("resumableHeaders");
+        this.chunkSize = raw.optInt("chunkSize", TusUploader.DEFAULT_CHUNK_SIZE);
+
+        long expiresInSeconds = raw.optLong("expiresIn", 0);
+        this.expiresAtMillis = issuedAtMillis + (expiresInSeconds > 0 ? expiresInSeconds * 1000 : DEFAULT_TTL_MS);
+    }
+
+    public static UploadTicket parse(JSONObject raw, String accessToken, long issuedAtMillis) {
+        return new UploadTicket(raw, accessToken, issuedAtMillis);
+    }
+
+    public boolean isValid() {
+        return !uploadUrl.isEmpty() && !bucketRelativePath.isEmpty();
+    }
+
+    /** Whether the signed upload URL is still safely inside its lifetime. */
+    public boolean isFresh(long nowMillis) {
+        return nowMillis < expiresAtMillis - EXPIRY_MARGIN_MS;
+    }
+
+    /** Whether an unused ticket can still be handed to a later pick by the same user. */
+    public boolean isReusable(String currentAccessToken, long nowMillis) {
+        return accessToken != null
+            && accessToken.equals(currentAccessToken)
+            && isFresh(nowMillis);
+    }
+
+    /**
+     * fortune_id for finalize: prefer the options, then the ticket, then fall back to ticketId.
+     */
+    public String resolveFortuneId(JSONObject options) {
+        String fortuneId = options.optString("fortuneId", null);
+        if (fortuneId == null || fortuneId.isEmpty()) {
+            fortuneId = raw.optString("fortuneId", null);
+            if (fortuneId == null || fortuneId.isEmpty()) {
+                fortuneId = raw.optString("fortune_id", null);
+            }
+        }
+        if (fortuneId == null || fortuneId.isEmpty()) {
+            fortuneId = ticketId;
+        }
+        return fortuneId;
+    }
+}
@@ -0,0 +1,97 @@
+package com.fortunemagnet.upload;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class EventLogTest {
+
+    @Test
+    public void dump_keepsTheNewestEventsOldestFirst() {
+        EventLog events = new EventLog(3, EventLog.Level.DEBUG, null);
+        for (int i = 1; i <= 5; i++) {
+            events.record(UploadEvent.TUS_CREATED, "1#0", i, 0);
+        }
+
+        List<String> lines = events.dump();
+
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0), lines.get(0).endsWith("TUS_CREATED 1#0 length=3"));
+        assertTrue(lines.get(2), lines.get(2).endsWith("TUS_CREATED 1#0 length=5"));
+    }
+
+    @Test
+    public void dump_onlyListsTheGivenSubjects() {
+        EventLog events = new EventLog(16, EventLog.Level.DEBUG, null);
+        events.record(UploadEvent.UPLOAD_OK, "1#0", "h2", 200, 1024);
+        events.record(UploadEvent.UPLOAD_OK, "1#10", "h2", 200, 2048);
+        events.record(UploadEvent.STAGE_FAIL, "2#0", "Failed to upload image: 500", 3, 0);
+
+        List<String> lines = events.dump("1#0", "2#0");
+
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0), lines.get(0).endsWith("UPLOAD_OK 1#0 status=200 bytes=1024: h2"));
+        assertTrue(lines.get(1), lines.get(1).endsWith("STAGE_FAIL 2#0 attempts=3: Failed to upload image: 500"));
+    }
+
+    @Test
+    public void eventsBelowTheMinimumLevel_areDropped() {
+        EventLog events = new EventLog(16, EventLog.Level.INFO, null);
+
+        events.record(UploadEvent.UPLOAD_START, "1#0", 1024, 1);
+        events.record(UploadEvent.UPLOAD_OK, "1#0", 200, 1024);
+
+        assertFalse(events.isLoggable(UploadEvent.UPLOAD_START));
+        assertEquals(1, events.dump("1#0").size());
+    }
+
+    @Test
+    public void none_recordsNothing() {
+        EventLog.NONE.record(UploadEvent.STAGE_FAIL, "1#0", "boom", 1, 0);
+
+        assertTrue(EventLog.NONE.dump().isEmpty());
+    }
+
+    @Test
+    public void mirror_seesEveryEventAsItIsRecorded() {
+        List<String> mirrored = new ArrayList<>();
+        EventLog events = new EventLog(1, EventLog.Level.DEBUG, new Logger() {
+            @Override
+            public void d(String message) {
+                mirrored.add(message);
+            }
+
+            @Override
+            public void w(String message, Throwable error) {
+            }
+
+            @Override
+            public void e(String message, Throwable error) {
+            }
+        });
+
+        events.record(UploadEvent.VERIFY_SKIPPED, "1#0");
+        events.record(UploadEvent.VERIFY_OK, "1#0", "head", 12, 0);
+
+        assertEquals(2, mirrored.size());
+        assertEquals("VERIFY_SKIPPED 1#0", mirrored.get(0));
+        assertEquals("VERIFY_OK 1#0 ms=12: head", mirrored.get(1));
+        assertEquals(1, events.dump().size());
+    }
+
+    @Test
+    public void clear_forgetsEverything() {
+        EventLog events = new EventLog(4, EventLog.Level.DEBUG, null);
+        events.record(UploadEvent.TICKET_OK, "1#0", 200, 40);
+
+        events.clear();
+        events.record(UploadEvent.TICKET_OK, "2#0", 200, 40);
+
+        List<String> lines = events.dump();
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).contains("2#0"));
+    }
+}
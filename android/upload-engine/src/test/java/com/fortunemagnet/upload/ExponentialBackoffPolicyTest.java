@@ -0,0 +1,41 @@
+package com.fortunemagnet.upload;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class ExponentialBackoffPolicyTest {
+    private final ExponentialBackoffPolicy policy =
+        new ExponentialBackoffPolicy(5, 400, 2000, 10000, new Random(7));
+
+    @Test
+    public void delay_growsExponentiallyWithinJitterBounds() {
+        StageException failure = StageException.network("reset", null);
+        long[] expected = {400, 800, 1600, 2000};
+        for (int attempt = 1; attempt <= expected.length; attempt++) {
+            long delay = policy.delayBeforeRetry(attempt, 0, failure);
+            assertTrue("attempt " + attempt + " delay " + delay,
+                delay >= expected[attempt - 1] / 2 && delay <= expected[attempt - 1]);
+        }
+    }
+
+    @Test
+    public void delay_stopsAtMaxAttemptsAndDeadline() {
+        StageException failure = StageException.http("Service unavailable", 503);
+        assertEquals(-1, policy.delayBeforeRetry(5, 0, failure));
+        assertEquals(-1, policy.delayBeforeRetry(1, 9900, failure));
+    }
+
+    @Test
+    public void classification_retriesTransientAndFailsFastOnClientErrors() {
+        assertTrue(policy.delayBeforeRetry(1, 0, StageException.http("x", 500)) >= 0);
+        assertTrue(policy.delayBeforeRetry(1, 0, StageException.http("x", 429)) >= 0);
+        assertTrue(policy.delayBeforeRetry(1, 0, StageException.http("x", 408)) >= 0);
+        assertTrue(policy.delayBeforeRetry(1, 0, StageException.notReady("x", 404)) >= 0);
+        assertEquals(-1, policy.delayBeforeRetry(1, 0, StageException.http("x", 400)));
+        assertEquals(-1, policy.delayBeforeRetry(1, 0, StageException.http("x", 401)));
+        assertEquals(-1, policy.delayBeforeRetry(1, 0, StageException.fatal("x", null)));
+    }
+}
@@ -0,0 +1,267 @@
+package com.fortunemagnet.upload;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for the upload backend: the issue-fortune-upload-ticket and
+ * finalize-fortune-photo edge functions and the storage endpoints the pipeline
+ * uploads to and verifies against. Finalize takes batches ({ items: [...] })
+ * unless batchFinalize is off. Every response can be delayed, upload bodies
+ * can be read at a limited bandwidth, and a share of requests can be failed
+ * with a 503 or a dropped connection.
+ */
+final class FakeUploadBackend {
+    static final String BUCKET = "photos";
+
+    /** Behaviour of the fake; fields may be changed while it runs. */
+    static final class Config {
+        volatile long latencyMs;      // added to every response
+        volatile long jitterMs;       // up to this much on top, uniformly
+        volatile long bytesPerSecond; // upload read rate per request, 0 for unlimited
+        volatile double failureRate;  // share of requests answered with 503
+        volatile double dropRate;     // share of requests whose connection is closed without a response
+        volatile boolean visibleAfterUpload = true; // false: HEAD misses and finalize reports UPLOAD_NOT_PERSISTED once
+        volatile boolean batchFinalize = true; // false: answers a batch like an older function, with BATCH_UNSUPPORTED
+        volatile boolean rejectBatches; // true: answers every batch with a 400, as for an invalid item
+    }
+
+    final Config config = new Config();
+    final AtomicInteger tickets = new AtomicInteger();
+    final AtomicInteger uploads = new AtomicInteger();
+    final AtomicInteger verifies = new AtomicInteger();
+    final AtomicInteger finalizes = new AtomicInteger(); // photos, batched or not
+    final AtomicInteger finalizeBatches = new AtomicInteger(); // batch requests, answered or not
+    final AtomicInteger injectedFailures = new AtomicInteger();
+    final Map<String, Long> objects = new ConcurrentHashMap<>(); // bucket-relative path -> size
+    final Map<String, String> finalized = new ConcurrentHashMap<>(); // path -> fortune id
+    final Map<String, String> thumbnails = new ConcurrentHashMap<>(); // path -> its thumbnail's path
+    final Map<String, String> blurHashes = new ConcurrentHashMap<>(); // path -> blurhash
+
+    private final HttpServer httpServer;
+    private final ExecutorService executor;
+    private final Random random;
+    private final Map<String, Boolean> notPersistedOnce = new ConcurrentHashMap<>();
+
+    FakeUploadBackend(int threads, long seed) throws IOException {
+        random = new Random(seed);
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        httpServer.setExecutor(executor);
+        httpServer.createContext("/functions/v1/issue-fortune-upload-ticket", this::issueTicket);
+        httpServer.createContext("/functions/v1/finalize-fortune-photo", this::finalizePhoto);
+        httpServer.createContext("/storage/v1/object/upload/sign/", this::upload);
+        httpServer.createContext("/storage/v1/object/authenticated/", this::head);
+        httpServer.start();
+    }
+
+    /** Base URL standing in for the Supabase project URL. */
+    String baseUrl() {
+        return "http://127.0.0.1:" + httpServer.getAddress().getPort();
+    }
+
+    void stop() {
+        httpServer.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void issueTicket(HttpExchange exchange) throws IOException {
+        drain(exchange.getRequestBody(), 0);
+        if (inject(exchange)) {
+            return;
+        }
+        int n = tickets.incrementAndGet();
+        String path = "user-1/" + n + ".jpg";
+        JSONObject ticket = new JSONObject();
+        JSONObject headers = new JSONObject();
+        try {
+            headers.put("x-upsert", "true");
+            ticket.put("url", baseUrl() + "/storage/v1/object/upload/sign/" + BUCKET + "/" + path + "?token=t" + n);
+            ticket.put("ticketId", "ticket-" + n);
+            ticket.put("bucket", BUCKET);
+            ticket.put("bucketRelativePath", path);
+            ticket.put("formFieldName", "file");
+            ticket.put("requiredHeaders", headers);
+            ticket.put("expiresIn", 600);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        respond(exchange, 200, ticket.toString());
+    }
+
+    private void upload(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath().substring(("/storage/v1/object/upload/sign/" + BUCKET + "/").length());
+        long received = drain(exchange.getRequestBody(), config.bytesPerSecond);
+        if (inject(exchange)) {
+            return;
+        }
+        uploads.incrementAndGet();
+        objects.put(path, received);
+        if (!config.visibleAfterUpload) {
+            notPersistedOnce.put(path, true);
+        }
+        respond(exchange, 200, "{\"Key\":\"" + BUCKET + "/" + path + "\"}");
+    }
+
+    private void head(HttpExchange exchange) throws IOException {
+        // The JDK server leaves a HEAD connection unusable for the next request
+        exchange.getResponseHeaders().add("Connection", "close");
+        if (inject(exchange)) {
+            return;
+        }
+        verifies.incrementAndGet();
+        String path = exchange.getRequestURI().getPath().substring(("/storage/v1/object/authenticated/" + BUCKET + "/").length());
+        boolean visible = objects.containsKey(path) && notPersistedOnce.remove(path) == null;
+        delay();
+        exchange.sendResponseHeaders(visible ? 200 : 404, -1);
+        exchange.close();
+    }
+
+    private void finalizePhoto(HttpExchange exchange) throws IOException {
+        String body = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+        if (inject(exchange)) {
+            return;
+        }
+        try {
+            JSONObject request = new JSONObject(body);
+            JSONArray items = request.optJSONArray("items");
+            if (items == null) {
+                JSONObject result = finalizeItem(request);
+                respond(exchange, result.getInt("status"), result.toString());
+                return;
+            }
+            finalizeBatches.incrementAndGet();
+            if (!config.batchFinalize) {
+                respond(exchange, 501, "{\"error\":\"BATCH_UNSUPPORTED\"}");
+                return;
+            }
+            if (config.rejectBatches) {
+                respond(exchange, 400, "{\"error\":\"fortune_id, bucket and path are required\"}");
+                return;
+            }
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < items.length(); i++) {
+                results.put(finalizeItem(items.getJSONObject(i)));
+            }
+            respond(exchange, 200, new JSONObject().put("results", results).toString());
+        } catch (JSONException e) {
+            respond(exchange, 400, "{\"error\":\"bad json\"}");
+        }
+    }
+
+    /** One photo's finalize response, with its HTTP status in status. */
+    private JSONObject finalizeItem(JSONObject request) throws JSONException {
+        finalizes.incrementAndGet();
+        String path = request.optString("path", "");
+        JSONObject response = new JSONObject();
+        if (!objects.containsKey(path) || notPersistedOnce.remove(path) != null) {
+            response.put("status", 409);
+            response.put("error", "UPLOAD_NOT_PERSISTED");
+            return response;
+        }
+        finalized.put(path, request.optString("fortune_id", ""));
+        response.put("status", 200);
+        response.put("success", true);
+        response.put("signedUrl", baseUrl() + "/storage/v1/object/sign/" + BUCKET + "/" + path);
+        String thumbnailPath = request.optString("thumbnail_path", "");
+        if (objects.containsKey(thumbnailPath)) {
+            thumbnails.put(path, thumbnailPath);
+            response.put("thumbnailSignedUrl", baseUrl() + "/storage/v1/object/sign/" + BUCKET + "/" + thumbnailPath);
+        }
+        if (request.has("blurhash")) {
+            blurHashes.put(path, request.getString("blurhash"));
+        }
+        return response;
+    }
+
+    /** @return true when the request was failed on purpose */
+    private boolean inject(HttpExchange exchange) throws IOException {
+        double roll;
+        synchronized (random) {
+            roll = random.nextDouble();
+        }
+        if (roll < config.dropRate) {
+            injectedFailures.incrementAndGet();
+            exchange.close();
+            return true;
+        }
+        if (roll < config.dropRate + config.failureRate) {
+            injectedFailures.incrementAndGet();
+            respond(exchange, 503, "{\"error\":\"injected\"}");
+            return true;
+        }
+        return false;
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        delay();
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void delay() {
+        long jitter;
+        synchronized (random) {
+            jitter = config.jitterMs > 0 ? (long) (random.nextDouble() * config.jitterMs) : 0;
+        }
+        sleep(config.latencyMs + jitter);
+    }
+
+    /** Reads and discards the body, at most bytesPerSecond fast when that is positive. */
+    private static long drain(InputStream in, long bytesPerSecond) throws IOException {
+        byte[] buffer = new byte[16 * 1024];
+        long total = 0;
+        long started = System.nanoTime();
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            total += bytesRead;
+            if (bytesPerSecond > 0) {
+                long dueNanos = total * 1_000_000_000L / bytesPerSecond;
+                sleep((dueNanos - (System.nanoTime() - started)) / 1_000_000);
+            }
+        }
+        return total;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            out.write(buffer, 0, bytesRead);
+        }
+        return out.toByteArray();
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
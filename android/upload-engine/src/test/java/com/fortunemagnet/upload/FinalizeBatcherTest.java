@@ -0,0 +1,202 @@
+package com.fortunemagnet.upload;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finalizes the photos of one pick through UploadEngine with finalize batching
+ * on, against FakeUploadBackend.
+ */
+public class FinalizeBatcherTest {
+    private static final long WINDOW_MS = 2000; // long enough that only a full batch explains a fast send
+
+    private FakeUploadBackend backend;
+    private OkHttpTransport transport;
+    private UploadEngine engine;
+    private ExecutorService workers;
+
+    /** A photo that was uploaded and verified: only finalize is left. */
+    private static final class FinalizeTask extends UploadTask {
+        private final int siblings;
+
+        FinalizeTask(String path, int siblings) throws Exception {
+            super(new JSONObject().put("fortuneId", "fortune-1"));
+            this.siblings = siblings;
+            this.bucketRelativePath = path;
+            advance(Stage.FINALIZE);
+        }
+
+        @Override
+        public UploadBlob blob() {
+            return new UploadBlob("memory", 10, "image/jpeg");
+        }
+
+        @Override
+        public int width() {
+            return 100;
+        }
+
+        @Override
+        public int height() {
+            return 100;
+        }
+
+        @Override
+        public String bucket() {
+            return FakeUploadBackend.BUCKET;
+        }
+
+        @Override
+        public int batchSiblings() {
+            return siblings;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        backend = new FakeUploadBackend(4, 7);
+        transport = new OkHttpTransport();
+        engine = new UploadEngine.Builder()
+            .endpoints(UploadEndpoints.forSupabase(backend.baseUrl()))
+            .transport(transport)
+            .blobStore(blob -> new ByteArrayInputStream(new byte[0]))
+            .tokens(() -> "test")
+            .finalizeBatching(WINDOW_MS, 10)
+            .build();
+        workers = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        workers.shutdownNow();
+        backend.stop();
+        transport.shutdown();
+    }
+
+    @Test
+    public void finalize_pickIsSentAsOneBatch() throws Exception {
+        List<FinalizeTask> tasks = pick("a", 3);
+
+        long started = System.nanoTime();
+        List<Future<JSONObject>> results = finalizeAll(tasks);
+        for (Future<JSONObject> result : results) {
+            assertTrue(result.get(10, TimeUnit.SECONDS).optBoolean("success"));
+        }
+
+        assertEquals(1, backend.finalizeBatches.get());
+        assertEquals(3, backend.finalized.size());
+        assertTrue("waited for the window although the pick was complete",
+            System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(WINDOW_MS));
+    }
+
+    @Test
+    public void finalize_failedItemOnlyFailsItsOwnTask() throws Exception {
+        List<FinalizeTask> tasks = pick("b", 3);
+        backend.objects.remove(tasks.get(1).bucketRelativePath);
+
+        List<Future<JSONObject>> results = finalizeAll(tasks);
+
+        assertTrue(results.get(0).get(10, TimeUnit.SECONDS).optBoolean("success"));
+        assertTrue(results.get(2).get(10, TimeUnit.SECONDS).optBoolean("success"));
+        try {
+            results.get(1).get(10, TimeUnit.SECONDS);
+            fail("Expected the missing upload to fail");
+        } catch (ExecutionException e) {
+            StageException failure = (StageException) e.getCause();
+            assertEquals(StageException.Kind.NOT_READY, failure.kind);
+            assertEquals(409, failure.statusCode);
+        }
+        assertEquals(1, backend.finalizeBatches.get());
+
+        // The retry goes out on its own
+        FinalizeTask retry = tasks.get(1);
+        retry.attempt = 1;
+        backend.objects.put(retry.bucketRelativePath, 10L);
+        assertTrue(engine.finalizePhoto(retry).optBoolean("success"));
+        assertEquals(1, backend.finalizeBatches.get());
+    }
+
+    @Test
+    public void finalize_fallsBackToSinglePhotosWithoutBatchSupport() throws Exception {
+        backend.config.batchFinalize = false;
+
+        for (Future<JSONObject> result : finalizeAll(pick("c", 2))) {
+            assertTrue(result.get(10, TimeUnit.SECONDS).optBoolean("success"));
+        }
+        assertEquals(1, backend.finalizeBatches.get());
+        assertEquals(2, backend.finalized.size());
+
+        // Known from now on: the next pick does not try again
+        for (Future<JSONObject> result : finalizeAll(pick("d", 2))) {
+            assertTrue(result.get(10, TimeUnit.SECONDS).optBoolean("success"));
+        }
+        assertEquals(1, backend.finalizeBatches.get());
+        assertEquals(4, backend.finalized.size());
+    }
+
+    @Test
+    public void finalize_rejectedBatchDoesNotTurnBatchingOff() throws Exception {
+        backend.config.rejectBatches = true;
+
+        for (Future<JSONObject> result : finalizeAll(pick("f", 2))) {
+            try {
+                result.get(10, TimeUnit.SECONDS);
+                fail("Expected the rejected batch to fail");
+            } catch (ExecutionException e) {
+                assertEquals(400, ((StageException) e.getCause()).statusCode);
+            }
+        }
+        assertEquals(1, backend.finalizeBatches.get());
+        assertTrue(backend.finalized.isEmpty());
+
+        // A bad batch says nothing about batch support: the next pick is batched again
+        backend.config.rejectBatches = false;
+        for (Future<JSONObject> result : finalizeAll(pick("g", 2))) {
+            assertTrue(result.get(10, TimeUnit.SECONDS).optBoolean("success"));
+        }
+        assertEquals(2, backend.finalizeBatches.get());
+        assertEquals(2, backend.finalized.size());
+    }
+
+    @Test
+    public void finalize_singlePhotoIsNotBatched() throws Exception {
+        FinalizeTask task = pick("e", 1).get(0);
+
+        assertTrue(engine.finalizePhoto(task).optBoolean("success"));
+
+        assertEquals(0, backend.finalizeBatches.get());
+        assertEquals(1, backend.finalized.size());
+    }
+
+    /** Tasks for a pick of count photos whose uploads are in storage. */
+    private List<FinalizeTask> pick(String name, int count) throws Exception {
+        List<FinalizeTask> tasks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String path = "user-1/" + name + i + ".jpg";
+            backend.objects.put(path, 10L);
+            tasks.add(new FinalizeTask(path, count - 1));
+        }
+        return tasks;
+    }
+
+    private List<Future<JSONObject>> finalizeAll(List<FinalizeTask> tasks) {
+        List<Future<JSONObject>> results = new ArrayList<>();
+        for (FinalizeTask task : tasks) {
+            results.add(workers.submit(() -> engine.finalizePhoto(task)));
+        }
+        return results;
+    }
+}
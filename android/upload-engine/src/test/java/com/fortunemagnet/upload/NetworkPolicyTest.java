@@ -0,0 +1,83 @@
+package com.fortunemagnet.upload;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class NetworkPolicyTest {
+
+    @Test
+    public void tier_isNormalUntilSomethingIsKnown() {
+        NetworkPolicy policy = new NetworkPolicy();
+
+        assertTrue(policy.isAvailable());
+        assertEquals(0, policy.estimatedBytesPerSecond());
+        assertEquals(NetworkPolicy.Tier.NORMAL, policy.tier());
+    }
+
+    @Test
+    public void tier_followsMeasuredTransfers() {
+        NetworkPolicy policy = new NetworkPolicy();
+        policy.onNetworkAvailable("wifi", false, 0);
+
+        // 1 MB in 10 s: 100 KB/s
+        policy.recordTransfer(1000 * 1000, TimeUnit.SECONDS.toNanos(10));
+        assertEquals(NetworkPolicy.Tier.SLOW, policy.tier());
+
+        for (int i = 0; i < 10; i++) {
+            // 6 MB in 2 s
+            policy.recordTransfer(6 * 1000 * 1000, TimeUnit.SECONDS.toNanos(2));
+        }
+        assertEquals(NetworkPolicy.Tier.FAST, policy.tier());
+    }
+
+    @Test
+    public void smallTransfers_doNotCount() {
+        NetworkPolicy policy = new NetworkPolicy();
+
+        policy.recordTransfer(NetworkPolicy.MIN_SAMPLE_BYTES - 1, TimeUnit.SECONDS.toNanos(10));
+
+        assertEquals(0, policy.estimatedBytesPerSecond());
+    }
+
+    @Test
+    public void anotherNetwork_startsOverFromItsLinkEstimate() {
+        NetworkPolicy policy = new NetworkPolicy();
+        assertTrue(policy.onNetworkAvailable("wifi", false, 0));
+        policy.recordTransfer(6 * 1000 * 1000, TimeUnit.SECONDS.toNanos(1));
+        assertEquals(NetworkPolicy.Tier.FAST, policy.tier());
+
+        // Same network again: nothing to report, the measurement stays
+        assertFalse(policy.onNetworkAvailable("wifi", false, 1000));
+        assertEquals(NetworkPolicy.Tier.FAST, policy.tier());
+
+        // 1 Mbit/s link, of which half is expected for uploads
+        assertTrue(policy.onNetworkAvailable("cellular", true, 1000));
+        assertTrue(policy.isMetered());
+        assertEquals(62500, policy.estimatedBytesPerSecond());
+        assertEquals(NetworkPolicy.Tier.SLOW, policy.tier());
+    }
+
+    @Test
+    public void lostNetwork_isReportedAsChangedWhenItComesBack() {
+        NetworkPolicy policy = new NetworkPolicy();
+        policy.onNetworkAvailable("wifi", false, 0);
+
+        policy.onNetworkLost();
+        assertFalse(policy.isAvailable());
+
+        assertTrue(policy.onNetworkAvailable("wifi", false, 0));
+        assertTrue(policy.isAvailable());
+    }
+
+    @Test
+    public void meteringChange_isReported() {
+        NetworkPolicy policy = new NetworkPolicy();
+        policy.onNetworkAvailable("cellular", true, 0);
+
+        assertTrue(policy.onNetworkAvailable("cellular", false, 0));
+        assertFalse(policy.isMetered());
+    }
+}
@@ -0,0 +1,47 @@
+package com.fortunemagnet.upload;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class StreamingMultipartBodyTest {
+
+    @Test
+    public void contentLength_matchesBytesWritten() throws Exception {
+        byte[] image = new byte[IoBuffers.SIZE * 3 + 17];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) i;
+        }
+        StreamingMultipartBody body = new StreamingMultipartBody("file", "photo.jpg", "image/jpeg");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        long partBytes = body.writeTo(out, new ByteArrayInputStream(image));
+
+        assertEquals(image.length, partBytes);
+        assertEquals(body.contentLength(image.length), out.size());
+    }
+
+    @Test
+    public void contentLength_unknownPartLength() {
+        StreamingMultipartBody body = new StreamingMultipartBody("file", "photo.jpg", "image/jpeg");
+        assertEquals(-1, body.contentLength(-1));
+    }
+
+    @Test
+    public void writeTo_framesPartWithBoundary() throws Exception {
+        StreamingMultipartBody body = new StreamingMultipartBody("file", "photo.jpg", "image/jpeg");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        body.writeTo(out, new ByteArrayInputStream("abc".getBytes(StandardCharsets.UTF_8)));
+
+        String boundary = body.getContentType().substring(body.getContentType().indexOf("boundary=") + 9);
+        String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(text.startsWith("--" + boundary + "\r\n"));
+        assertTrue(text.contains("name=\"file\"; filename=\"photo.jpg\""));
+        assertTrue(text.endsWith("\r\nabc\r\n--" + boundary + "--\r\n"));
+    }
+}
@@ -0,0 +1,260 @@
+package com.fortunemagnet.upload;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs TusUploader against a local stand-in TUS server that drops
+ * connections part-way through chunks.
+ */
+public class TusUploaderTest {
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private FlakyTusServer server;
+    private UploadCheckpointStore checkpointStore;
+    private byte[] image;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FlakyTusServer();
+        checkpointStore = new UploadCheckpointStore(tempFolder.newFolder("checkpoints"), Logger.NONE);
+        image = new byte[CHUNK_SIZE * 4 + 1234];
+        new Random(42).nextBytes(image);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void upload_completesAcrossDroppedConnections() throws Exception {
+        server.dropEveryNthPatch = 2;
+
+        UploadCheckpointStore.Checkpoint completed = uploadWithRetries("fp-1", "user/photo.jpg", 10);
+
+        assertEquals(image.length, completed.offset);
+        assertEquals("user/photo.jpg", completed.objectName);
+        assertArrayEquals(image, server.received.toByteArray());
+        assertEquals(1, server.creates.get());
+        assertTrue(server.drops.get() > 0);
+        assertNull(checkpointStore.load("fp-1"));
+    }
+
+    @Test
+    public void upload_resumesFromCheckpointAfterRestart() throws Exception {
+        // First run dies after the second chunk, as if the process had been killed
+        server.failAllPatchesAfter = 2;
+        try {
+            uploadWithRetries("fp-2", "user/first.jpg", 3);
+            fail("Expected the first run to give up");
+        } catch (IOException expected) {
+            // expected
+        }
+        UploadCheckpointStore.Checkpoint saved = checkpointStore.load("fp-2");
+        assertNotNull(saved);
+        assertEquals(CHUNK_SIZE * 2L, saved.offset);
+
+        // Second run with a new ticket path keeps the original object and sends only the rest
+        server.failAllPatchesAfter = Integer.MAX_VALUE;
+        UploadCheckpointStore.Checkpoint completed = uploadWithRetries("fp-2", "user/second.jpg", 1);
+
+        assertEquals("user/first.jpg", completed.objectName);
+        assertEquals(1, server.creates.get());
+        assertArrayEquals(image, server.received.toByteArray());
+        assertEquals(image.length - CHUNK_SIZE * 2L, server.patchedBytesAfterReset);
+    }
+
+    @Test
+    public void upload_restartsWhenServerForgotUpload() throws Exception {
+        checkpointStore.save(new UploadCheckpointStore.Checkpoint("fp-3", server.endpoint() + "/missing",
+            image.length, "photos", "user/old.jpg", CHUNK_SIZE));
+
+        UploadCheckpointStore.Checkpoint completed = uploadWithRetries("fp-3", "user/new.jpg", 1);
+
+        assertEquals("user/new.jpg", completed.objectName);
+        assertArrayEquals(image, server.received.toByteArray());
+    }
+
+    @Test
+    public void upload_failsFastOnClientError() throws Exception {
+        server.createStatus = 403;
+        try {
+            uploadWithRetries("fp-4", "user/photo.jpg", 3);
+            fail("Expected rejection");
+        } catch (TusUploader.RejectedException e) {
+            assertEquals(403, e.statusCode);
+        }
+        assertEquals(1, server.creates.get());
+    }
+
+    @Test
+    public void base64_matchesRfc4648() {
+        assertEquals("", TusUploader.base64(""));
+        assertEquals("Zg==", TusUploader.base64("f"));
+        assertEquals("Zm8=", TusUploader.base64("fo"));
+        assertEquals("Zm9v", TusUploader.base64("foo"));
+        assertEquals("dXNlci9waG90by5qcGc=", TusUploader.base64("user/photo.jpg"));
+    }
+
+    /** Calls upload() again after each dropped connection, like the stage retry loop does. */
+    private UploadCheckpointStore.Checkpoint uploadWithRetries(String fingerprint, String objectName,
+                                                               int maxAttempts) throws IOException {
+        TusUploader uploader = new TusUploader(new OkHttpTransport(), checkpointStore, Logger.NONE, CHUNK_SIZE);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return uploader.upload(server.endpoint(), headers(), fingerprint, image.length, "photos",
+                    objectName, "image/jpeg", () -> new ByteArrayInputStream(image));
+            } catch (TusUploader.RejectedException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static Map<String, String> headers() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Authorization", "Bearer test");
+        return headers;
+    }
+
+    /** Minimal single-upload TUS server with failure injection. */
+    private static final class FlakyTusServer {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final AtomicInteger creates = new AtomicInteger();
+        final AtomicInteger drops = new AtomicInteger();
+        volatile int dropEveryNthPatch = 0;
+        volatile int failAllPatchesAfter = Integer.MAX_VALUE;
+        volatile int createStatus = 201;
+        volatile long patchedBytesAfterReset;
+
+        private final HttpServer httpServer;
+        private int patchCount;
+        private int acceptedChunks;
+        private long uploadLength;
+
+        FlakyTusServer() throws IOException {
+            httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            httpServer.createContext("/upload/resumable", this::handle);
+            httpServer.start();
+        }
+
+        URL endpoint() throws IOException {
+            return new URL("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/upload/resumable");
+        }
+
+        void stop() {
+            httpServer.stop(0);
+        }
+
+        private synchronized void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            String override = exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override");
+            if ("PATCH".equals(override)) {
+                method = "PATCH";
+            }
+            boolean known = path.endsWith("/upload/resumable/file-1") && creates.get() > 0;
+
+            if ("POST".equals(method) && path.endsWith("/upload/resumable")) {
+                creates.incrementAndGet();
+                drain(exchange.getRequestBody());
+                if (createStatus != 201) {
+                    exchange.sendResponseHeaders(createStatus, -1);
+                    exchange.close();
+                    return;
+                }
+                uploadLength = Long.parseLong(exchange.getRequestHeaders().getFirst("Upload-Length"));
+                received.reset();
+                patchedBytesAfterReset = 0;
+                exchange.getResponseHeaders().add("Location", "/upload/resumable/file-1");
+                exchange.sendResponseHeaders(201, -1);
+            } else if ("HEAD".equals(method)) {
+                // The JDK server leaves a HEAD connection unusable for the next request
+                exchange.getResponseHeaders().add("Connection", "close");
+                if (!known) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    exchange.getResponseHeaders().add("Upload-Offset", Long.toString(received.size()));
+                    exchange.getResponseHeaders().add("Upload-Length", Long.toString(uploadLength));
+                    exchange.sendResponseHeaders(200, -1);
+                }
+                // Treat a resume as the start of a new client run
+                patchedBytesAfterReset = 0;
+            } else if ("PATCH".equals(method) && known) {
+                long offset = Long.parseLong(exchange.getRequestHeaders().getFirst("Upload-Offset"));
+                if (offset != received.size()) {
+                    drain(exchange.getRequestBody());
+                    exchange.sendResponseHeaders(409, -1);
+                    exchange.close();
+                    return;
+                }
+                patchCount++;
+                InputStream body = exchange.getRequestBody();
+                if (acceptedChunks >= failAllPatchesAfter) {
+                    // Unreachable backend: hang up before accepting anything
+                    drops.incrementAndGet();
+                    exchange.close();
+                    return;
+                }
+                if (dropEveryNthPatch > 0 && patchCount % dropEveryNthPatch == 0) {
+                    // Keep half of the chunk, like a real server persisting a partial write, then hang up
+                    byte[] partial = readUpTo(body, CHUNK_SIZE / 2);
+                    received.write(partial, 0, partial.length);
+                    patchedBytesAfterReset += partial.length;
+                    drops.incrementAndGet();
+                    exchange.close();
+                    return;
+                }
+                byte[] chunk = readUpTo(body, Integer.MAX_VALUE);
+                received.write(chunk, 0, chunk.length);
+                patchedBytesAfterReset += chunk.length;
+                acceptedChunks++;
+                exchange.getResponseHeaders().add("Upload-Offset", Long.toString(received.size()));
+                exchange.sendResponseHeaders(204, -1);
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+            exchange.close();
+        }
+
+        private static void drain(InputStream in) throws IOException {
+            readUpTo(in, Integer.MAX_VALUE);
+        }
+
+        private static byte[] readUpTo(InputStream in, int max) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while (out.size() < max && (bytesRead = in.read(buffer, 0, Math.min(buffer.length, max - out.size()))) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.fortunemagnet.upload;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class UploadEndpointsTest {
+    @Test
+    public void forServerUrl_usesSupabaseUrlsAndDefaultsForTheWebHost() {
+        assertEquals("https://abc.supabase.co", UploadEndpoints.forServerUrl("https://abc.supabase.co/").supabaseUrl);
+        assertEquals(UploadEndpoints.DEFAULT_SUPABASE_URL,
+            UploadEndpoints.forServerUrl("https://fortune-magnet.vercel.app").supabaseUrl);
+        assertEquals(UploadEndpoints.DEFAULT_SUPABASE_URL, UploadEndpoints.forServerUrl(null).supabaseUrl);
+    }
+
+    @Test
+    public void endpoints_areBuiltUnderTheBaseUrlAndEncodeObjectPaths() {
+        UploadEndpoints endpoints = UploadEndpoints.forSupabase("http://10.0.2.2:54321");
+        assertEquals("http://10.0.2.2:54321/functions/v1/issue-fortune-upload-ticket", endpoints.ticketUrl.toString());
+        assertEquals("http://10.0.2.2:54321/functions/v1/finalize-fortune-photo", endpoints.finalizeUrl.toString());
+        assertEquals("http://10.0.2.2:54321/storage/v1/object/authenticated/photos/user%201/a.jpg",
+            endpoints.authenticatedObject("photos", "user 1/a.jpg").toString());
+        assertEquals("http://10.0.2.2:54321/storage/v1/object/list/photos/user?search=a%20b.jpg",
+            endpoints.listObjects("photos", "user", "a b.jpg").toString());
+    }
+
+    @Test
+    public void downloadedObjectKey_isTheSameForEverySignedUrlOfAnObject() {
+        UploadEndpoints endpoints = UploadEndpoints.forSupabase("https://abc.supabase.co");
+        assertEquals("photos/user-1/a b.jpg",
+            endpoints.downloadedObjectKey("https://abc.supabase.co/storage/v1/object/sign/photos/user-1/a%20b.jpg?token=t1"));
+        assertEquals("photos/user-1/a b.jpg",
+            endpoints.downloadedObjectKey("https://abc.supabase.co/storage/v1/object/sign/photos/user-1/a%20b.jpg?token=t2"));
+        assertEquals("photos/user-1/a.jpg",
+            endpoints.downloadedObjectKey("https://abc.supabase.co/storage/v1/object/public/photos/user-1/a.jpg"));
+        assertNull(endpoints.downloadedObjectKey("https://abc.supabase.co/storage/v1/render/image/sign/photos/user-1/a.jpg"));
+        assertNull(endpoints.downloadedObjectKey("https://abc.supabase.co/storage/v1/object/sign/photos"));
+        assertNull(endpoints.downloadedObjectKey("https://other.supabase.co/storage/v1/object/sign/photos/user-1/a.jpg"));
+        assertNull(endpoints.downloadedObjectKey("https://fortune-magnet.vercel.app/index.html"));
+    }
+
+    @Test
+    public void withOverrides_keepsTheSameInstanceWithoutOverrides() throws Exception {
+        UploadEndpoints endpoints = UploadEndpoints.forSupabase("https://abc.supabase.co");
+        assertSame(endpoints, endpoints.withOverrides(new JSONObject().put("verify", "head")));
+        assertSame(endpoints, endpoints.withOverrides(null));
+
+        JSONObject options = new JSONObject().put("endpoints", new JSONObject()
+            .put("supabaseUrl", "http://localhost:54321")
+            .put("finalizeUrl", "http://localhost:9000/finalize"));
+        UploadEndpoints overridden = endpoints.withOverrides(options);
+        assertEquals("http://localhost:54321/functions/v1/issue-fortune-upload-ticket", overridden.ticketUrl.toString());
+        assertEquals("http://localhost:9000/finalize", overridden.finalizeUrl.toString());
+        assertEquals("http://localhost:54321/storage/v1/", overridden.storageUrl.toString());
+    }
+
+    @Test
+    public void withOverrides_rejectsUrlsThatAreNotHttp() throws Exception {
+        JSONObject options = new JSONObject().put("endpoints", new JSONObject().put("supabaseUrl", "ftp://x"));
+        try {
+            UploadEndpoints.forSupabase("https://abc.supabase.co").withOverrides(options);
+            fail("Expected rejection");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("ftp://x"));
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.fortunemagnet.upload;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load harness: runs ticket -> upload -> verify -> finalize for many photos at
+ * once through UploadEngine against FakeUploadBackend, and reports throughput,
+ * latency percentiles per stage and bytes allocated per upload.
+ *
+ * The defaults keep it fast enough for every test run. Heavier runs:
+ *   ./gradlew :upload-engine:test --tests '*UploadLoadTest' -PuploadLoad.uploads=2000 \
+ *       -PuploadLoad.concurrency=8 -PuploadLoad.sizeKb=2048 -PuploadLoad.bytesPerSecond=2000000
+ *
+ * The report is also written as JSON to uploadLoad.reportFile (the build sets
+ * build/reports/upload-load.json), for comparing runs. The run fails when an
+ * upload allocates more than uploadLoad.maxAllocatedKbPerUpload on its calling
+ * thread, which catches a photo being buffered instead of streamed, or when
+ * throughput drops below uploadLoad.minUploadsPerSecond (off by default: it
+ * depends on the machine).
+ */
+public class UploadLoadTest {
+    private static final int UPLOADS = Integer.getInteger("uploadLoad.uploads", 40);
+    private static final int CONCURRENCY = Integer.getInteger("uploadLoad.concurrency", 4);
+    private static final int SIZE_KB = Integer.getInteger("uploadLoad.sizeKb", 256);
+    private static final long LATENCY_MS = Long.getLong("uploadLoad.latencyMs", 2);
+    private static final long JITTER_MS = Long.getLong("uploadLoad.jitterMs", 3);
+    private static final long BYTES_PER_SECOND = Long.getLong("uploadLoad.bytesPerSecond", 0);
+    private static final double FAILURE_RATE = Double.parseDouble(System.getProperty("uploadLoad.failureRate", "0.05"));
+    private static final double DROP_RATE = Double.parseDouble(System.getProperty("uploadLoad.dropRate", "0.02"));
+    // The engine's own share is 100-200 KB; holding a whole default-sized photo in memory goes over
+    private static final long MAX_ALLOCATED_KB_PER_UPLOAD = Long.getLong("uploadLoad.maxAllocatedKbPerUpload", 384);
+    private static final double MIN_UPLOADS_PER_SECOND = Double.parseDouble(System.getProperty("uploadLoad.minUploadsPerSecond", "0"));
+    private static final String REPORT_FILE = System.getProperty("uploadLoad.reportFile");
+
+    private FakeUploadBackend backend;
+    private OkHttpTransport transport;
+    private UploadMetrics metrics;
+    private UploadEngine engine;
+    private byte[] image;
+
+    /** A photo already in memory; the blob store hands out its bytes. */
+    private final class LoadTask extends UploadTask {
+        LoadTask(JSONObject options) {
+            super(options);
+        }
+
+        @Override
+        public UploadBlob blob() {
+            return new UploadBlob("memory", image.length, "image/jpeg");
+        }
+
+        @Override
+        public int width() {
+            return 1600;
+        }
+
+        @Override
+        public int height() {
+            return 1200;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        backend = new FakeUploadBackend(CONCURRENCY * 2, 7);
+        backend.config.latencyMs = LATENCY_MS;
+        backend.config.jitterMs = JITTER_MS;
+        backend.config.bytesPerSecond = BYTES_PER_SECOND;
+        transport = new OkHttpTransport();
+        metrics = new UploadMetrics();
+        image = new byte[SIZE_KB * 1024];
+        new Random(42).nextBytes(image);
+        engine = new UploadEngine.Builder()
+            .endpoints(UploadEndpoints.forSupabase(backend.baseUrl()))
+            .transport(transport)
+            .blobStore(blob -> new ByteArrayInputStream(image))
+            .tokens(() -> "test")
+            .retryPolicy(new ExponentialBackoffPolicy(8, 10, 200, 30_000, new Random(7)))
+            .metrics(metrics)
+            .build();
+    }
+
+    @After
+    public void tearDown() {
+        backend.stop();
+        transport.shutdown();
+    }
+
+    @Test
+    public void load_everyUploadFinalizesDespiteInjectedFailures() throws Exception {
+        backend.config.failureRate = FAILURE_RATE;
+        backend.config.dropRate = DROP_RATE;
+
+        Report report = run(UPLOADS, CONCURRENCY);
+
+        System.out.println(report.describe());
+        if (REPORT_FILE != null) {
+            File file = new File(REPORT_FILE);
+            File parent = file.getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            Files.write(file.toPath(), report.toJson().toString(2).getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(UPLOADS, report.succeeded);
+        assertEquals(UPLOADS, backend.finalized.size());
+        for (Long size : backend.objects.values()) {
+            assertTrue("multipart body smaller than the image", size > image.length);
+        }
+        // 0 where the JVM cannot measure allocation
+        assertTrue("allocated " + report.allocatedKbPerUpload() + " KB per upload",
+            report.allocatedKbPerUpload() <= MAX_ALLOCATED_KB_PER_UPLOAD);
+        assertTrue(String.format(Locale.ROOT, "%.1f uploads/s", report.uploadsPerSecond()),
+            report.uploadsPerSecond() >= MIN_UPLOADS_PER_SECOND);
+    }
+
+    @Test
+    public void load_uploadsNotYetVisibleAreRetriedUntilTheyAre() throws Exception {
+        backend.config.visibleAfterUpload = false;
+
+        Report report = run(8, 2);
+
+        assertEquals(8, report.succeeded);
+        JSONObject verify = report.metrics.getJSONObject("stages").getJSONObject("VERIFY");
+        assertEquals(8, verify.getJSONObject("failures").getLong("NOT_READY"));
+        assertEquals(8, verify.getLong("retries"));
+    }
+
+    private Report run(int uploads, int concurrency) throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        AtomicLong allocated = new AtomicLong();
+        List<Future<Boolean>> results = new ArrayList<>();
+        long started = System.nanoTime();
+        for (int i = 0; i < uploads; i++) {
+            results.add(workers.submit(() -> {
+                long before = allocatedBytes();
+                try {
+                    return uploadOnce();
+                } finally {
+                    allocated.addAndGet(allocatedBytes() - before);
+                }
+            }));
+        }
+        int succeeded = 0;
+        for (Future<Boolean> result : results) {
+            if (result.get(2, TimeUnit.MINUTES)) {
+                succeeded++;
+            }
+        }
+        long elapsedNanos = System.nanoTime() - started;
+        workers.shutdown();
+        return new Report(uploads, succeeded, elapsedNanos, allocated.get(), (long) uploads * image.length,
+            backend.injectedFailures.get(), metrics.snapshot());
+    }
+
+    /** One photo through every network stage, always checking storage with a HEAD. */
+    private boolean uploadOnce() throws Exception {
+        long pickedAt = System.nanoTime();
+        LoadTask task = new LoadTask(new JSONObject().put("verify", "head"));
+        task.advance(UploadTask.Stage.TICKET);
+        try {
+            engine.run(task);
+            assertNotNull(task.uploadConfirmation);
+            metrics.jobFinished(true, false, false, System.nanoTime() - pickedAt);
+            return true;
+        } catch (StageException e) {
+            metrics.jobFinished(false, false, false, System.nanoTime() - pickedAt);
+            return false;
+        }
+    }
+
+    /** Bytes allocated by the calling thread so far, or 0 where the JVM cannot tell. */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+            if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+                return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return 0;
+    }
+
+    private static final class Report {
+        final int uploads;
+        final int succeeded;
+        final long elapsedNanos;
+        final long allocatedBytes;
+        final long imageBytes;
+        final int injectedFailures;
+        final JSONObject metrics;
+
+        Report(int uploads, int succeeded, long elapsedNanos, long allocatedBytes, long imageBytes,
+               int injectedFailures, JSONObject metrics) {
+            this.uploads = uploads;
+            this.succeeded = succeeded;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.imageBytes = imageBytes;
+            this.injectedFailures = injectedFailures;
+            this.metrics = metrics;
+        }
+
+        double uploadsPerSecond() {
+            return uploads / (elapsedNanos / 1e9);
+        }
+
+        double megabytesPerSecond() {
+            return imageBytes / (elapsedNanos / 1e9) / (1024 * 1024);
+        }
+
+        /** On the calling threads, i.e. what the engine allocates per upload; 0 if unknown. */
+        long allocatedKbPerUpload() {
+            return allocatedBytes / Math.max(1, uploads) / 1024;
+        }
+
+        String describe() {
+            return String.format(Locale.ROOT,
+                "UPLOAD_LOAD uploads=%d ok=%d concurrency=%d size=%dKB injectedFailures=%d%n"
+                    + "  throughput: %.1f uploads/s, %.2f MB/s%n"
+                    + "  allocated: %d KB per upload (calling threads)%n"
+                    + "  metrics: %s",
+                uploads, succeeded, CONCURRENCY, SIZE_KB, injectedFailures,
+                uploadsPerSecond(), megabytesPerSecond(), allocatedKbPerUpload(), metrics);
+        }
+
+        JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                .put("uploads", uploads)
+                .put("succeeded", succeeded)
+                .put("concurrency", CONCURRENCY)
+                .put("sizeKb", SIZE_KB)
+                .put("injectedFailures", injectedFailures)
+                .put("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(elapsedNanos))
+                .put("uploadsPerSecond", uploadsPerSecond())
+                .put("megabytesPerSecond", megabytesPerSecond())
+                .put("allocatedKbPerUpload", allocatedKbPerUpload())
+                .put("metrics", metrics);
+        }
+    }
+}
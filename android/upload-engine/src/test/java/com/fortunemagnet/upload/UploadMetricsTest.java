@@ -0,0 +1,54 @@
+package com.fortunemagnet.upload;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class UploadMetricsTest {
+
+    @Test
+    public void histogramBuckets_coverEveryValueInOrder() {
+        long previous = -1;
+        for (long value = 0; value < 100_000; value++) {
+            int bucket = UploadMetrics.Histogram.bucketFor(value);
+            long lower = UploadMetrics.Histogram.lowerBound(bucket);
+            assertTrue("value " + value, lower <= value);
+            assertTrue("value " + value, UploadMetrics.Histogram.lowerBound(bucket + 1) > value);
+            assertTrue(lower >= previous);
+            previous = lower;
+        }
+        assertEquals(UploadMetrics.Histogram.BUCKETS - 1, UploadMetrics.Histogram.bucketFor(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void histogramPercentiles_areWithinABucketOfTheTruth() {
+        UploadMetrics.Histogram histogram = new UploadMetrics.Histogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(1000, histogram.count());
+        long p50 = histogram.percentile(0.50);
+        long p95 = histogram.percentile(0.95);
+        assertTrue("p50=" + p50, p50 >= 500 && p50 <= 500 * 1.25);
+        assertTrue("p95=" + p95, p95 >= 950 && p95 <= 1000);
+        assertEquals(1000, histogram.percentile(1.0));
+    }
+
+    @Test
+    public void emptyHistogram_reportsZero() {
+        assertEquals(0, new UploadMetrics.Histogram().percentile(0.99));
+    }
+
+    @Test
+    public void recording_bumpsTheVersion() {
+        UploadMetrics metrics = new UploadMetrics();
+        long before = metrics.version();
+
+        metrics.stageSucceeded(UploadTask.Stage.UPLOAD, 5_000_000);
+        metrics.stageFailed(UploadTask.Stage.FINALIZE, StageException.Kind.HTTP);
+        metrics.jobFinished(true, false, false, -1);
+
+        assertEquals(before + 3, metrics.version());
+    }
+}
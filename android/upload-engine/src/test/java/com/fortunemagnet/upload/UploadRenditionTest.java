@@ -0,0 +1,136 @@
+package com.fortunemagnet.upload;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Uploads a photo and its thumbnail through UploadEngine against FakeUploadBackend. */
+public class UploadRenditionTest {
+    private FakeUploadBackend backend;
+    private OkHttpTransport transport;
+    private UploadEngine engine;
+
+    /** A photo whose ticket was issued, about to upload. */
+    private static final class PhotoTask extends UploadTask {
+        PhotoTask(UploadTicket ticket) throws Exception {
+            super(new JSONObject().put("fortuneId", "fortune-1"));
+            this.ticket = ticket;
+            this.bucketRelativePath = ticket.bucketRelativePath;
+            advance(Stage.UPLOAD);
+        }
+
+        @Override
+        public UploadBlob blob() {
+            return new UploadBlob("photo", 2048, "image/jpeg");
+        }
+
+        @Override
+        public int width() {
+            return 1600;
+        }
+
+        @Override
+        public int height() {
+            return 1200;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        backend = new FakeUploadBackend(4, 11);
+        transport = new OkHttpTransport();
+        engine = new UploadEngine.Builder()
+            .endpoints(UploadEndpoints.forSupabase(backend.baseUrl()))
+            .transport(transport)
+            .blobStore(blob -> new ByteArrayInputStream(new byte[(int) blob.length]))
+            .tokens(() -> "test")
+            .build();
+    }
+
+    @After
+    public void tearDown() {
+        backend.stop();
+        transport.shutdown();
+    }
+
+    @Test
+    public void rendition_isStoredUnderItsOwnTicketAndFinalizedWithThePhoto() throws Exception {
+        PhotoTask task = new PhotoTask(engine.issueTicket("test"));
+
+        task.thumbnailPath = engine.uploadRendition(task, new UploadBlob("thumb", 256, "image/jpeg"));
+        engine.upload(task);
+        task.blurHash = "LKO2?U%2Tw=w]~RBVZRi};RPxuwH";
+        JSONObject response = engine.finalizePhoto(task);
+
+        assertNotEquals(task.bucketRelativePath, task.thumbnailPath);
+        assertTrue(backend.objects.get(task.thumbnailPath) < backend.objects.get(task.bucketRelativePath));
+        assertEquals(2, backend.uploads.get());
+        assertEquals(task.thumbnailPath, backend.thumbnails.get(task.bucketRelativePath));
+        assertEquals(task.blurHash, backend.blurHashes.get(task.bucketRelativePath));
+        assertTrue(response.optString("thumbnailSignedUrl").endsWith(task.thumbnailPath));
+    }
+
+    @Test
+    public void finalize_withoutThumbnailSendsNeither() throws Exception {
+        PhotoTask task = new PhotoTask(engine.issueTicket("test"));
+
+        engine.upload(task);
+        engine.finalizePhoto(task);
+
+        assertTrue(backend.finalized.containsKey(task.bucketRelativePath));
+        assertFalse(backend.thumbnails.containsKey(task.bucketRelativePath));
+        assertFalse(backend.blurHashes.containsKey(task.bucketRelativePath));
+    }
+
+    @Test
+    public void failedTicket_recordsTheStatusButNeverTheBody() throws Exception {
+        List<String> logged = new ArrayList<>();
+        Logger logger = new Logger() {
+            @Override
+            public void d(String message) {
+                logged.add(message);
+            }
+
+            @Override
+            public void w(String message, Throwable error) {
+                logged.add(message);
+            }
+
+            @Override
+            public void e(String message, Throwable error) {
+                logged.add(message);
+            }
+        };
+        EventLog events = new EventLog(16, EventLog.Level.DEBUG, logger);
+        UploadEngine failing = new UploadEngine.Builder()
+            .endpoints(UploadEndpoints.forSupabase(backend.baseUrl()))
+            .transport(transport)
+            .blobStore(blob -> new ByteArrayInputStream(new byte[(int) blob.length]))
+            .tokens(() -> "test")
+            .logger(logger)
+            .events(events)
+            .build();
+        backend.config.failureRate = 1;
+
+        try {
+            failing.issueTicket("test");
+            fail("the ticket should not have been issued");
+        } catch (StageException expected) {
+            // the 503 from the backend
+        }
+
+        List<String> lines = new ArrayList<>(logged);
+        lines.addAll(events.dump());
+        assertTrue(lines.stream().anyMatch(line -> line.contains("TICKET_FAIL") && line.contains("status=503")));
+        for (String line : lines) {
+            assertFalse(line, line.contains("injected"));
+        }
+    }
+}